@@ -0,0 +1,176 @@
+import java.util.Arrays;
+
+import com.ymkigeg.ml.pmml.CoefficientStore;
+import com.ymkigeg.ml.pmml.GBDTModel;
+import com.ymkigeg.ml.pmml.LogisticRegressionModel;
+import com.ymkigeg.ml.pmml.ModelMetrics;
+import com.ymkigeg.ml.pmml.Sigmoid;
+
+/**
+ * GBDT+FM / GBDT+LR 级联预测：GBDT每棵树走到叶子后，直接把该叶子在下游模型中的一阶权重和embedding累加进结果，
+ * 不生成编码数组，也不构造Map，每次请求不分配内存。
+ * 下游模型中第 featureOffset + gbdt编码 个特征对应GBDT的一个叶子，取值为1.0；
+ * 下游模型的其它特征可以通过 extraIndex/extraValue 一起传入。
+ * 叶子对应的下游参数在创建时拷贝出来(量化的embedding解码为double)，结果与
+ *   fm.predict(featureOffset + gbdt.gbdtEncoding(x) 以及额外特征, 1.0 ...)
+ * 一致，sigmoid取创建时下游模型的设置
+ */
+public class CascadePredictor {
+    private final GBDTModel gbdt;
+    private final int featureCount;
+    private final int treeCount;
+    private final int featureOffset;
+    private final double bias;
+    private final Sigmoid sigmoid;
+
+    // gbdt编码 -> 下游的一阶权重
+    private final double [] leafWeight;
+    // FM: gbdt编码 -> embedding，按行排列，长度 leafCount * k
+    private final double [] leafEmbedding;
+    // FM: gbdt编码 -> Σv²
+    private final double [] leafSquare;
+    private final int k;
+
+    // 额外特征使用的下游参数
+    private final FMModel fm;
+    private final CoefficientStore lrCoefficients;
+
+    private final ThreadLocal<double []> factorSums;
+    private final ModelMetrics.Recorder metrics;
+
+    private CascadePredictor(GBDTModel gbdt, int featureOffset, double bias, Sigmoid sigmoid, double [] leafWeight,
+                             double [] leafEmbedding, double [] leafSquare, int k, FMModel fm, CoefficientStore lrCoefficients) {
+        this.gbdt = gbdt;
+        this.featureCount = gbdt.getFeatureCount();
+        this.treeCount = gbdt.getTreeCount();
+        this.featureOffset = featureOffset;
+        this.bias = bias;
+        this.sigmoid = sigmoid;
+        this.leafWeight = leafWeight;
+        this.leafEmbedding = leafEmbedding;
+        this.leafSquare = leafSquare;
+        this.k = k;
+        this.fm = fm;
+        this.lrCoefficients = lrCoefficients;
+        this.factorSums = ThreadLocal.withInitial(() -> new double[k]);
+        this.metrics = ModelMetrics.recorder("CascadePredictor", gbdt.getModelName());
+    }
+
+    /**
+     * @param featureOffset 第一个叶子在FM中的特征编号
+     */
+    public static CascadePredictor create(GBDTModel gbdt, FMModel fm, int featureOffset) {
+        int leafCount = gbdt.getLeafCount();
+        checkRange(featureOffset, leafCount, fm.getFeatureSize());
+        int k = fm.getEmbeddingSize();
+        EmbeddingStore coefficients = fm.getCoefficientStore();
+        EmbeddingStore embeddings = fm.getEmbeddingStore();
+        double [] leafWeight = new double[leafCount];
+        double [] leafEmbedding = new double[leafCount * k];
+        double [] leafSquare = new double[leafCount];
+        double [] row = new double[k];
+        for (int code = 0; code < leafCount; code++) {
+            int index = featureOffset + code;
+            leafWeight[code] = coefficients.get(index, 0);
+            if (k > 0) {
+                // 与FMModel.predict取值为1.0时的累加方式相同，量化存储也能得到一致的结果
+                Arrays.fill(row, 0);
+                leafSquare[code] = embeddings.accumulate(index, 1.0, row);
+                System.arraycopy(row, 0, leafEmbedding, code * k, k);
+            }
+        }
+        return new CascadePredictor(gbdt, featureOffset, fm.getBias(), fm.getSigmoid(), leafWeight, leafEmbedding,
+                leafSquare, k, fm, null);
+    }
+
+    /**
+     * @param featureOffset 第一个叶子在LR中的特征编号
+     */
+    public static CascadePredictor create(GBDTModel gbdt, LogisticRegressionModel lr, int featureOffset) {
+        int leafCount = gbdt.getLeafCount();
+        CoefficientStore coefficients = lr.getCoefficientStore();
+        checkRange(featureOffset, leafCount, lr.getNumberOfFields());
+        double [] leafWeight = new double[leafCount];
+        for (int code = 0; code < leafCount; code++) {
+            leafWeight[code] = coefficients.get(featureOffset + code);
+        }
+        return new CascadePredictor(gbdt, featureOffset, lr.getIntercept(), lr.getSigmoid(), leafWeight,
+                null, null, 0, null, coefficients);
+    }
+
+    private static void checkRange(int featureOffset, int leafCount, int featureSize) {
+        if (featureOffset < 0 || (long) featureOffset + leafCount > featureSize) {
+            throw new IllegalArgumentException("gbdt leaves [" + featureOffset + ", " + ((long) featureOffset + leafCount)
+                    + ") exceed the downstream feature size " + featureSize);
+        }
+    }
+
+    public double predict(double [] features) {
+        return predict(features, null, null, 0);
+    }
+
+    /**
+     * @param features GBDT的输入，按槽位排列，见 GBDTModel.getFeatureNames()
+     * @param extraIndex 下游模型的其它特征编号，可以为null
+     * @param extraValue extraIndex对应的取值
+     * @param extraLength 使用extraIndex/extraValue的前多少个，方便调用方复用数组
+     */
+    public double predict(double [] features, int [] extraIndex, double [] extraValue, int extraLength) {
+        if (features.length < this.featureCount) {
+            throw new IllegalArgumentException("gbdt input length must not be less than " + this.featureCount);
+        }
+        long start = metrics.start();
+        double result = this.leafEmbedding == null
+                ? scoreLr(features, extraIndex, extraValue, extraLength)
+                : scoreFm(features, extraIndex, extraValue, extraLength);
+        metrics.record(ModelMetrics.Method.PREDICT, start, 1, features.length + extraLength);
+        return result;
+    }
+
+    private double scoreLr(double [] features, int [] extraIndex, double [] extraValue, int extraLength) {
+        double dot = 0;
+        for (int t = 0; t < this.treeCount; t++) {
+            dot += this.leafWeight[gbdt.leafCode(t, features)];
+        }
+        for (int i = 0; i < extraLength; i++) {
+            dot += this.lrCoefficients.get(extraIndex[i]) * extraValue[i];
+        }
+        return sigmoid.apply(dot + this.bias);
+    }
+
+    private double scoreFm(double [] features, int [] extraIndex, double [] extraValue, int extraLength) {
+        double [] sum = this.factorSums.get();
+        Arrays.fill(sum, 0);
+        double firstOrder = 0;
+        double squareSum = 0;
+        for (int t = 0; t < this.treeCount; t++) {
+            int code = gbdt.leafCode(t, features);
+            firstOrder += this.leafWeight[code];
+            squareSum += this.leafSquare[code];
+            int base = code * this.k;
+            for (int f = 0; f < this.k; f++) {
+                sum[f] += this.leafEmbedding[base + f];
+            }
+        }
+        if (extraLength > 0) {
+            EmbeddingStore coefficients = fm.getCoefficientStore();
+            EmbeddingStore embeddings = fm.getEmbeddingStore();
+            for (int i = 0; i < extraLength; i++) {
+                firstOrder += coefficients.get(extraIndex[i], 0) * extraValue[i];
+                if (this.k > 0) {
+                    squareSum += embeddings.accumulate(extraIndex[i], extraValue[i], sum);
+                }
+            }
+        }
+
+        double sumSquare = 0;
+        for (int f = 0; f < this.k; f++) {
+            sumSquare += sum[f] * sum[f];
+        }
+        return sigmoid.apply(this.bias + firstOrder + 0.5 * (sumSquare - squareSum));
+    }
+
+    public GBDTModel getGbdt() { return this.gbdt; }
+    public int getFeatureOffset() { return this.featureOffset; }
+    public ModelMetrics.Recorder getMetrics() { return this.metrics; }
+}
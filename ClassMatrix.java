@@ -0,0 +1,172 @@
+package com.ymkigeg.ml.pmml;
+
+/**
+ * 多分类LR的系数矩阵：每个RegressionTable一个类别，系数按 特征×类别 排列，
+ * 一个特征对所有类别的系数连续存放，一行的logits就是按特征依次累加 x[f] * W[f][·]，内层循环可以被JIT向量化。
+ * 批量打分按行块×特征块分块，一个特征块的系数(约32KB)在缓存中被一块行复用。
+ * 单行和批量对每个logit都按特征顺序累加，最后加截距，结果逐位相同
+ */
+final class ClassMatrix {
+
+    // 每块行数，以及一个特征块的系数占用的目标字节数
+    private static final int ROW_BLOCK = 64;
+    private static final int BLOCK_BYTES = 32 * 1024;
+
+    private final int classes;
+    private final int features;
+    // [f * classes + c]
+    private final double [] weights;
+    private final double [] intercepts;
+    private final int featureBlock;
+
+    ClassMatrix(int features, double [] intercepts, double [] weights) {
+        this.classes = intercepts.length;
+        this.features = features;
+        this.weights = weights;
+        this.intercepts = intercepts;
+        this.featureBlock = Math.max(8, BLOCK_BYTES / 8 / Math.max(1, this.classes));
+    }
+
+    int getClassCount() { return this.classes; }
+
+    /**
+     * 一行稠密输入的logits，写入out[0, classes)
+     */
+    void logits(double [] data, double [] out) {
+        for (int c = 0; c < this.classes; c++) {
+            out[c] = 0.0;
+        }
+        for (int f = 0; f < this.features; f++) {
+            axpy(data[f], f * this.classes, out);
+        }
+        addIntercepts(out);
+    }
+
+    /**
+     * 一行稀疏输入的logits，按输入顺序累加
+     */
+    void logits(int [] index, double [] value, int length, double [] out) {
+        for (int c = 0; c < this.classes; c++) {
+            out[c] = 0.0;
+        }
+        for (int i = 0; i < length; i++) {
+            axpy(value[i], index[i] * this.classes, out);
+        }
+        addIntercepts(out);
+    }
+
+    /**
+     * rows[from, to)的logits写入out的相同下标，每块行依次处理所有特征块
+     */
+    void logitsBatch(double [][] rows, int from, int to, double [][] out) {
+        for (int begin = from; begin < to; begin += ROW_BLOCK) {
+            int end = Math.min(to, begin + ROW_BLOCK);
+            for (int r = begin; r < end; r++) {
+                double [] logits = out[r];
+                for (int c = 0; c < this.classes; c++) {
+                    logits[c] = 0.0;
+                }
+            }
+            for (int fBegin = 0; fBegin < this.features; fBegin += this.featureBlock) {
+                int fEnd = Math.min(this.features, fBegin + this.featureBlock);
+                for (int r = begin; r < end; r++) {
+                    double [] row = rows[r];
+                    double [] logits = out[r];
+                    for (int f = fBegin; f < fEnd; f++) {
+                        axpy(row[f], f * this.classes, logits);
+                    }
+                }
+            }
+            for (int r = begin; r < end; r++) {
+                addIntercepts(out[r]);
+            }
+        }
+    }
+
+    private void axpy(double x, int base, double [] out) {
+        double [] w = this.weights;
+        for (int c = 0; c < this.classes; c++) {
+            out[c] += x * w[base + c];
+        }
+    }
+
+    private void addIntercepts(double [] out) {
+        for (int c = 0; c < this.classes; c++) {
+            out[c] += this.intercepts[c];
+        }
+    }
+
+    /**
+     * 原地把logits换成概率：先减去最大值再取exp，不会上溢；
+     * 有NaN时全部为NaN，最大值为+Infinity时由取值为+Infinity的类别平分
+     */
+    static void softmax(double [] values, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            double value = values[i];
+            if (value != value) {
+                for (int j = 0; j < n; j++) {
+                    values[j] = Double.NaN;
+                }
+                return;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+        if (max == Double.POSITIVE_INFINITY || max == Double.NEGATIVE_INFINITY) {
+            // 全为-Infinity时所有类别平分
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (values[i] == max) {
+                    count++;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                values[i] = values[i] == max ? 1.0 / count : 0.0;
+            }
+            return;
+        }
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            double e = Math.exp(values[i] - max);
+            values[i] = e;
+            sum += e;
+        }
+        for (int i = 0; i < n; i++) {
+            values[i] /= sum;
+        }
+    }
+
+    /**
+     * 概率最高的n个类别，按概率从高到低，概率相同时类别下标小的在前
+     * @param indexes 输出的类别下标，长度为n
+     * @param top 输出的概率，长度为n
+     */
+    static void top(double [] probabilities, int classes, int [] indexes, double [] top) {
+        int n = indexes.length;
+        if (n == 0) {
+            return;
+        }
+        int count = 0;
+        for (int c = 0; c < classes; c++) {
+            double p = probabilities[c];
+            if (count == n && !better(p, top[n - 1])) {
+                continue;
+            }
+            int i = count < n ? count++ : n - 1;
+            while (i > 0 && better(p, top[i - 1])) {
+                top[i] = top[i - 1];
+                indexes[i] = indexes[i - 1];
+                i--;
+            }
+            top[i] = p;
+            indexes[i] = c;
+        }
+    }
+
+    // 插入排序的比较，NaN排在所有数之后
+    private static boolean better(double p, double q) {
+        return p > q || (q != q && p == p);
+    }
+}
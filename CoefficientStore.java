@@ -0,0 +1,492 @@
+package com.ymkigeg.ml.pmml;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * LR的系数表，下标为特征编号。
+ * DENSE为double[]，与原先的结构相同；另外两种只保存非零系数，适合哈希特征上亿维、绝大多数系数为0的模型：
+ *   SORTED 按下标升序的 long[]/float[]，二分查找，每个非零系数12字节
+ *   HASHED 开放寻址的 long -> float 哈希表，线性探测，负载不超过1/2，每个非零系数不超过24字节
+ * 稀疏布局的系数按float保存，数据可以放在堆内或堆外，堆外按块分配，不受单个ByteBuffer 2GB的限制
+ */
+public abstract class CoefficientStore {
+
+    public enum Layout {
+        DENSE,
+        SORTED,
+        HASHED
+    }
+
+    // 堆外数据每块的元素数
+    private static final int CHUNK_SHIFT = 24;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final long EMPTY = -1L;
+
+    protected final long dimension;
+
+    CoefficientStore(long dimension) {
+        this.dimension = dimension;
+    }
+
+    /**
+     * @param indexes 非零系数的下标，[0, dimension)，不要求有序，重复时取最后一个
+     * @param values 与indexes对应的系数
+     * @param count 使用indexes/values的前多少个
+     * @param offHeap 稀疏布局时是否放在堆外，DENSE总在堆内
+     */
+    public static CoefficientStore build(Layout layout, long dimension, long [] indexes, double [] values, int count,
+                                         boolean offHeap) {
+        for (int i = 0; i < count; i++) {
+            if (indexes[i] < 0 || indexes[i] >= dimension) {
+                throw new IllegalArgumentException("coefficient index " + indexes[i] + " out of dimension " + dimension);
+            }
+        }
+        switch (layout) {
+            case DENSE:
+                if (dimension > Integer.MAX_VALUE - 8) {
+                    throw new IllegalArgumentException("dense coefficients cannot hold dimension " + dimension);
+                }
+                double [] dense = new double[(int) dimension];
+                for (int i = 0; i < count; i++) {
+                    dense[(int) indexes[i]] = values[i];
+                }
+                return new Dense(dense);
+            case SORTED:
+                return Sorted.build(dimension, indexes, values, count, offHeap);
+            default:
+                return Hashed.build(dimension, indexes, values, count, offHeap);
+        }
+    }
+
+    public static CoefficientStore dense(double [] coefficients) {
+        return new Dense(coefficients);
+    }
+
+    /**
+     * 转换成另一种布局，只拷贝非零系数
+     */
+    public static CoefficientStore convert(CoefficientStore source, Layout layout, boolean offHeap) {
+        int count = source.nonZeroCount();
+        long [] indexes = new long[count];
+        double [] values = new double[count];
+        source.copyNonZeros(indexes, values);
+        return build(layout, source.dimension, indexes, values, count, offHeap);
+    }
+
+    public long getDimension() { return this.dimension; }
+
+    public abstract Layout getLayout();
+
+    public abstract boolean isOffHeap();
+
+    public abstract long sizeInBytes();
+
+    public abstract int nonZeroCount();
+
+    /**
+     * @return 下标为index的系数，不在非零系数中时为0
+     */
+    public abstract double get(long index);
+
+    /**
+     * 按下标升序写出非零系数，两个数组的长度不小于nonZeroCount()
+     */
+    public abstract void copyNonZeros(long [] indexes, double [] values);
+
+    /**
+     * 与长度为dimension的稠密向量的点积，DENSE按下标顺序累加，稀疏布局只遍历非零系数
+     */
+    public abstract double dot(double [] data);
+
+    /**
+     * 与稀疏向量的点积，按输入顺序累加
+     */
+    public double dot(int [] index, double [] value, int length) {
+        double dot = 0.0;
+        for (int i = 0; i < length; i++) {
+            dot += get(index[i]) * value[i];
+        }
+        return dot;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * 按keys的值稳定排序，返回前count个元素的下标顺序，自底向上的归并排序，不装箱
+     */
+    private static int [] sortedOrder(long [] keys, int count) {
+        int [] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        int [] buffer = new int[count];
+        for (int width = 1; width < count; width <<= 1) {
+            for (int low = 0; low < count - width; low += width << 1) {
+                int mid = low + width;
+                int high = (int) Math.min((long) mid + width, count);
+                if (keys[order[mid - 1]] <= keys[order[mid]]) {
+                    continue;
+                }
+                int i = low;
+                int j = mid;
+                int k = low;
+                while (i < mid && j < high) {
+                    buffer[k++] = keys[order[j]] < keys[order[i]] ? order[j++] : order[i++];
+                }
+                while (i < mid) {
+                    buffer[k++] = order[i++];
+                }
+                while (j < high) {
+                    buffer[k++] = order[j++];
+                }
+                System.arraycopy(buffer, low, order, low, high - low);
+            }
+        }
+        return order;
+    }
+
+    private static ByteBuffer [] allocateChunks(long elements, int bytes) {
+        int chunks = (int) ((elements + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+        ByteBuffer [] result = new ByteBuffer[chunks];
+        for (int c = 0; c < chunks; c++) {
+            long size = Math.min(CHUNK_SIZE, elements - ((long) c << CHUNK_SHIFT));
+            result[c] = ByteBuffer.allocateDirect((int) size * bytes).order(ByteOrder.nativeOrder());
+        }
+        return result;
+    }
+
+    private static long chunkBytes(ByteBuffer [] chunks) {
+        long bytes = 0;
+        for (ByteBuffer chunk : chunks) {
+            bytes += chunk.capacity();
+        }
+        return bytes;
+    }
+
+    private static final class Dense extends CoefficientStore {
+        private final double [] values;
+
+        Dense(double [] values) {
+            super(values.length);
+            this.values = values;
+        }
+
+        @Override
+        public Layout getLayout() { return Layout.DENSE; }
+
+        @Override
+        public boolean isOffHeap() { return false; }
+
+        @Override
+        public long sizeInBytes() { return (long) this.values.length * 8; }
+
+        @Override
+        public int nonZeroCount() {
+            int count = 0;
+            for (double value : this.values) {
+                if (value != 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public double get(long index) {
+            return this.values[(int) index];
+        }
+
+        @Override
+        public void copyNonZeros(long [] indexes, double [] values) {
+            int n = 0;
+            for (int i = 0; i < this.values.length; i++) {
+                if (this.values[i] != 0) {
+                    indexes[n] = i;
+                    values[n++] = this.values[i];
+                }
+            }
+        }
+
+        @Override
+        public double dot(double [] data) {
+            double dot = 0;
+            for (int i = 0; i < this.values.length; i++) {
+                dot += this.values[i] * data[i];
+            }
+            return dot;
+        }
+
+        @Override
+        public double dot(int [] index, double [] value, int length) {
+            double dot = 0.0;
+            for (int i = 0; i < length; i++) {
+                dot += this.values[index[i]] * value[i];
+            }
+            return dot;
+        }
+    }
+
+    /**
+     * 按下标升序的非零系数，堆内为数组，堆外为按块分配的缓冲区
+     */
+    private static final class Sorted extends CoefficientStore {
+        private final int count;
+        private final long [] keys;
+        private final float [] values;
+        private final ByteBuffer [] keyChunks;
+        private final ByteBuffer [] valueChunks;
+
+        private Sorted(long dimension, int count, long [] keys, float [] values,
+                       ByteBuffer [] keyChunks, ByteBuffer [] valueChunks) {
+            super(dimension);
+            this.count = count;
+            this.keys = keys;
+            this.values = values;
+            this.keyChunks = keyChunks;
+            this.valueChunks = valueChunks;
+        }
+
+        static Sorted build(long dimension, long [] indexes, double [] values, int count, boolean offHeap) {
+            // 按下标稳定排序后去重，重复的下标取最后一个
+            int [] order = sortedOrder(indexes, count);
+            long [] keys = new long[count];
+            float [] floats = new float[count];
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                int source = order[i];
+                if (n > 0 && keys[n - 1] == indexes[source]) {
+                    n--;
+                }
+                keys[n] = indexes[source];
+                floats[n++] = (float) values[source];
+            }
+            int unique = 0;
+            for (int i = 0; i < n; i++) {
+                if (floats[i] != 0) {
+                    keys[unique] = keys[i];
+                    floats[unique++] = floats[i];
+                }
+            }
+            if (!offHeap) {
+                return new Sorted(dimension, unique, Arrays.copyOf(keys, unique), Arrays.copyOf(floats, unique),
+                        null, null);
+            }
+            ByteBuffer [] keyChunks = allocateChunks(unique, 8);
+            ByteBuffer [] valueChunks = allocateChunks(unique, 4);
+            for (int i = 0; i < unique; i++) {
+                keyChunks[i >>> CHUNK_SHIFT].putLong((i & CHUNK_MASK) << 3, keys[i]);
+                valueChunks[i >>> CHUNK_SHIFT].putFloat((i & CHUNK_MASK) << 2, floats[i]);
+            }
+            return new Sorted(dimension, unique, null, null, keyChunks, valueChunks);
+        }
+
+        private long key(int i) {
+            return this.keys != null ? this.keys[i] : this.keyChunks[i >>> CHUNK_SHIFT].getLong((i & CHUNK_MASK) << 3);
+        }
+
+        private float value(int i) {
+            return this.values != null ? this.values[i]
+                    : this.valueChunks[i >>> CHUNK_SHIFT].getFloat((i & CHUNK_MASK) << 2);
+        }
+
+        @Override
+        public Layout getLayout() { return Layout.SORTED; }
+
+        @Override
+        public boolean isOffHeap() { return this.keys == null; }
+
+        @Override
+        public long sizeInBytes() {
+            return this.keys != null ? (long) this.count * 12 : chunkBytes(this.keyChunks) + chunkBytes(this.valueChunks);
+        }
+
+        @Override
+        public int nonZeroCount() { return this.count; }
+
+        @Override
+        public double get(long index) {
+            int low = 0;
+            int high = this.count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long key = key(mid);
+                if (key < index) {
+                    low = mid + 1;
+                } else if (key > index) {
+                    high = mid - 1;
+                } else {
+                    return value(mid);
+                }
+            }
+            return 0.0;
+        }
+
+        @Override
+        public void copyNonZeros(long [] indexes, double [] values) {
+            for (int i = 0; i < this.count; i++) {
+                indexes[i] = key(i);
+                values[i] = value(i);
+            }
+        }
+
+        @Override
+        public double dot(double [] data) {
+            double dot = 0;
+            for (int i = 0; i < this.count; i++) {
+                dot += value(i) * data[(int) key(i)];
+            }
+            return dot;
+        }
+    }
+
+    /**
+     * 开放寻址哈希表，空槽的键为-1，容量为2的幂
+     */
+    private static final class Hashed extends CoefficientStore {
+        private final int count;
+        private final long mask;
+        private final long [] keys;
+        private final float [] values;
+        private final ByteBuffer [] keyChunks;
+        private final ByteBuffer [] valueChunks;
+
+        private Hashed(long dimension, int count, long capacity, boolean offHeap) {
+            super(dimension);
+            this.count = count;
+            this.mask = capacity - 1;
+            if (offHeap) {
+                this.keys = null;
+                this.values = null;
+                this.keyChunks = allocateChunks(capacity, 8);
+                this.valueChunks = allocateChunks(capacity, 4);
+                for (long slot = 0; slot < capacity; slot++) {
+                    putKey(slot, EMPTY);
+                }
+            } else {
+                if (capacity > Integer.MAX_VALUE - 8) {
+                    throw new IllegalArgumentException("too many coefficients for on-heap hash table: " + count);
+                }
+                this.keys = new long[(int) capacity];
+                this.values = new float[(int) capacity];
+                this.keyChunks = null;
+                this.valueChunks = null;
+                Arrays.fill(this.keys, EMPTY);
+            }
+        }
+
+        static Hashed build(long dimension, long [] indexes, double [] values, int count, boolean offHeap) {
+            long capacity = 16;
+            while (capacity < 2L * count) {
+                capacity <<= 1;
+            }
+            // 先按下标去重，重复时取最后一个，再丢掉为0的系数
+            CoefficientStore sorted = Sorted.build(dimension, indexes, values, count, false);
+            int nonZero = sorted.nonZeroCount();
+            long [] keys = new long[nonZero];
+            double [] floats = new double[nonZero];
+            sorted.copyNonZeros(keys, floats);
+            Hashed table = new Hashed(dimension, nonZero, capacity, offHeap);
+            for (int i = 0; i < nonZero; i++) {
+                long slot = mix(keys[i]) & table.mask;
+                while (table.key(slot) != EMPTY) {
+                    slot = (slot + 1) & table.mask;
+                }
+                table.putKey(slot, keys[i]);
+                table.putValue(slot, (float) floats[i]);
+            }
+            return table;
+        }
+
+        private long key(long slot) {
+            return this.keys != null ? this.keys[(int) slot]
+                    : this.keyChunks[(int) (slot >>> CHUNK_SHIFT)].getLong((int) (slot & CHUNK_MASK) << 3);
+        }
+
+        private float value(long slot) {
+            return this.values != null ? this.values[(int) slot]
+                    : this.valueChunks[(int) (slot >>> CHUNK_SHIFT)].getFloat((int) (slot & CHUNK_MASK) << 2);
+        }
+
+        private void putKey(long slot, long key) {
+            if (this.keys != null) {
+                this.keys[(int) slot] = key;
+            } else {
+                this.keyChunks[(int) (slot >>> CHUNK_SHIFT)].putLong((int) (slot & CHUNK_MASK) << 3, key);
+            }
+        }
+
+        private void putValue(long slot, float value) {
+            if (this.values != null) {
+                this.values[(int) slot] = value;
+            } else {
+                this.valueChunks[(int) (slot >>> CHUNK_SHIFT)].putFloat((int) (slot & CHUNK_MASK) << 2, value);
+            }
+        }
+
+        @Override
+        public Layout getLayout() { return Layout.HASHED; }
+
+        @Override
+        public boolean isOffHeap() { return this.keys == null; }
+
+        @Override
+        public long sizeInBytes() {
+            return (this.mask + 1) * 12;
+        }
+
+        @Override
+        public int nonZeroCount() { return this.count; }
+
+        @Override
+        public double get(long index) {
+            long slot = mix(index) & this.mask;
+            while (true) {
+                long key = key(slot);
+                if (key == index) {
+                    return value(slot);
+                }
+                if (key == EMPTY) {
+                    return 0.0;
+                }
+                slot = (slot + 1) & this.mask;
+            }
+        }
+
+        @Override
+        public void copyNonZeros(long [] indexes, double [] values) {
+            int n = 0;
+            for (long slot = 0; slot <= this.mask; slot++) {
+                long key = key(slot);
+                if (key != EMPTY) {
+                    indexes[n++] = key;
+                }
+            }
+            Arrays.sort(indexes, 0, n);
+            for (int i = 0; i < n; i++) {
+                values[i] = get(indexes[i]);
+            }
+        }
+
+        @Override
+        public double dot(double [] data) {
+            double dot = 0;
+            for (long slot = 0; slot <= this.mask; slot++) {
+                long key = key(slot);
+                if (key != EMPTY) {
+                    dot += value(slot) * data[(int) key];
+                }
+            }
+            return dot;
+        }
+    }
+}
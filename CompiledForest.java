@@ -0,0 +1,17 @@
+package com.ymkigeg.ml.pmml;
+
+/**
+ * ForestCompiler生成的打分类的父类，子类把每棵树展开成嵌套比较，阈值和叶子值都是常量
+ */
+public abstract class CompiledForest implements ForestScorer {
+
+    @Override
+    public abstract double score(double[] x);
+
+    @Override
+    public void scoreBlock(double[][] rows, int from, int to, double[] out) {
+        for (int r = from; r < to; r++) {
+            out[r] = score(rows[r]);
+        }
+    }
+}
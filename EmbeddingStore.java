@@ -0,0 +1,414 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * FM的embedding表，整张表按行连续存放，不再为每个特征单独分配double[]
+ * 支持fp64/fp32/fp16以及按行缩放的int8四种精度，数据可以放在堆内或堆外。
+ * 行按页组织（每页 2^PAGE_SHIFT 行），多页切自同一块至多1GB的ByteBuffer，
+ * 页是拷贝和共享的最小单位
+ */
+public abstract class EmbeddingStore {
+
+    public enum Precision {
+        FP64(8),
+        FP32(4),
+        FP16(2),
+        // 每行额外带一个float缩放系数
+        INT8(1);
+
+        final int bytes;
+
+        Precision(int bytes) {
+            this.bytes = bytes;
+        }
+
+        int rowBytes(int k) {
+            return this == INT8 ? 4 + k : k * bytes;
+        }
+    }
+
+    static final int PAGE_SHIFT = 12;
+    static final int PAGE_ROWS = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_ROWS - 1;
+    private static final int MAX_BLOCK_BYTES = 1 << 30;
+
+    protected final int rows;
+    protected final int k;
+    protected final int rowBytes;
+    protected final ByteBuffer[] pages;
+
+    EmbeddingStore(int rows, int k, int rowBytes, ByteBuffer[] pages) {
+        this.rows = rows;
+        this.k = k;
+        this.rowBytes = rowBytes;
+        this.pages = pages;
+    }
+
+    /**
+     * 分配一张全零的表
+     * @param offHeap true时使用DirectByteBuffer
+     */
+    public static EmbeddingStore allocate(Precision precision, int rows, int k, boolean offHeap) {
+        int pageBytes = pageBytes(precision, k);
+        int pageCount = pageCount(rows);
+        int pagesPerBlock = pagesPerBlock(pageBytes);
+        ByteBuffer[] pages = new ByteBuffer[pageCount];
+        ByteBuffer block = null;
+        for (int p = 0; p < pageCount; p++) {
+            int slot = p % pagesPerBlock;
+            if (slot == 0) {
+                int blockBytes = Math.min(pagesPerBlock, pageCount - p) * pageBytes;
+                block = offHeap ? ByteBuffer.allocateDirect(blockBytes) : ByteBuffer.allocate(blockBytes);
+            }
+            pages[p] = slice(block, slot * pageBytes, pageBytes);
+        }
+        return wrap(precision, rows, k, pages);
+    }
+
+    /**
+     * 用已有的页构造，页内按行紧密排列、小端序
+     */
+    static EmbeddingStore wrap(Precision precision, int rows, int k, ByteBuffer[] pages) {
+        int rowBytes = precision.rowBytes(k);
+        switch (precision) {
+            case FP64:
+                return new Fp64(rows, k, rowBytes, pages);
+            case FP32:
+                return new Fp32(rows, k, rowBytes, pages);
+            case FP16:
+                return new Fp16(rows, k, rowBytes, pages);
+            default:
+                return new Int8(rows, k, rowBytes, pages);
+        }
+    }
+
+    /**
+     * 把表转换成另一种精度
+     */
+    public static EmbeddingStore convert(EmbeddingStore source, Precision precision, boolean offHeap) {
+        EmbeddingStore target = allocate(precision, source.rows, source.k, offHeap);
+        double [] row = new double[source.k];
+        for (int i = 0; i < source.rows; i++) {
+            source.copyRow(i, row);
+            target.set(i, row);
+        }
+        return target;
+    }
+
+    static int pageBytes(Precision precision, int k) {
+        return precision.rowBytes(k) * PAGE_ROWS;
+    }
+
+    static int pageCount(int rows) {
+        return (rows + PAGE_ROWS - 1) >>> PAGE_SHIFT;
+    }
+
+    static int pagesPerBlock(int pageBytes) {
+        return Math.max(1, MAX_BLOCK_BYTES / pageBytes);
+    }
+
+    ByteBuffer[] pages() {
+        return this.pages;
+    }
+
+    /**
+     * 写时复制：返回一张新表，rowIds[0, count)所在的页换成新分配的拷贝，其余页与本表共用同一块内存。
+     * 本表不会被修改，正在读本表的线程不受影响；新表只应写入这些行
+     */
+    EmbeddingStore copyPages(int [] rowIds, int count) {
+        boolean [] touched = new boolean[this.pages.length];
+        int copies = 0;
+        for (int i = 0; i < count; i++) {
+            int p = rowIds[i] >>> PAGE_SHIFT;
+            if (!touched[p]) {
+                touched[p] = true;
+                copies++;
+            }
+        }
+        ByteBuffer[] result = this.pages.clone();
+        int pageBytes = this.rowBytes * PAGE_ROWS;
+        int pagesPerBlock = pagesPerBlock(pageBytes);
+        boolean offHeap = isOffHeap();
+        ByteBuffer block = null;
+        int slot = 0;
+        for (int p = 0; p < this.pages.length; p++) {
+            if (!touched[p]) {
+                continue;
+            }
+            if (block == null || slot == pagesPerBlock) {
+                int blockBytes = Math.min(pagesPerBlock, copies) * pageBytes;
+                block = offHeap ? ByteBuffer.allocateDirect(blockBytes) : ByteBuffer.allocate(blockBytes);
+                slot = 0;
+            }
+            ByteBuffer copy = slice(block, slot++ * pageBytes, pageBytes);
+            ByteBuffer source = this.pages[p].duplicate();
+            source.clear();
+            copy.put(source);
+            copy.clear();
+            result[p] = copy;
+            copies--;
+        }
+        return wrap(getPrecision(), this.rows, this.k, result);
+    }
+
+    /**
+     * @return 与other共用的页占用的字节数，other通常是copyPages的来源或结果
+     */
+    public long sharedBytes(EmbeddingStore other) {
+        long shared = 0;
+        for (int p = 0; p < Math.min(this.pages.length, other.pages.length); p++) {
+            if (this.pages[p] == other.pages[p]) {
+                shared += (long) PAGE_ROWS * this.rowBytes;
+            }
+        }
+        return shared;
+    }
+
+    static ByteBuffer slice(ByteBuffer block, int offset, int length) {
+        ByteBuffer view = block.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getRows() { return this.rows; }
+    public int getK() { return this.k; }
+    public boolean isOffHeap() { return this.pages.length > 0 && this.pages[0].isDirect(); }
+
+    public long sizeInBytes() {
+        return (long) this.pages.length * PAGE_ROWS * this.rowBytes;
+    }
+
+    public abstract Precision getPrecision();
+
+    public abstract double get(int row, int f);
+
+    public abstract void set(int row, double [] values);
+
+    public void set(int row, int f, double value) {
+        double [] values = getRow(row);
+        values[f] = value;
+        set(row, values);
+    }
+
+    /**
+     * 把 v·x 累加到sum中，返回 Σ(v·x)²
+     */
+    abstract double accumulate(int row, double x, double [] sum);
+
+    public void copyRow(int row, double [] dst) {
+        for (int f = 0; f < this.k; f++) {
+            dst[f] = get(row, f);
+        }
+    }
+
+    public double [] getRow(int row) {
+        double [] result = new double[this.k];
+        copyRow(row, result);
+        return result;
+    }
+
+    protected final ByteBuffer page(int row) {
+        return this.pages[row >>> PAGE_SHIFT];
+    }
+
+    protected final int offset(int row) {
+        return (row & PAGE_MASK) * this.rowBytes;
+    }
+
+    private static class Fp64 extends EmbeddingStore {
+        Fp64(int rows, int k, int rowBytes, ByteBuffer[] pages) { super(rows, k, rowBytes, pages); }
+
+        @Override
+        public Precision getPrecision() { return Precision.FP64; }
+
+        @Override
+        public double get(int row, int f) {
+            return page(row).getDouble(offset(row) + (f << 3));
+        }
+
+        @Override
+        public void set(int row, double [] values) {
+            ByteBuffer page = page(row);
+            int base = offset(row);
+            for (int f = 0; f < this.k; f++) {
+                page.putDouble(base + (f << 3), values[f]);
+            }
+        }
+
+        @Override
+        public void set(int row, int f, double value) {
+            page(row).putDouble(offset(row) + (f << 3), value);
+        }
+
+        @Override
+        double accumulate(int row, double x, double [] sum) {
+            ByteBuffer page = page(row);
+            int base = offset(row);
+            double squareSum = 0;
+            for (int f = 0; f < this.k; f++) {
+                double vx = page.getDouble(base + (f << 3)) * x;
+                sum[f] += vx;
+                squareSum += vx * vx;
+            }
+            return squareSum;
+        }
+    }
+
+    private static class Fp32 extends EmbeddingStore {
+        Fp32(int rows, int k, int rowBytes, ByteBuffer[] pages) { super(rows, k, rowBytes, pages); }
+
+        @Override
+        public Precision getPrecision() { return Precision.FP32; }
+
+        @Override
+        public double get(int row, int f) {
+            return page(row).getFloat(offset(row) + (f << 2));
+        }
+
+        @Override
+        public void set(int row, double [] values) {
+            ByteBuffer page = page(row);
+            int base = offset(row);
+            for (int f = 0; f < this.k; f++) {
+                page.putFloat(base + (f << 2), (float) values[f]);
+            }
+        }
+
+        @Override
+        double accumulate(int row, double x, double [] sum) {
+            ByteBuffer page = page(row);
+            int base = offset(row);
+            double squareSum = 0;
+            for (int f = 0; f < this.k; f++) {
+                double vx = page.getFloat(base + (f << 2)) * x;
+                sum[f] += vx;
+                squareSum += vx * vx;
+            }
+            return squareSum;
+        }
+    }
+
+    private static class Fp16 extends EmbeddingStore {
+        Fp16(int rows, int k, int rowBytes, ByteBuffer[] pages) { super(rows, k, rowBytes, pages); }
+
+        @Override
+        public Precision getPrecision() { return Precision.FP16; }
+
+        @Override
+        public double get(int row, int f) {
+            return halfToFloat(page(row).getShort(offset(row) + (f << 1)));
+        }
+
+        @Override
+        public void set(int row, double [] values) {
+            ByteBuffer page = page(row);
+            int base = offset(row);
+            for (int f = 0; f < this.k; f++) {
+                page.putShort(base + (f << 1), floatToHalf((float) values[f]));
+            }
+        }
+
+        @Override
+        double accumulate(int row, double x, double [] sum) {
+            ByteBuffer page = page(row);
+            int base = offset(row);
+            double squareSum = 0;
+            for (int f = 0; f < this.k; f++) {
+                double vx = halfToFloat(page.getShort(base + (f << 1))) * x;
+                sum[f] += vx;
+                squareSum += vx * vx;
+            }
+            return squareSum;
+        }
+    }
+
+    /**
+     * 每行开头4字节存缩放系数 max|v| / 127，之后k个字节存 round(v / scale)
+     */
+    private static class Int8 extends EmbeddingStore {
+        Int8(int rows, int k, int rowBytes, ByteBuffer[] pages) { super(rows, k, rowBytes, pages); }
+
+        @Override
+        public Precision getPrecision() { return Precision.INT8; }
+
+        @Override
+        public double get(int row, int f) {
+            ByteBuffer page = page(row);
+            int base = offset(row);
+            return page.getFloat(base) * page.get(base + 4 + f);
+        }
+
+        @Override
+        public void set(int row, double [] values) {
+            double max = 0;
+            for (int f = 0; f < this.k; f++) {
+                max = Math.max(max, Math.abs(values[f]));
+            }
+            float scale = (float) (max / 127);
+            ByteBuffer page = page(row);
+            int base = offset(row);
+            page.putFloat(base, scale);
+            for (int f = 0; f < this.k; f++) {
+                page.put(base + 4 + f, scale == 0 ? 0 : (byte) Math.max(-127, Math.min(127, Math.round(values[f] / scale))));
+            }
+        }
+
+        @Override
+        double accumulate(int row, double x, double [] sum) {
+            ByteBuffer page = page(row);
+            int base = offset(row);
+            double scaled = page.getFloat(base) * x;
+            double squareSum = 0;
+            for (int f = 0; f < this.k; f++) {
+                double vx = page.get(base + 4 + f) * scaled;
+                sum[f] += vx;
+                squareSum += vx * vx;
+            }
+            return squareSum;
+        }
+    }
+
+    static float halfToFloat(short half) {
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+        if (exponent == 0) {
+            // 非规格化数
+            float value = mantissa * 0x1p-24f;
+            return sign == 0 ? value : -value;
+        }
+        if (exponent == 31) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+    static short floatToHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+        if (abs >= 0x7f800000) {
+            // Inf 或 NaN
+            return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+        }
+        if (abs >= 0x477ff000) {
+            // 超出fp16范围
+            return (short) (sign | 0x7c00);
+        }
+        if (abs >= 0x38800000) {
+            // 规格化数，舍入到最近、相等时取偶数；进位到指数时结果仍然正确
+            int half = abs - 0x38000000;
+            return (short) (sign | ((half + 0xfff + ((half >>> 13) & 1)) >>> 13));
+        }
+        if (abs < 0x33000000) {
+            return (short) sign;
+        }
+        // 非规格化数，同样舍入到最近、相等时取偶数
+        int exponent = abs >>> 23;
+        int mantissa = (abs & 0x7fffff) | 0x800000;
+        int shift = 126 - exponent;
+        return (short) (sign | ((mantissa + (1 << (shift - 1)) - 1 + ((mantissa >>> shift) & 1)) >>> shift));
+    }
+}
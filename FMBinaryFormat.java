@@ -0,0 +1,233 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.InputMismatchException;
+import java.util.zip.CRC32;
+
+/**
+ * FM模型的二进制格式，全部小端序：
+ *   0  int    magic "FMB1"
+ *   4  int    版本号
+ *   8  int    embedding精度(EmbeddingStore.Precision的序号)
+ *  12  int    featureSize
+ *  16  int    k
+ *  20  int    每页行数的位移 EmbeddingStore.PAGE_SHIFT
+ *  24  double bias
+ *  32  long   一阶参数段的偏移和长度
+ *  48  long   embedding段的偏移和长度
+ *  64  long   两个数据段的CRC32
+ *  72  short  dt的字节数，之后是UTF-8编码的dt
+ * 头部固定128字节，数据段按64字节对齐，段内布局与EmbeddingStore的页完全一致，
+ * 加载时直接把文件映射成页，同一台机器上的多个JVM共享操作系统的page cache
+ */
+public class FMBinaryFormat {
+
+    static final int MAGIC = 0x31424D46;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 128;
+    private static final int ALIGNMENT = 64;
+    private static final int MAX_DT_BYTES = HEADER_BYTES - 74;
+
+    private FMBinaryFormat() {}
+
+    /**
+     * 把文本格式的模型转换成二进制格式，只需执行一次
+     */
+    public static void convert(InputStream text, int featureSize, EmbeddingStore.Precision precision, File out)
+            throws IOException, InputMismatchException {
+        write(FMModel.createByText(text, featureSize, precision, false), out);
+    }
+
+    /**
+     * 先写到同目录下的临时文件，再原子地替换out；
+     * 其它进程已经映射的旧文件不会被截断，它们继续读旧版本，之后加载的读到完整的新版本
+     */
+    public static void write(FMModel model, File out) throws IOException {
+        EmbeddingStore coefficients = model.getCoefficientStore();
+        EmbeddingStore embeddings = model.getEmbeddingStore();
+        EmbeddingStore.Precision precision = embeddings == null ? EmbeddingStore.Precision.FP64 : embeddings.getPrecision();
+        byte [] dt = model.getDt() == null ? new byte[0] : model.getDt().getBytes(StandardCharsets.UTF_8);
+        if (dt.length > MAX_DT_BYTES) {
+            throw new IllegalArgumentException("dt is longer than " + MAX_DT_BYTES + " bytes");
+        }
+
+        long coefficientOffset = HEADER_BYTES;
+        long coefficientLength = sectionLength(coefficients);
+        long embeddingOffset = align(coefficientOffset + coefficientLength);
+        long embeddingLength = embeddings == null ? 0 : sectionLength(embeddings);
+
+        File tmp = File.createTempFile(out.getName(), ".tmp", out.getAbsoluteFile().getParentFile());
+        try {
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                CRC32 crc = new CRC32();
+                writeSection(channel, coefficientOffset, coefficients, crc);
+                if (embeddings != null) {
+                    writeSection(channel, embeddingOffset, embeddings, crc);
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(precision.ordinal());
+                header.putInt(model.getFeatureSize());
+                header.putInt(model.getEmbeddingSize());
+                header.putInt(EmbeddingStore.PAGE_SHIFT);
+                header.putDouble(model.getBias());
+                header.putLong(coefficientOffset);
+                header.putLong(coefficientLength);
+                header.putLong(embeddingOffset);
+                header.putLong(embeddingLength);
+                header.putLong(crc.getValue());
+                header.putShort((short) dt.length);
+                header.put(dt);
+                header.clear();
+                writeFully(channel, header, 0);
+                // 先落盘再改名，崩溃后不会留下改了名但内容不完整的模型
+                channel.force(true);
+            }
+            Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * 只读映射模型文件，数据段不做拷贝
+     * @param verifyChecksum 为true时会完整读一遍数据段
+     * @throws InputMismatchException 文件头或数据段不合法、checksum不一致
+     */
+    public static FMModel read(File file, boolean verifyChecksum) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new InputMismatchException("fm binary model is truncated: " + file);
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new InputMismatchException("not a fm binary model: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new InputMismatchException("unsupported fm binary model version " + version);
+            }
+            int ordinal = header.getInt();
+            if (ordinal < 0 || ordinal >= EmbeddingStore.Precision.values().length) {
+                throw new InputMismatchException("unknown embedding precision " + ordinal + " in fm binary model: " + file);
+            }
+            EmbeddingStore.Precision precision = EmbeddingStore.Precision.values()[ordinal];
+            int featureSize = header.getInt();
+            int k = header.getInt();
+            if (header.getInt() != EmbeddingStore.PAGE_SHIFT) {
+                throw new InputMismatchException("the page size of fm binary model is mismatch!");
+            }
+            double bias = header.getDouble();
+            long coefficientOffset = header.getLong();
+            long coefficientLength = header.getLong();
+            long embeddingOffset = header.getLong();
+            long embeddingLength = header.getLong();
+            long checksum = header.getLong();
+            int dtLength = header.getShort();
+            if (dtLength < 0 || dtLength > MAX_DT_BYTES) {
+                throw new InputMismatchException("bad dt length " + dtLength + " in fm binary model: " + file);
+            }
+            byte [] dt = new byte[dtLength];
+            header.get(dt);
+
+            EmbeddingStore coefficients = EmbeddingStore.wrap(EmbeddingStore.Precision.FP64, featureSize, 1,
+                    map(channel, coefficientOffset, coefficientLength, EmbeddingStore.Precision.FP64, featureSize, 1));
+            EmbeddingStore embeddings = k == 0 ? null : EmbeddingStore.wrap(precision, featureSize, k,
+                    map(channel, embeddingOffset, embeddingLength, precision, featureSize, k));
+
+            if (verifyChecksum) {
+                CRC32 crc = new CRC32();
+                update(crc, coefficients);
+                if (embeddings != null) {
+                    update(crc, embeddings);
+                }
+                if (crc.getValue() != checksum) {
+                    throw new InputMismatchException("the checksum of fm binary model is mismatch: " + file);
+                }
+            }
+            FMModel model = new FMModel(featureSize, k, bias,
+                    dt.length == 0 ? null : new String(dt, StandardCharsets.UTF_8), coefficients, embeddings);
+            model.recordLoad(System.nanoTime() - start, 0);
+            return model;
+        }
+    }
+
+    public static void main(String [] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: FMBinaryFormat <text model> <feature size> <binary model> [FP64|FP32|FP16|INT8]");
+            System.exit(1);
+        }
+        EmbeddingStore.Precision precision = args.length > 3
+                ? EmbeddingStore.Precision.valueOf(args[3]) : EmbeddingStore.Precision.FP64;
+        FMTextLoader.LoadResult result = FMTextLoader.load(new File(args[0]), Integer.parseInt(args[1]), precision,
+                false, Runtime.getRuntime().availableProcessors());
+        System.err.println(result);
+        write(result.getModel(), new File(args[2]));
+    }
+
+    private static ByteBuffer [] map(FileChannel channel, long offset, long length,
+                                     EmbeddingStore.Precision precision, int rows, int k) throws IOException {
+        int pageBytes = EmbeddingStore.pageBytes(precision, k);
+        int pageCount = EmbeddingStore.pageCount(rows);
+        if (length != (long) pageBytes * pageCount || offset + length > channel.size()) {
+            throw new InputMismatchException("the section size of fm binary model is mismatch!");
+        }
+        int pagesPerBlock = EmbeddingStore.pagesPerBlock(pageBytes);
+        ByteBuffer [] pages = new ByteBuffer[pageCount];
+        ByteBuffer block = null;
+        for (int p = 0; p < pageCount; p++) {
+            int slot = p % pagesPerBlock;
+            if (slot == 0) {
+                long blockBytes = (long) Math.min(pagesPerBlock, pageCount - p) * pageBytes;
+                block = channel.map(FileChannel.MapMode.READ_ONLY, offset + (long) p * pageBytes, blockBytes);
+            }
+            pages[p] = EmbeddingStore.slice(block, slot * pageBytes, pageBytes);
+        }
+        return pages;
+    }
+
+    private static long sectionLength(EmbeddingStore store) {
+        return (long) store.pages().length * EmbeddingStore.pageBytes(store.getPrecision(), store.getK());
+    }
+
+    private static long align(long position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static void writeSection(FileChannel channel, long position, EmbeddingStore store, CRC32 crc)
+            throws IOException {
+        for (ByteBuffer page : store.pages()) {
+            ByteBuffer view = page.duplicate();
+            view.clear();
+            crc.update(view.duplicate());
+            position += writeFully(channel, view, position);
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private static void update(CRC32 crc, EmbeddingStore store) {
+        for (ByteBuffer page : store.pages()) {
+            ByteBuffer view = page.duplicate();
+            view.clear();
+            crc.update(view);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * FM模型两个版本之间的增量，文本格式，行格式与完整模型相同，另加一行base_dt指明基于哪个版本：
+ *   base_dt:20261015
+ *   dt:20261016
+ *   bias:0.0123                 可选，没有时沿用基础版本
+ *   i_<id>:<系数>
+ *   v_<id>:<v1> <v2> ... <vk>
+ * 删除的特征写成系数为0、embedding全为0的行，同一特征出现多次时以最后一行为准。
+ * 与全量加载不同，增量中任何一行解析失败都会让整个增量失败，不会只应用一部分。
+ * 读取和应用增量的内存和IO只与变化的行数(按EmbeddingStore的页计)有关，与模型大小无关
+ */
+public class FMDelta {
+
+    private String baseDt;
+    private String dt;
+    private boolean hasBias;
+    private double bias;
+    private int k;
+    private int [] coefficientIds = new int[16];
+    private double [] coefficientValues = new double[16];
+    private int coefficientCount;
+    private int [] embeddingIds = new int[16];
+    // 按行连续存放，每行k个
+    private double [] embeddingValues = new double[0];
+    private int embeddingCount;
+
+    private FMDelta() {}
+
+    public static FMDelta read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * @throws IOException 读取失败、行格式不对、缺少base_dt或dt
+     */
+    public static FMDelta read(InputStream in) throws IOException {
+        FMDelta delta = new FMDelta();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        long number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                delta.parseRow(line.trim());
+            } catch (RuntimeException e) {
+                throw new IOException("fm delta line " + number + ": " + e.getMessage(), e);
+            }
+        }
+        if (delta.baseDt == null || delta.dt == null) {
+            throw new IOException("fm delta needs both base_dt and dt");
+        }
+        return delta;
+    }
+
+    private void parseRow(String str) {
+        int colon = str.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("expect <key>:<value>");
+        }
+        String key = str.substring(0, colon).trim();
+        String value = str.substring(colon + 1).trim();
+        if ("base_dt".equals(key)) {
+            this.baseDt = value;
+        } else if ("dt".equals(key)) {
+            this.dt = value;
+        } else if ("bias".equals(key)) {
+            this.bias = Double.parseDouble(value);
+            this.hasBias = true;
+        } else if (key.startsWith("i_")) {
+            addCoefficient(parseIndex(key), Double.parseDouble(value));
+        } else if (key.startsWith("v_")) {
+            String [] embs = value.split("\\s+");
+            double [] emb = new double[embs.length];
+            for (int i = 0; i < embs.length; i++) {
+                emb[i] = Double.parseDouble(embs[i]);
+            }
+            addEmbedding(parseIndex(key), emb);
+        } else {
+            throw new IllegalArgumentException("unknown key " + key);
+        }
+    }
+
+    private static int parseIndex(String key) {
+        int index = Integer.parseInt(key.substring(2).trim());
+        if (index < 0) {
+            throw new IllegalArgumentException("negative feat_id " + index);
+        }
+        return index;
+    }
+
+    private void addCoefficient(int index, double value) {
+        if (this.coefficientCount == this.coefficientIds.length) {
+            this.coefficientIds = Arrays.copyOf(this.coefficientIds, this.coefficientCount * 2);
+            this.coefficientValues = Arrays.copyOf(this.coefficientValues, this.coefficientCount * 2);
+        }
+        this.coefficientIds[this.coefficientCount] = index;
+        this.coefficientValues[this.coefficientCount++] = value;
+    }
+
+    private void addEmbedding(int index, double [] emb) {
+        if (this.embeddingCount == 0) {
+            this.k = emb.length;
+            this.embeddingValues = new double[this.embeddingIds.length * this.k];
+        } else if (emb.length != this.k) {
+            throw new IllegalArgumentException("the embedding size is mismatch!");
+        }
+        if (this.embeddingCount == this.embeddingIds.length) {
+            this.embeddingIds = Arrays.copyOf(this.embeddingIds, this.embeddingCount * 2);
+            this.embeddingValues = Arrays.copyOf(this.embeddingValues, this.embeddingIds.length * this.k);
+        }
+        this.embeddingIds[this.embeddingCount] = index;
+        System.arraycopy(emb, 0, this.embeddingValues, this.embeddingCount * this.k, this.k);
+        this.embeddingCount++;
+    }
+
+    /**
+     * 比较两个版本，得到从base到target的增量，两个模型的featureSize和k必须相同
+     */
+    public static FMDelta diff(FMModel base, FMModel target) {
+        if (base.getDt() == null || target.getDt() == null) {
+            throw new IllegalArgumentException("fm delta needs the dt of both versions");
+        }
+        if (base.getFeatureSize() != target.getFeatureSize() || base.getEmbeddingSize() != target.getEmbeddingSize()) {
+            throw new IllegalArgumentException("fm delta needs the same feature size and embedding size");
+        }
+        FMDelta delta = new FMDelta();
+        delta.baseDt = base.getDt();
+        delta.dt = target.getDt();
+        if (Double.compare(base.getBias(), target.getBias()) != 0) {
+            delta.hasBias = true;
+            delta.bias = target.getBias();
+        }
+        EmbeddingStore from = base.getCoefficientStore();
+        EmbeddingStore to = target.getCoefficientStore();
+        for (int i = 0; i < base.getFeatureSize(); i++) {
+            double value = to.get(i, 0);
+            if (Double.compare(from.get(i, 0), value) != 0) {
+                delta.addCoefficient(i, value);
+            }
+        }
+        int k = base.getEmbeddingSize();
+        if (k > 0) {
+            double [] before = new double[k];
+            double [] after = new double[k];
+            for (int i = 0; i < base.getFeatureSize(); i++) {
+                base.getFeatureEmbedding(i, before);
+                target.getFeatureEmbedding(i, after);
+                if (!Arrays.equals(before, after)) {
+                    delta.addEmbedding(i, after);
+                }
+            }
+        }
+        return delta;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write("base_dt:" + this.baseDt + "\n");
+        writer.write("dt:" + this.dt + "\n");
+        if (this.hasBias) {
+            writer.write("bias:" + this.bias + "\n");
+        }
+        for (int i = 0; i < this.coefficientCount; i++) {
+            writer.write("i_" + this.coefficientIds[i] + ":" + this.coefficientValues[i] + "\n");
+        }
+        StringBuilder row = new StringBuilder();
+        for (int i = 0; i < this.embeddingCount; i++) {
+            row.setLength(0);
+            row.append("v_").append(this.embeddingIds[i]).append(':');
+            for (int f = 0; f < this.k; f++) {
+                row.append(f == 0 ? "" : " ").append(this.embeddingValues[i * this.k + f]);
+            }
+            writer.write(row.append('\n').toString());
+        }
+        writer.flush();
+    }
+
+    /**
+     * 先校验整个增量，再复制涉及的页并写入，base不被修改
+     */
+    FMModel apply(FMModel base) {
+        if (!this.baseDt.equals(base.getDt())) {
+            throw new IllegalArgumentException("fm delta is based on dt " + this.baseDt + " but the model is " + base.getDt());
+        }
+        int featureSize = base.getFeatureSize();
+        checkIndexes(this.coefficientIds, this.coefficientCount, featureSize);
+        checkIndexes(this.embeddingIds, this.embeddingCount, featureSize);
+        if (this.embeddingCount > 0 && this.k != base.getEmbeddingSize()) {
+            throw new IllegalArgumentException("the embedding size is mismatch!");
+        }
+
+        EmbeddingStore coefficients = base.getCoefficientStore();
+        if (this.coefficientCount > 0) {
+            coefficients = coefficients.copyPages(this.coefficientIds, this.coefficientCount);
+            for (int i = 0; i < this.coefficientCount; i++) {
+                coefficients.set(this.coefficientIds[i], 0, this.coefficientValues[i]);
+            }
+        }
+        EmbeddingStore embeddings = base.getEmbeddingStore();
+        if (this.embeddingCount > 0) {
+            embeddings = embeddings.copyPages(this.embeddingIds, this.embeddingCount);
+            double [] row = new double[this.k];
+            for (int i = 0; i < this.embeddingCount; i++) {
+                System.arraycopy(this.embeddingValues, i * this.k, row, 0, this.k);
+                embeddings.set(this.embeddingIds[i], row);
+            }
+        }
+        return new FMModel(featureSize, base.getEmbeddingSize(), this.hasBias ? this.bias : base.getBias(), this.dt,
+                coefficients, embeddings);
+    }
+
+    private static void checkIndexes(int [] ids, int count, int featureSize) {
+        for (int i = 0; i < count; i++) {
+            if (ids[i] >= featureSize) {
+                throw new IllegalArgumentException("feat_id " + ids[i] + " from fm delta is greater than feature_size");
+            }
+        }
+    }
+
+    public String getBaseDt() { return this.baseDt; }
+    public String getDt() { return this.dt; }
+    public int getCoefficientCount() { return this.coefficientCount; }
+    public int getEmbeddingCount() { return this.embeddingCount; }
+
+    @Override
+    public String toString() {
+        return String.format("base_dt=%s dt=%s bias=%s coefficients=%d embeddings=%d",
+                baseDt, dt, hasBias ? String.valueOf(bias) : "unchanged", coefficientCount, embeddingCount);
+    }
+
+    /**
+     * 用法:
+     *   FMDelta diff <基础版本文本模型> <新版本文本模型> <feature size> <增量文件>
+     *   FMDelta apply <基础版本文本模型> <feature size> <增量文件> [二进制模型输出]
+     */
+    public static void main(String [] args) throws IOException {
+        if (args.length >= 5 && "diff".equals(args[0])) {
+            int featureSize = Integer.parseInt(args[3]);
+            FMModel base = FMTextLoader.load(new File(args[1]), featureSize).getModel();
+            FMModel target = FMTextLoader.load(new File(args[2]), featureSize).getModel();
+            FMDelta delta = diff(base, target);
+            try (OutputStream out = new FileOutputStream(args[4])) {
+                delta.write(out);
+            }
+            System.out.println(delta);
+        } else if (args.length >= 4 && "apply".equals(args[0])) {
+            FMModel base = FMTextLoader.load(new File(args[1]), Integer.parseInt(args[2])).getModel();
+            FMDelta delta = read(new File(args[3]));
+            FMModel model = base.applyDelta(delta);
+            long shared = model.getCoefficientStore().sharedBytes(base.getCoefficientStore());
+            long total = model.getCoefficientStore().sizeInBytes();
+            if (model.getEmbeddingStore() != null) {
+                shared += model.getEmbeddingStore().sharedBytes(base.getEmbeddingStore());
+                total += model.getEmbeddingStore().sizeInBytes();
+            }
+            System.out.printf("%s, shared %d of %d bytes with dt %s%n", delta, shared, total, base.getDt());
+            if (args.length > 4) {
+                FMBinaryFormat.write(model, new File(args[4]));
+            }
+        } else {
+            System.err.println("usage: FMDelta diff <base text model> <new text model> <feature size> <delta>");
+            System.err.println("       FMDelta apply <base text model> <feature size> <delta> [binary model]");
+            System.exit(1);
+        }
+    }
+}
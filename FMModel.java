@@ -1,45 +1,73 @@
 import java.io.*;
+import java.util.Arrays;
 import java.util.InputMismatchException;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
+import com.ymkigeg.ml.pmml.FeatureFrame;
+import com.ymkigeg.ml.pmml.FeatureSchema;
+import com.ymkigeg.ml.pmml.ModelMetrics;
+import com.ymkigeg.ml.pmml.Sigmoid;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
 
 public class FMModel {
     private int featureSize;
     private int k;
     private double bias;
-    private double [] coefficients;
-    private double [][] embeddings;
+    private EmbeddingStore coefficients;
+    private EmbeddingStore embeddings;
+    private EmbeddingStore.Precision precision;
+    private boolean offHeap;
     private String dt;
+    private Sigmoid sigmoid = Sigmoid.exact();
+    private ModelMetrics.Recorder metrics = ModelMetrics.recorder("FMModel", null);
+    private long parseErrors;
+    private volatile FeatureSchema.Binding binding;
+    private final ThreadLocal<double []> factorSums = ThreadLocal.withInitial(() -> new double[0]);
 
     private FMModel(int featureSize) {
+        this(featureSize, EmbeddingStore.Precision.FP64, false);
+    }
+
+    private FMModel(int featureSize, EmbeddingStore.Precision precision, boolean offHeap) {
         this.k = 0;
         this.featureSize = featureSize;
-        this.coefficients = new double[featureSize];
-        // this.embeddings = new double[featureSize][k];
+        this.coefficients = EmbeddingStore.allocate(EmbeddingStore.Precision.FP64, featureSize, 1, offHeap);
+        this.precision = precision;
+        this.offHeap = offHeap;
         this.bias = 0;
     }
 
+    FMModel(int featureSize, int k, double bias, String dt, EmbeddingStore coefficients, EmbeddingStore embeddings) {
+        this.featureSize = featureSize;
+        this.k = k;
+        this.bias = bias;
+        this.dt = dt;
+        this.coefficients = coefficients;
+        this.embeddings = embeddings;
+        this.precision = embeddings == null ? EmbeddingStore.Precision.FP64 : embeddings.getPrecision();
+        this.offHeap = coefficients.isOffHeap();
+    }
+
     public static FMModel createByList(List<String> rows, int featureSize) {
         if (CollectionUtils.isEmpty(rows) || rows.size() <=  featureSize) {
             return null;
         }
 
+        long start = System.nanoTime();
         FMModel fmModel = new FMModel(featureSize);
 
+        long errors = 0;
         for (String str : rows) {
             try {
                 parseRow(str, fmModel);
             } catch (Exception e) {
-                System.out.println(str);
+                errors++;
             }
         }
+        fmModel.recordLoad(System.nanoTime() - start, errors);
         return fmModel;
     }
 
@@ -57,14 +85,14 @@ public class FMModel {
             int index = Integer.valueOf(colArray[0].split("_")[1].trim());
             fmModel.checkFeautreSize(index);
 
-            fmModel.coefficients[index] = Double.valueOf(colArray[1]);
+            fmModel.coefficients.set(index, 0, Double.valueOf(colArray[1]));
         } else if (colArray[0].startsWith("v_")) {
             int index = Integer.valueOf(colArray[0].split("_")[1].trim());
             String[] embs = colArray[1].trim().split(" ");
             fmModel.checkFeautreSize(index);
             if (0 == fmModel.k) {
                 fmModel.k = embs.length;
-                fmModel.embeddings = new double[fmModel.featureSize][fmModel.k];
+                fmModel.embeddings = EmbeddingStore.allocate(fmModel.precision, fmModel.featureSize, fmModel.k, fmModel.offHeap);
             }
 
             fmModel.checkEmbeddingSize(embs.length);
@@ -73,7 +101,7 @@ public class FMModel {
             for (int i = 0; i < embs.length; i++) {
                 emb[i] = Double.valueOf(embs[i]);
             }
-            fmModel.embeddings[index] = emb;
+            fmModel.embeddings.set(index, emb);
         } else {
             return -2;
         }
@@ -85,31 +113,109 @@ public class FMModel {
         return create(in, fmModel);
     }
 
+    /**
+     * @param precision embedding的存储精度
+     * @param offHeap 是否把embedding放在堆外
+     */
+    public static FMModel createByText(InputStream in, int featureSize, EmbeddingStore.Precision precision, boolean offHeap)
+            throws IOException, InputMismatchException {
+        FMModel fmModel = new FMModel(featureSize, precision, offHeap);
+        return create(in, fmModel);
+    }
+
+    /**
+     * 加载FMBinaryFormat格式的模型，文件以只读方式映射到内存，不做拷贝，不校验checksum
+     */
+    public static FMModel createByBinary(File file) throws IOException {
+        return FMBinaryFormat.read(file, false);
+    }
+
+    public static FMModel createByBinary(File file, boolean verifyChecksum) throws IOException {
+        return FMBinaryFormat.read(file, verifyChecksum);
+    }
+
+    /**
+     * 以另一种精度复制出一个模型，一阶参数共享(沿用本模型的存储方式)，offHeap只作用于embedding；
+     * 新模型的指标单独记在 <模型名>#<精度> 下，与本模型的计数分开
+     */
+    public FMModel quantize(EmbeddingStore.Precision precision, boolean offHeap) {
+        EmbeddingStore embeddings = this.embeddings == null ? null
+                : EmbeddingStore.convert(this.embeddings, precision, offHeap);
+        FMModel fmModel = new FMModel(this.featureSize, this.k, this.bias, this.dt, this.coefficients, embeddings);
+        fmModel.sigmoid = this.sigmoid;
+        fmModel.metrics = ModelMetrics.recorder("FMModel", this.metrics.getModelName()
+                + "#" + precision.name().toLowerCase() + (offHeap ? "-offheap" : ""));
+        return fmModel;
+    }
+
+    /**
+     * 在本模型上应用增量，返回新版本的模型。只复制增量涉及的页，其余参数与本模型共享，
+     * 本模型不被修改，正在用本模型打分的请求始终看到旧版本的完整参数；
+     * 新模型构造完成后再发布(如经ModelRegistry替换)，读者看到的就是一致的快照
+     * @throws IllegalArgumentException 增量的base_dt与本模型的dt不一致，或者特征编号、embedding长度不匹配
+     */
+    public FMModel applyDelta(FMDelta delta) {
+        long start = System.nanoTime();
+        FMModel fmModel = delta.apply(this);
+        fmModel.sigmoid = this.sigmoid;
+        fmModel.metrics = this.metrics;
+        fmModel.recordLoad(System.nanoTime() - start, 0);
+        return fmModel;
+    }
+
     public int getFeatureSize() { return this.featureSize; }
     public int getEmbeddingSize() { return this.k; }
     public String getDt() { return this.dt; }
+    public double getBias() { return this.bias; }
+    public EmbeddingStore getCoefficientStore() { return this.coefficients; }
+    public EmbeddingStore getEmbeddingStore() { return this.embeddings; }
+    public Sigmoid getSigmoid() { return this.sigmoid; }
+    public ModelMetrics.Recorder getMetrics() { return this.metrics; }
+    // 加载时无法解析而被丢弃的行数
+    public long getParseErrors() { return this.parseErrors; }
 
+    /**
+     * 设置sigmoid的计算方式，默认为精确计算
+     * @param sigmoid 见 Sigmoid.create(mode, maxAbsError)
+     */
+    public void setSigmoid(Sigmoid sigmoid) { this.sigmoid = sigmoid; }
+
+    /**
+     * FM模型文件中没有模型名，默认都记在 FMModel/default 下，同时服务多个FM模型时可以按名字分开统计
+     */
+    public void setMetricsName(String name) { this.metrics = ModelMetrics.recorder("FMModel", name); }
+
+    void recordLoad(long nanos, long errors) {
+        this.parseErrors = errors;
+        this.metrics.recordLoad(nanos, errors);
+    }
+
+    /**
+     * @return embedding的拷贝
+     */
     public double [] getFeatureEmbedding(int featId) {
-        return this.embeddings[featId];
+        return this.embeddings.getRow(featId);
     }
 
-    public double predict(Map<Integer, Double> data) {
-        double [] coefficients = new double[data.size()];
-        double [][] embeddings = new double[data.size()][this.k];
-        double [] featValue = new double[data.size()];
+    public void getFeatureEmbedding(int featId, double [] dst) {
+        this.embeddings.copyRow(featId, dst);
+    }
 
-        int i = 0;
-        for (Integer key : data.keySet()) {
-            coefficients[i] = this.coefficients[key];
-            embeddings[i] = this.embeddings[key];
-            featValue[i] = data.get(key);
-            i += 1;
+    public double predict(Map<Integer, Double> data) {
+        long start = metrics.start();
+        double [] sum = factorSums();
+        double firstOrder = 0;
+        double squareSum = 0;
+        for (Map.Entry<Integer, Double> entry : data.entrySet()) {
+            int index = entry.getKey();
+            double value = entry.getValue();
+            firstOrder += this.coefficients.get(index, 0) * value;
+            squareSum += accumulateEmbedding(index, value, sum);
         }
 
-        double firstOrder = calcFirstOrder(featValue, coefficients);
-        double secondOrder = calcSecondOrder(featValue, embeddings);
-
-        return 1 / (1 + Math.exp(-(this.bias + firstOrder + secondOrder)));
+        double result = sigmoid.apply(this.bias + firstOrder + calcSecondOrder(sum, squareSum));
+        metrics.record(ModelMetrics.Method.PREDICT, start, 1, data.size());
+        return result;
     }
 
     public double predict(int [] featIndex, double [] featValue) throws Exception{
@@ -117,58 +223,327 @@ public class FMModel {
             throw new Exception("fm input index's length must equals to value's length");
         }
 
-        double [] coefficients = new double[featIndex.length];
-        double [][] embeddings = new double[featIndex.length][this.k];
+        long start = metrics.start();
+        double result = score(featIndex, featValue);
+        metrics.record(ModelMetrics.Method.PREDICT, start, 1, featIndex.length);
+        return result;
+    }
+
+    private double score(int [] featIndex, double [] featValue) {
+        double [] sum = factorSums();
+        double firstOrder = 0;
+        double squareSum = 0;
         for (int i = 0; i < featIndex.length; i++) {
-            coefficients[i] = this.coefficients[featIndex[i]];
-            embeddings[i] = this.embeddings[featIndex[i]];
+            firstOrder += this.coefficients.get(featIndex[i], 0) * featValue[i];
+            squareSum += accumulateEmbedding(featIndex[i], featValue[i], sum);
+        }
+
+        return sigmoid.apply(this.bias + firstOrder + calcSecondOrder(sum, squareSum));
+    }
+
+    /**
+     * 对FeatureFrame批量预测，特征名为特征编号的十进制字符串，超出featureSize的特征忽略。
+     * 稠密列中取0.0的值与未填写相同，跳过；其余按FeatureFrame中的顺序累加，
+     * 结果与按同样顺序调用predict(int[], double[])相同
+     */
+    public double [] predict(FeatureFrame frame) {
+        long start = metrics.start();
+        FeatureSchema.Binding slots = binding(frame.getSchema());
+        int rows = frame.getRowCount();
+        double [] scores = new double[rows];
+        int [] sparseIds = frame.getSparseIds();
+        double [] sparseValues = frame.getSparseValues();
+        double [] sum = factorSums();
+        for (int row = 0; row < rows; row++) {
+            Arrays.fill(sum, 0);
+            double firstOrder = 0;
+            double squareSum = 0;
+            for (int i = 0; i < frame.getDenseCount(); i++) {
+                int id = frame.getDenseId(i);
+                int slot = slots.slot(id);
+                double value = frame.getColumn(id)[row];
+                if (slot >= 0 && value != 0) {
+                    firstOrder += this.coefficients.get(slot, 0) * value;
+                    squareSum += accumulateEmbedding(slot, value, sum);
+                }
+            }
+            for (int i = frame.getSparseStart(row), end = frame.getSparseEnd(row); i < end; i++) {
+                int slot = slots.slot(sparseIds[i]);
+                if (slot >= 0) {
+                    firstOrder += this.coefficients.get(slot, 0) * sparseValues[i];
+                    squareSum += accumulateEmbedding(slot, sparseValues[i], sum);
+                }
+            }
+            scores[row] = sigmoid.apply(this.bias + firstOrder + calcSecondOrder(sum, squareSum));
         }
+        metrics.record(ModelMetrics.Method.PREDICT_FRAME, start, rows, frame.getValueCount());
+        return scores;
+    }
 
-        double firstOrder = calcFirstOrder(featValue, coefficients);
-        double secondOrder = calcSecondOrder(featValue, embeddings);
+    private FeatureSchema.Binding binding(FeatureSchema schema) {
+        FeatureSchema.Binding result = this.binding;
+        if (result == null || !result.isCurrent(schema)) {
+            int limit = this.featureSize;
+            result = schema.bind(name -> FeatureSchema.parseIndex(name, limit));
+            this.binding = result;
+        }
+        return result;
+    }
 
-        return 1 / (1 + Math.exp(-(this.bias + firstOrder + secondOrder)));
+    /**
+     * 计算上下文(用户侧)特征的一阶项和二阶项的部分和，供scoreCandidates对大量候选复用，
+     * 返回的Context不可变，可以跨线程共享，只能用于创建它的模型
+     */
+    public Context prepareContext(int [] featIndex, double [] featValue) {
+        if (featIndex.length != featValue.length) {
+            throw new IllegalArgumentException("fm input index's length must equals to value's length");
+        }
+        double [] sum = new double[this.k];
+        double firstOrder = 0;
+        double squareSum = 0;
+        for (int i = 0; i < featIndex.length; i++) {
+            firstOrder += this.coefficients.get(featIndex[i], 0) * featValue[i];
+            squareSum += accumulateEmbedding(featIndex[i], featValue[i], sum);
+        }
+        return new Context(this, firstOrder, squareSum, sum, featIndex.length);
     }
 
-    private double calcFirstOrder(double [] featValue, double[] coefficients) {
-        RealVector vectorA = new ArrayRealVector(featValue, false);
-        RealVector vectorB = new ArrayRealVector(coefficients, false);
-        return vectorA.dotProduct(vectorB);
+    /**
+     * 对每个候选打分，每个候选只需要计算自身的特征，O(k·候选特征数)，
+     * 结果与把上下文特征和候选特征依次拼接后调用predict相同
+     * @param itemIndex 每个候选的特征编号
+     * @param itemValue 每个候选的特征值，为null时都取1.0
+     * @return 每个候选的预测分
+     */
+    public double [] scoreCandidates(Context context, int [][] itemIndex, double [][] itemValue) {
+        double [] scores = new double[itemIndex.length];
+        scoreCandidates(context, itemIndex, itemValue, scores);
+        return scores;
     }
 
-    private double calcSecondOrder(double [] featValue, double[][] embeddings) {
-        RealMatrix matrix = new Array2DRowRealMatrix(embeddings, false);
-        RealVector featVector = new ArrayRealVector(featValue, false);
-        double secondOrder = 0;
-        for (int f  = 0; f < this.k; f++) {
-            RealVector vif = matrix.getColumnVector(f);
-            double dot = featVector.dotProduct(vif);
-            double sumSquare = dot * dot;
+    /**
+     * 同上，结果写入调用方提供的scores，不分配内存
+     */
+    public void scoreCandidates(Context context, int [][] itemIndex, double [][] itemValue, double [] scores) {
+        checkCandidates(context, itemIndex, itemValue);
+        long start = metrics.start();
+        long features = 0;
+        double [] sum = factorSums();
+        for (int i = 0; i < itemIndex.length; i++) {
+            scores[i] = scoreCandidate(context, itemIndex[i], itemValue == null ? null : itemValue[i], sum);
+            features += itemIndex[i].length;
+        }
+        metrics.record(ModelMetrics.Method.SCORE_CANDIDATES, start, itemIndex.length, features);
+    }
 
-            double squareSum = 0;
-            for (int i = 0; i < featValue.length; i++) {
-                squareSum += featValue[i] * featValue[i] * vif.getEntry(i) * vif.getEntry(i);
+    /**
+     * 对候选打分并取分数最高的topK个，按分数从高到低排列，分数相同时下标小的在前
+     */
+    public TopK scoreCandidates(Context context, int [][] itemIndex, double [][] itemValue, int topK) {
+        checkCandidates(context, itemIndex, itemValue);
+        long start = metrics.start();
+        long features = 0;
+        double [] sum = factorSums();
+        int size = Math.max(0, Math.min(topK, itemIndex.length));
+        // 以堆顶为当前第size名的小顶堆
+        int [] heapIndex = new int[size];
+        double [] heapScore = new double[size];
+        int count = 0;
+        for (int i = 0; i < itemIndex.length; i++) {
+            double score = scoreCandidate(context, itemIndex[i], itemValue == null ? null : itemValue[i], sum);
+            features += itemIndex[i].length;
+            if (count < size) {
+                heapIndex[count] = i;
+                heapScore[count] = score;
+                siftUp(heapIndex, heapScore, count++);
+            } else if (size > 0 && score > heapScore[0]) {
+                heapIndex[0] = i;
+                heapScore[0] = score;
+                siftDown(heapIndex, heapScore, size);
             }
+        }
+        // 依次弹出堆顶，从后往前填
+        for (int n = count - 1; n > 0; n--) {
+            swap(heapIndex, heapScore, 0, n);
+            siftDown(heapIndex, heapScore, n);
+        }
+        metrics.record(ModelMetrics.Method.SCORE_CANDIDATES, start, itemIndex.length, features);
+        return new TopK(heapIndex, heapScore);
+    }
+
+    private void checkCandidates(Context context, int [][] itemIndex, double [][] itemValue) {
+        if (context.model != this) {
+            throw new IllegalArgumentException("fm context was prepared by another model");
+        }
+        if (itemValue != null && itemValue.length != itemIndex.length) {
+            throw new IllegalArgumentException("fm candidate index's length must equals to value's length");
+        }
+    }
+
+    private double scoreCandidate(Context context, int [] index, double [] value, double [] sum) {
+        if (value != null && value.length != index.length) {
+            throw new IllegalArgumentException("fm input index's length must equals to value's length");
+        }
+        System.arraycopy(context.sum, 0, sum, 0, this.k);
+        double firstOrder = context.firstOrder;
+        double squareSum = context.squareSum;
+        for (int j = 0; j < index.length; j++) {
+            double x = value == null ? 1.0 : value[j];
+            firstOrder += this.coefficients.get(index[j], 0) * x;
+            squareSum += accumulateEmbedding(index[j], x, sum);
+        }
+        return sigmoid.apply(this.bias + firstOrder + calcSecondOrder(sum, squareSum));
+    }
+
+    /**
+     * 小顶堆比较：分数低的在上，分数相同时下标大的在上，先被淘汰
+     */
+    private static boolean lower(int [] index, double [] score, int a, int b) {
+        return score[a] < score[b] || (score[a] == score[b] && index[a] > index[b]);
+    }
+
+    private static void siftUp(int [] index, double [] score, int node) {
+        while (node > 0) {
+            int parent = (node - 1) >>> 1;
+            if (!lower(index, score, node, parent)) {
+                break;
+            }
+            swap(index, score, node, parent);
+            node = parent;
+        }
+    }
+
+    private static void siftDown(int [] index, double [] score, int size) {
+        int node = 0;
+        while (true) {
+            int child = 2 * node + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && lower(index, score, child + 1, child)) {
+                child++;
+            }
+            if (!lower(index, score, child, node)) {
+                break;
+            }
+            swap(index, score, node, child);
+            node = child;
+        }
+    }
+
+    private static void swap(int [] index, double [] score, int a, int b) {
+        int i = index[a];
+        index[a] = index[b];
+        index[b] = i;
+        double s = score[a];
+        score[a] = score[b];
+        score[b] = s;
+    }
+
+    /**
+     * prepareContext的结果：上下文特征的一阶项、Σv·x 和 Σ(v·x)²
+     */
+    public static final class Context {
+        private final FMModel model;
+        private final double firstOrder;
+        private final double squareSum;
+        private final double [] sum;
+        private final int featureCount;
+
+        private Context(FMModel model, double firstOrder, double squareSum, double [] sum, int featureCount) {
+            this.model = model;
+            this.firstOrder = firstOrder;
+            this.squareSum = squareSum;
+            this.sum = sum;
+            this.featureCount = featureCount;
+        }
+
+        public int getFeatureCount() { return this.featureCount; }
+    }
+
+    /**
+     * 分数最高的候选，按分数从高到低排列
+     */
+    public static final class TopK {
+        private final int [] indexes;
+        private final double [] scores;
+
+        private TopK(int [] indexes, double [] scores) {
+            this.indexes = indexes;
+            this.scores = scores;
+        }
+
+        // 候选在输入中的下标
+        public int [] getIndexes() { return this.indexes; }
+        public double [] getScores() { return this.scores; }
+        public int size() { return this.indexes.length; }
+    }
+
+    /**
+     * 用随机的稀疏样本做预测，让JIT提前编译打分路径，模型上线前调用，不计入ModelMetrics
+     * @param rows 合成的行数
+     */
+    public void warmUp(int rows) throws Exception {
+        Random random = new Random(rows);
+        int [] featIndex = new int[Math.min(32, this.featureSize)];
+        double [] featValue = new double[featIndex.length];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < featIndex.length; j++) {
+                featIndex[j] = random.nextInt(this.featureSize);
+                featValue[j] = random.nextBoolean() ? 1.0 : random.nextDouble();
+            }
+            score(featIndex, featValue);
+        }
+    }
+
+    /**
+     * 单遍计算二阶项：sum[f]累加 Σv·x，返回值累加 Σ(v·x)²，直接读取模型的embedding存储，不做拷贝
+     */
+    private double accumulateEmbedding(int index, double value, double [] sum) {
+        if (this.k == 0) {
+            return 0;
+        }
+        return this.embeddings.accumulate(index, value, sum);
+    }
+
+    private double calcSecondOrder(double [] sum, double squareSum) {
+        double sumSquare = 0;
+        for (int f = 0; f < this.k; f++) {
+            sumSquare += sum[f] * sum[f];
+        }
+        return 0.5 * (sumSquare - squareSum);
+    }
 
-            secondOrder += (sumSquare - squareSum);
+    /**
+     * @return 当前线程复用的长度为k的累加数组，已清零
+     */
+    private double [] factorSums() {
+        double [] sum = this.factorSums.get();
+        if (sum.length != this.k) {
+            sum = new double[this.k];
+            this.factorSums.set(sum);
         }
-        return 0.5 * secondOrder;
+        Arrays.fill(sum, 0);
+        return sum;
     }
 
     private static FMModel create(InputStream in, FMModel fmModel) throws IOException, InputMismatchException {
+        long start = System.nanoTime();
         InputStreamReader input = new InputStreamReader(in);
         BufferedReader bf = new BufferedReader(input);
         // 按行读取字符串
         String str;
+        long errors = 0;
         // bf.readLine();
         while ((str = bf.readLine()) != null) {
             try {
                 parseRow(str, fmModel);
             } catch (Exception e) {
-                System.out.println(str);
+                errors++;
             }
         }
 
+        fmModel.recordLoad(System.nanoTime() - start, errors);
         return fmModel;
     }
 
@@ -0,0 +1,157 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 评估embedding量化对FM模型的影响：以fp64模型为基准，给出每种精度的AUC、打分漂移和embedding占用
+ * 用法: java FMQuantizationReport <模型文件> <featureSize> <样本文件>
+ * 样本文件每行为 label idx:value idx:value ...，label大于0为正样本
+ */
+public class FMQuantizationReport {
+
+    public static class Sample {
+        private final boolean positive;
+        private final int [] featIndex;
+        private final double [] featValue;
+
+        public Sample(boolean positive, int [] featIndex, double [] featValue) {
+            this.positive = positive;
+            this.featIndex = featIndex;
+            this.featValue = featValue;
+        }
+    }
+
+    public static class Result {
+        private final EmbeddingStore.Precision precision;
+        private final double auc;
+        private final double maxDrift;
+        private final double meanDrift;
+        private final long embeddingBytes;
+
+        Result(EmbeddingStore.Precision precision, double auc, double maxDrift, double meanDrift, long embeddingBytes) {
+            this.precision = precision;
+            this.auc = auc;
+            this.maxDrift = maxDrift;
+            this.meanDrift = meanDrift;
+            this.embeddingBytes = embeddingBytes;
+        }
+
+        public EmbeddingStore.Precision getPrecision() { return this.precision; }
+        public double getAuc() { return this.auc; }
+        public double getMaxDrift() { return this.maxDrift; }
+        public double getMeanDrift() { return this.meanDrift; }
+        public long getEmbeddingBytes() { return this.embeddingBytes; }
+
+        @Override
+        public String toString() {
+            return String.format("%-5s auc=%.6f maxDrift=%.3e meanDrift=%.3e embeddingBytes=%d",
+                    precision, auc, maxDrift, meanDrift, embeddingBytes);
+        }
+    }
+
+    /**
+     * @param base fp64精度的模型
+     * @return 依次为FP64(基准)、FP32、FP16、INT8的结果
+     */
+    public static List<Result> evaluate(FMModel base, List<Sample> samples) throws Exception {
+        double [] baseScores = score(base, samples);
+        List<Result> results = new ArrayList<>();
+        for (EmbeddingStore.Precision precision : EmbeddingStore.Precision.values()) {
+            FMModel model = precision == base.getEmbeddingStore().getPrecision()
+                    ? base : base.quantize(precision, false);
+            double [] scores = model == base ? baseScores : score(model, samples);
+            double maxDrift = 0;
+            double totalDrift = 0;
+            for (int i = 0; i < scores.length; i++) {
+                double drift = Math.abs(scores[i] - baseScores[i]);
+                maxDrift = Math.max(maxDrift, drift);
+                totalDrift += drift;
+            }
+            results.add(new Result(precision, auc(samples, scores), maxDrift,
+                    scores.length == 0 ? 0 : totalDrift / scores.length, model.getEmbeddingStore().sizeInBytes()));
+        }
+        return results;
+    }
+
+    public static List<Sample> readSamples(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        List<Sample> samples = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String [] cols = line.trim().split("\\s+");
+            if (cols.length == 0 || cols[0].isEmpty()) {
+                continue;
+            }
+            int [] featIndex = new int[cols.length - 1];
+            double [] featValue = new double[cols.length - 1];
+            for (int i = 1; i < cols.length; i++) {
+                String [] kv = cols[i].split(":");
+                featIndex[i - 1] = Integer.parseInt(kv[0]);
+                featValue[i - 1] = kv.length > 1 ? Double.parseDouble(kv[1]) : 1.0;
+            }
+            samples.add(new Sample(Double.parseDouble(cols[0]) > 0, featIndex, featValue));
+        }
+        return samples;
+    }
+
+    private static double [] score(FMModel model, List<Sample> samples) throws Exception {
+        double [] scores = new double[samples.size()];
+        for (int i = 0; i < scores.length; i++) {
+            Sample sample = samples.get(i);
+            scores[i] = model.predict(sample.featIndex, sample.featValue);
+        }
+        return scores;
+    }
+
+    /**
+     * 按秩和计算AUC，分数相同的样本取平均秩
+     */
+    static double auc(List<Sample> samples, double [] scores) {
+        Integer [] order = new Integer[scores.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(scores[a], scores[b]));
+
+        long positives = 0;
+        double rankSum = 0;
+        for (int i = 0; i < order.length; ) {
+            int j = i;
+            while (j + 1 < order.length && scores[order[j + 1]] == scores[order[i]]) {
+                j++;
+            }
+            double rank = (i + j) / 2.0 + 1;
+            for (int m = i; m <= j; m++) {
+                if (samples.get(order[m]).positive) {
+                    positives++;
+                    rankSum += rank;
+                }
+            }
+            i = j + 1;
+        }
+        long negatives = order.length - positives;
+        if (positives == 0 || negatives == 0) {
+            return Double.NaN;
+        }
+        return (rankSum - positives * (positives + 1) / 2.0) / ((double) positives * negatives);
+    }
+
+    public static void main(String [] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("usage: FMQuantizationReport <model file> <feature size> <sample file>");
+            System.exit(1);
+        }
+        FMModel base;
+        try (InputStream in = new FileInputStream(args[0])) {
+            base = FMModel.createByText(in, Integer.parseInt(args[1]));
+        }
+        List<Sample> samples;
+        try (InputStream in = new FileInputStream(args[2])) {
+            samples = readSamples(in);
+        }
+        for (Result result : evaluate(base, samples)) {
+            System.out.println(result);
+        }
+    }
+}
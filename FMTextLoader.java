@@ -0,0 +1,610 @@
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 并行加载文本格式的FM模型：文件按行对齐切成若干字节区间，每个区间映射到内存后由一个线程解析，
+ * 直接写入预先分配好的EmbeddingStore。数字用手写的ASCII解析器，解析不了的再交给Double.parseDouble。
+ * 行格式与FMModel.createByText相同，坏行只计数并保留少量样例，不再打印到标准输出。
+ * 同一个特征出现多次时保留哪一行不确定，bias和dt取文件中最后出现的一行
+ */
+public class FMTextLoader {
+
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+    private static final int MAX_CHUNK_BYTES = 1 << 28;
+    private static final int MAX_MALFORMED_SAMPLES = 10;
+    private static final int MAX_SAMPLE_CHARS = 200;
+
+    // 2^53，尾数不超过它时可以精确表示
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double [] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // 5的幂的64位归一化截断值，覆盖double能表示的十进制指数范围
+    private static final int MIN_POWER = -342;
+    private static final int MAX_POWER = 308;
+    private static final long [] FIVE_POWERS = new long[MAX_POWER - MIN_POWER + 1];
+    private static final int [] FIVE_EXPONENTS = new int[MAX_POWER - MIN_POWER + 1];
+
+    static {
+        for (int q = MIN_POWER; q <= MAX_POWER; q++) {
+            BigInteger five = BigInteger.valueOf(5).pow(Math.abs(q));
+            int length = five.bitLength();
+            BigInteger value;
+            int exponent;
+            if (q >= 0) {
+                value = length > 64 ? five.shiftRight(length - 64) : five.shiftLeft(64 - length);
+                exponent = length - 64;
+            } else {
+                value = BigInteger.ONE.shiftLeft(length + 63).divide(five);
+                exponent = -(length + 63);
+            }
+            FIVE_POWERS[q - MIN_POWER] = value.longValue();
+            FIVE_EXPONENTS[q - MIN_POWER] = exponent;
+        }
+    }
+
+    public static class LoadResult {
+        private final FMModel model;
+        private final long lines;
+        private final long malformedLines;
+        private final long skippedLines;
+        private final long bytes;
+        private final long elapsedNanos;
+        private final int threads;
+        private final List<String> malformedSamples;
+
+        LoadResult(FMModel model, long lines, long malformedLines, long skippedLines, long bytes,
+                   long elapsedNanos, int threads, List<String> malformedSamples) {
+            this.model = model;
+            this.lines = lines;
+            this.malformedLines = malformedLines;
+            this.skippedLines = skippedLines;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.threads = threads;
+            this.malformedSamples = malformedSamples;
+        }
+
+        public FMModel getModel() { return this.model; }
+        public long getLines() { return this.lines; }
+        public long getMalformedLines() { return this.malformedLines; }
+        // 空行和无法识别前缀的行，与createByText一样直接忽略
+        public long getSkippedLines() { return this.skippedLines; }
+        public long getBytes() { return this.bytes; }
+        public long getElapsedNanos() { return this.elapsedNanos; }
+        public int getThreads() { return this.threads; }
+
+        /**
+         * @return 前几条坏行，格式为 "offset <字节偏移>: <行内容>"
+         */
+        public List<String> getMalformedSamples() { return this.malformedSamples; }
+
+        public double getMegabytesPerSecond() {
+            return this.elapsedNanos == 0 ? 0 : this.bytes / 1e6 / (this.elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("lines=%d malformed=%d skipped=%d bytes=%d threads=%d elapsed=%.1fms throughput=%.1fMB/s",
+                    lines, malformedLines, skippedLines, bytes, threads, elapsedNanos / 1e6, getMegabytesPerSecond());
+        }
+    }
+
+    private FMTextLoader() {}
+
+    public static LoadResult load(File file, int featureSize) throws IOException {
+        return load(file, featureSize, EmbeddingStore.Precision.FP64, false, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param precision embedding的存储精度
+     * @param offHeap 是否把参数放在堆外
+     * @param threads 解析线程数
+     */
+    public static LoadResult load(File file, int featureSize, EmbeddingStore.Precision precision, boolean offHeap,
+                                  int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        long start = System.nanoTime();
+        Target target = new Target(featureSize, precision, offHeap);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long [] bounds = split(channel, size, threads);
+            int chunkCount = bounds.length - 1;
+            List<Chunk> chunks = new ArrayList<>(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                chunks.add(new Chunk(bounds[i], bounds[i + 1]));
+            }
+
+            int poolSize = Math.min(threads, chunkCount);
+            if (poolSize <= 1) {
+                for (Chunk chunk : chunks) {
+                    chunk.parse(channel, target);
+                }
+            } else {
+                ExecutorService executor = Executors.newFixedThreadPool(poolSize, r -> {
+                    Thread thread = new Thread(r, "fm-text-loader");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                try {
+                    List<Future<?>> futures = new ArrayList<>(chunkCount);
+                    for (Chunk chunk : chunks) {
+                        futures.add(executor.submit(() -> {
+                            chunk.parse(channel, target);
+                            return null;
+                        }));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("fm text loading is interrupted", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+
+            long lines = 0;
+            long malformed = 0;
+            long skipped = 0;
+            double bias = 0;
+            String dt = null;
+            List<String> samples = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                lines += chunk.lines;
+                malformed += chunk.malformed;
+                skipped += chunk.skipped;
+                if (chunk.hasBias) {
+                    bias = chunk.bias;
+                }
+                if (chunk.dt != null) {
+                    dt = chunk.dt;
+                }
+                for (String sample : chunk.samples) {
+                    if (samples.size() < MAX_MALFORMED_SAMPLES) {
+                        samples.add(sample);
+                    }
+                }
+            }
+            FMModel model = new FMModel(featureSize, target.k, bias, dt, target.coefficients, target.embeddings);
+            long elapsed = System.nanoTime() - start;
+            model.recordLoad(elapsed, malformed);
+            return new LoadResult(model, lines, malformed, skipped, size, elapsed, poolSize,
+                    Collections.unmodifiableList(samples));
+        }
+    }
+
+    /**
+     * @return 各区间的起止偏移，每个起点都是某一行的行首
+     */
+    private static long [] split(FileChannel channel, long size, int threads) throws IOException {
+        long chunkBytes = Math.max(MIN_CHUNK_BYTES, Math.min(MAX_CHUNK_BYTES, size / ((long) threads * 4) + 1));
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = 0;
+        while (size - position > chunkBytes) {
+            long next = nextLineStart(channel, position + chunkBytes, size, buffer);
+            if (next >= size) {
+                break;
+            }
+            bounds.add(next);
+            position = next;
+        }
+        bounds.add(size);
+        long [] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static long nextLineStart(FileChannel channel, long from, long size, ByteBuffer buffer) throws IOException {
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * 各线程共享的写入目标，embedding表在第一次遇到v_行时按其长度分配
+     */
+    private static class Target {
+        final int featureSize;
+        final EmbeddingStore.Precision precision;
+        final boolean offHeap;
+        final EmbeddingStore coefficients;
+        int k;
+        EmbeddingStore embeddings;
+
+        Target(int featureSize, EmbeddingStore.Precision precision, boolean offHeap) {
+            this.featureSize = featureSize;
+            this.precision = precision;
+            this.offHeap = offHeap;
+            this.coefficients = EmbeddingStore.allocate(EmbeddingStore.Precision.FP64, featureSize, 1, offHeap);
+        }
+
+        synchronized EmbeddingStore embeddings(int k) {
+            if (this.embeddings == null) {
+                this.k = k;
+                this.embeddings = EmbeddingStore.allocate(precision, featureSize, k, offHeap);
+            }
+            return this.embeddings;
+        }
+    }
+
+    private static class Chunk {
+        final long start;
+        final long end;
+        long lines;
+        long malformed;
+        long skipped;
+        boolean hasBias;
+        double bias;
+        String dt;
+        final List<String> samples = new ArrayList<>();
+
+        private ByteBuffer buffer;
+        private EmbeddingStore embeddings;
+        private double [] row = new double[16];
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        void parse(FileChannel channel, Target target) throws IOException {
+            int length = (int) (end - start);
+            if (length == 0) {
+                return;
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            int lineStart = 0;
+            for (int i = 0; i <= length; i++) {
+                if (i == length || buffer.get(i) == '\n') {
+                    if (i > lineStart || i < length) {
+                        lines++;
+                        try {
+                            if (!parseLine(lineStart, i, target)) {
+                                skipped++;
+                            }
+                        } catch (RuntimeException e) {
+                            malformed++;
+                            if (samples.size() < MAX_MALFORMED_SAMPLES) {
+                                samples.add("offset " + (start + lineStart) + ": "
+                                        + text(lineStart, Math.min(i, lineStart + MAX_SAMPLE_CHARS)));
+                            }
+                        }
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            this.buffer = null;
+        }
+
+        /**
+         * @return false表示空行或无法识别的行
+         */
+        private boolean parseLine(int from, int to, Target target) {
+            while (from < to && isSpace(buffer.get(from))) {
+                from++;
+            }
+            while (to > from && isSpace(buffer.get(to - 1))) {
+                to--;
+            }
+            if (from == to) {
+                return false;
+            }
+            int colon = from;
+            while (colon < to && buffer.get(colon) != ':') {
+                colon++;
+            }
+            // 与 split(":") 一致，值只取到下一个冒号为止
+            int valueEnd = colon + 1;
+            while (valueEnd < to && buffer.get(valueEnd) != ':') {
+                valueEnd++;
+            }
+
+            if (keyEquals(from, colon, "dt")) {
+                checkValue(colon, to);
+                dt = text(colon + 1, valueEnd).trim();
+            } else if (keyEquals(from, colon, "bias")) {
+                checkValue(colon, to);
+                bias = parseDouble(buffer, colon + 1, valueEnd);
+                hasBias = true;
+            } else if (keyStartsWith(from, colon, 'i')) {
+                checkValue(colon, to);
+                int index = parseIndex(from + 2, colon, target.featureSize);
+                target.coefficients.set(index, 0, parseDouble(buffer, colon + 1, valueEnd));
+            } else if (keyStartsWith(from, colon, 'v')) {
+                checkValue(colon, to);
+                int index = parseIndex(from + 2, colon, target.featureSize);
+                int k = parseRow(colon + 1, valueEnd);
+                if (embeddings == null) {
+                    embeddings = target.embeddings(k);
+                }
+                if (k != embeddings.getK()) {
+                    throw new IllegalArgumentException("the embedding size is mismatch!");
+                }
+                embeddings.set(index, row);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private int parseRow(int from, int to) {
+            int count = 0;
+            int i = from;
+            while (true) {
+                while (i < to && isSpace(buffer.get(i))) {
+                    i++;
+                }
+                if (i == to) {
+                    break;
+                }
+                int tokenEnd = i;
+                while (tokenEnd < to && !isSpace(buffer.get(tokenEnd))) {
+                    tokenEnd++;
+                }
+                if (count == row.length) {
+                    double [] grown = new double[row.length * 2];
+                    System.arraycopy(row, 0, grown, 0, row.length);
+                    row = grown;
+                }
+                row[count++] = parseDouble(buffer, i, tokenEnd);
+                i = tokenEnd;
+            }
+            if (count == 0) {
+                throw new IllegalArgumentException("empty embedding");
+            }
+            return count;
+        }
+
+        private int parseIndex(int from, int to, int featureSize) {
+            while (from < to && isSpace(buffer.get(from))) {
+                from++;
+            }
+            while (to > from && isSpace(buffer.get(to - 1))) {
+                to--;
+            }
+            if (from == to) {
+                throw new IllegalArgumentException("missing feature id");
+            }
+            long value = 0;
+            for (int i = from; i < to; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IllegalArgumentException("bad feature id");
+                }
+                value = value * 10 + digit;
+                if (value >= featureSize) {
+                    throw new IllegalArgumentException("feat_id from model is greater than feature_size");
+                }
+            }
+            return (int) value;
+        }
+
+        private boolean keyEquals(int from, int to, String key) {
+            if (to - from != key.length()) {
+                return false;
+            }
+            for (int i = 0; i < key.length(); i++) {
+                if (buffer.get(from + i) != key.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean keyStartsWith(int from, int to, char prefix) {
+            return to - from >= 2 && buffer.get(from) == prefix && buffer.get(from + 1) == '_';
+        }
+
+        private void checkValue(int colon, int to) {
+            if (colon >= to) {
+                throw new IllegalArgumentException("missing value");
+            }
+        }
+
+        private String text(int from, int to) {
+            return FMTextLoader.text(buffer, from, to);
+        }
+    }
+
+    /**
+     * 解析buffer中[from, to)的十进制数，允许前后有空白，格式不对时抛出NumberFormatException
+     * 1. 尾数不超过2^53且10的指数在±22以内时，尾数和10的幂都能精确表示，一次乘除即得到正确舍入的结果(Clinger)
+     * 2. 尾数不超过18位时用64位截断的5的幂相乘(Eisel-Lemire)，只有乘积的舍入位可能受截断误差影响时才放弃
+     * 3. 其余情况(更长的尾数、非规格化数、NaN、Infinity等)交给Double.parseDouble
+     */
+    static double parseDouble(ByteBuffer buffer, int from, int to) {
+        while (from < to && isSpace(buffer.get(from))) {
+            from++;
+        }
+        while (to > from && isSpace(buffer.get(to - 1))) {
+            to--;
+        }
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                seenDigit = true;
+                if (mantissa == 0 && b == '0') {
+                    // 前导零不占有效位
+                    if (seenPoint) {
+                        exponent--;
+                    }
+                    continue;
+                }
+                if (++digits > 18) {
+                    return fallback(buffer, from, to);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (seenPoint) {
+                    exponent--;
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (!seenDigit) {
+            return fallback(buffer, from, to);
+        }
+        if (i < to) {
+            byte b = buffer.get(i);
+            if (b != 'e' && b != 'E') {
+                return fallback(buffer, from, to);
+            }
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negativeExponent = buffer.get(i) == '-';
+                i++;
+            }
+            if (i == to) {
+                return fallback(buffer, from, to);
+            }
+            int value = 0;
+            for (; i < to; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9 || value > 100000) {
+                    return fallback(buffer, from, to);
+                }
+                value = value * 10 + digit;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        double result;
+        if (mantissa == 0) {
+            result = 0;
+        } else if (mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            result = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        } else {
+            result = eiselLemire(mantissa, exponent);
+            if (Double.isNaN(result)) {
+                return fallback(buffer, from, to);
+            }
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * 计算 mantissa * 10^exponent，无法确定正确舍入或结果不是规格化数时返回NaN
+     */
+    private static double eiselLemire(long mantissa, int exponent) {
+        if (exponent < MIN_POWER || exponent > MAX_POWER) {
+            return Double.NaN;
+        }
+        // 5^q ≈ FIVE_POWERS[q] * 2^FIVE_EXPONENTS[q]，表项向下截断，误差小于1
+        long power = FIVE_POWERS[exponent - MIN_POWER];
+        int leadingZeros = Long.numberOfLeadingZeros(mantissa);
+        long normalized = mantissa << leadingZeros;
+        long upper = unsignedMultiplyHigh(normalized, power);
+        int upperBit = (int) (upper >>> 63);
+        long bits = upper >>> (upperBit + 9);
+        // 截断误差最多让upper加1：舍去的低9位全为1时可能进位到尾数，全为0时可能正好是舍入的一半，这两种情况放弃
+        if ((upper & 0x1FF) == 0x1FF || ((upper & 0x1FF) == 0 && (bits & 3) == 1)) {
+            return Double.NaN;
+        }
+        int binaryExponent = FIVE_EXPONENTS[exponent - MIN_POWER] + exponent - leadingZeros + upperBit + 74;
+        bits = (bits + 1) >>> 1;
+        if (bits == 1L << 53) {
+            bits = 1L << 52;
+            binaryExponent++;
+        }
+        int biased = binaryExponent + 52 + 1023;
+        if (biased < 1 || biased > 2046) {
+            return Double.NaN;
+        }
+        return Double.longBitsToDouble(((long) biased << 52) | (bits & ((1L << 52) - 1)));
+    }
+
+    private static long unsignedMultiplyHigh(long x, long y) {
+        long x1 = x >> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+        long signedHigh = x1 * y1 + (t >> 32) + (z1 >> 32);
+        return signedHigh + ((x >> 63) & y) + ((y >> 63) & x);
+    }
+
+    private static double fallback(ByteBuffer buffer, int from, int to) {
+        return Double.parseDouble(text(buffer, from, to));
+    }
+
+    static String text(ByteBuffer buffer, int from, int to) {
+        byte [] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    public static void main(String [] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: FMTextLoader <text model> <feature size> [FP64|FP32|FP16|INT8] [threads]");
+            System.exit(1);
+        }
+        EmbeddingStore.Precision precision = args.length > 2
+                ? EmbeddingStore.Precision.valueOf(args[2]) : EmbeddingStore.Precision.FP64;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        LoadResult result = load(new File(args[0]), Integer.parseInt(args[1]), precision, false, threads);
+        System.out.println(result);
+        for (String sample : result.getMalformedSamples()) {
+            System.out.println(sample);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.ymkigeg.ml.pmml;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * GBDT的预分箱输入：加载后收集每个特征上所有分裂用到的阈值作为切分点，把输入值量化成小整数箱号，
+ * 树节点改为比较箱号。一行只需量化一次，按列存放的箱号每个值占1或2个字节，比double[]小4到8倍，
+ * 适合离线大表的批量打分。
+ * 箱0保留给NaN，走defaultLeft；其余值按切分点落入箱1..n+1，切分点包含每个阈值本身，
+ * "=="分裂的每个取值单独占一个箱，因此结果与按double预测逐位相同。
+ * 比较按doubleToLongBits的全序进行，-0.0与0.0在"=="分裂中可以区分，与FlatForest一致
+ */
+public final class FeatureBinner {
+
+    public static final int MISSING_BIN = 0;
+    private static final int PARALLEL_THRESHOLD = 2048;
+
+    private final String [] featureNames;
+    private final Map<String, Integer> featureIndex;
+    // 每个特征切分点的可比较键，升序；没有被任何树使用的特征为null
+    private final long [][] cuts;
+    // Map输入中未出现的特征取0.0，对应的箱号
+    private final int [] zeroBin;
+
+    // 与FlatForest相同结构的树，阈值换成箱号
+    private final int [] roots;
+    private final int [] feature;
+    private final int [] left;
+    private final int [] right;
+    private final byte [] flags;
+    private final double [] leafValue;
+    // 数值分裂：箱号在[minBin, splitBin]之间时走左边，defaultLeft的节点minBin为0，缺失箱也走左边
+    private final int [] splitBin;
+    private final int [] minBin;
+    // "=="分裂：走左边的箱号，升序
+    private final int [][] categoryBins;
+    private final int blockRows;
+
+    FeatureBinner(FlatForest forest, String [] featureNames, Map<String, Integer> featureIndex) {
+        this.featureNames = featureNames;
+        this.featureIndex = featureIndex;
+        int features = featureNames.length;
+        int nodes = forest.nodeCount();
+
+        long [][] keys = new long[features][];
+        int [] counts = new int[features];
+        for (int node = 0; node < nodes; node++) {
+            int f = forest.feature[node];
+            if (f < 0) {
+                continue;
+            }
+            if (forest.categories[node] != null) {
+                for (double value : forest.categories[node]) {
+                    if (value == value) {
+                        // 前一个键作为切分点，让该取值单独成箱
+                        long key = key(value);
+                        keys[f] = append(keys[f], counts[f]++, key - 1);
+                        keys[f] = append(keys[f], counts[f]++, key);
+                    }
+                }
+            } else {
+                keys[f] = append(keys[f], counts[f]++, key(numericThreshold(forest.threshold[node])));
+            }
+        }
+        this.cuts = new long[features][];
+        for (int f = 0; f < features; f++) {
+            if (keys[f] == null) {
+                continue;
+            }
+            long [] sorted = Arrays.copyOf(keys[f], counts[f]);
+            Arrays.sort(sorted);
+            int unique = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[unique++] = sorted[i];
+                }
+            }
+            if (unique + 2 > 65536) {
+                throw new IllegalStateException("feature " + featureNames[f] + " has too many split points to bin: " + unique);
+            }
+            this.cuts[f] = Arrays.copyOf(sorted, unique);
+        }
+
+        this.zeroBin = new int[features];
+        for (int f = 0; f < features; f++) {
+            this.zeroBin[f] = bin(f, 0.0);
+        }
+
+        this.roots = forest.roots;
+        this.feature = forest.feature;
+        this.left = forest.left;
+        this.right = forest.right;
+        this.flags = forest.flags;
+        this.leafValue = forest.leafValue;
+        this.splitBin = new int[nodes];
+        this.minBin = new int[nodes];
+        this.categoryBins = new int[nodes][];
+        for (int node = 0; node < nodes; node++) {
+            int f = forest.feature[node];
+            if (f < 0) {
+                continue;
+            }
+            if (forest.categories[node] != null) {
+                int [] bins = new int[forest.categories[node].length];
+                int n = 0;
+                for (double value : forest.categories[node]) {
+                    if (value == value) {
+                        bins[n++] = bin(f, value);
+                    }
+                }
+                bins = Arrays.copyOf(bins, n);
+                Arrays.sort(bins);
+                this.categoryBins[node] = bins;
+            } else {
+                this.splitBin[node] = bin(f, numericThreshold(forest.threshold[node]));
+                this.minBin[node] = (forest.flags[node] & FlatForest.DEFAULT_LEFT) != 0 ? MISSING_BIN : MISSING_BIN + 1;
+            }
+        }
+        this.blockRows = Math.max(16, Math.min(1024, (32 * 1024) / (2 * Math.max(1, features))));
+    }
+
+    /**
+     * x <= ±0.0 与 x <= +0.0 等价，全序下统一成+0.0
+     */
+    private static double numericThreshold(double threshold) {
+        return threshold == 0 ? 0.0 : threshold;
+    }
+
+    /**
+     * 与Double.compare顺序一致的long键，相邻的double对应相邻的键
+     */
+    private static long key(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        return bits ^ ((bits >> 63) & 0x7FFFFFFFFFFFFFFFL);
+    }
+
+    private static long [] append(long [] values, int size, long value) {
+        if (values == null) {
+            values = new long[8];
+        } else if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        return values;
+    }
+
+    public int getFeatureCount() { return this.featureNames.length; }
+
+    /**
+     * @return 该特征的箱数，包括保留的缺失箱；没有被任何树使用的特征为0
+     */
+    public int getBinCount(int feature) {
+        return this.cuts[feature] == null ? 0 : this.cuts[feature].length + 2;
+    }
+
+    /**
+     * 量化一个值，NaN为MISSING_BIN
+     */
+    public int bin(int feature, double value) {
+        if (value != value) {
+            return MISSING_BIN;
+        }
+        long [] keys = this.cuts[feature];
+        if (keys == null) {
+            return 1;
+        }
+        // 第一个不小于value的切分点
+        long key = key(value);
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low + 1;
+    }
+
+    public BinnedRows newRows(int rows) {
+        return new BinnedRows(this, rows);
+    }
+
+    /**
+     * 量化按槽位排列的行，见 GBDTModel.getFeatureNames()
+     */
+    public BinnedRows bin(double [][] rows) {
+        BinnedRows result = new BinnedRows(this, rows.length);
+        for (int r = 0; r < rows.length; r++) {
+            result.set(r, rows[r]);
+        }
+        return result;
+    }
+
+    /**
+     * 量化Map形式的行，与GBDTModel.toFeatureArray一致：未出现的特征取0.0，null取NaN
+     */
+    public BinnedRows bin(java.util.List<Map<String, Double>> rows) {
+        BinnedRows result = new BinnedRows(this, rows.size());
+        int r = 0;
+        for (Map<String, Double> row : rows) {
+            result.set(r++, row);
+        }
+        return result;
+    }
+
+    /**
+     * @param block 按行排列的一块箱号，base为该行的起始下标
+     */
+    private int leaf(int tree, char [] block, int base) {
+        int node = roots[tree];
+        while (feature[node] >= 0) {
+            int bin = block[base + feature[node]];
+            boolean goLeft;
+            if (categoryBins[node] == null) {
+                goLeft = bin <= splitBin[node] && bin >= minBin[node];
+            } else if (bin == MISSING_BIN) {
+                goLeft = (flags[node] & FlatForest.DEFAULT_LEFT) != 0;
+            } else {
+                goLeft = Arrays.binarySearch(categoryBins[node], bin) >= 0;
+            }
+            node = goLeft ? left[node] : right[node];
+        }
+        return node;
+    }
+
+    /**
+     * 原始分数，每行按树的顺序累加，与FlatForest.score逐位相同
+     */
+    void score(BinnedRows rows, double [] out, ForkJoinPool pool) {
+        if (rows.binner != this) {
+            throw new IllegalArgumentException("binned rows were created by another model");
+        }
+        ScoreTask task = new ScoreTask(this, rows, 0, rows.rows, out);
+        if (rows.rows <= PARALLEL_THRESHOLD) {
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    /**
+     * 每块先把列存的箱号转成按行排列的char数组，一块大致落在L1/L2缓存中，之后按树优先的顺序遍历
+     */
+    private void scoreBlock(BinnedRows rows, int from, int to, double [] out) {
+        int features = featureNames.length;
+        char [] block = new char[Math.min(blockRows, to - from) * features];
+        for (int start = from; start < to; start += blockRows) {
+            int end = Math.min(to, start + blockRows);
+            for (int f = 0; f < features; f++) {
+                byte [] narrow = rows.narrow[f];
+                short [] wide = rows.wide[f];
+                if (narrow != null) {
+                    for (int r = start, i = f; r < end; r++, i += features) {
+                        block[i] = (char) (narrow[r] & 0xFF);
+                    }
+                } else if (wide != null) {
+                    for (int r = start, i = f; r < end; r++, i += features) {
+                        block[i] = (char) wide[r];
+                    }
+                }
+            }
+            Arrays.fill(out, start, end, 0.0);
+            for (int t = 0; t < roots.length; t++) {
+                for (int r = start, base = 0; r < end; r++, base += features) {
+                    out[r] = out[r] + leafValue[leaf(t, block, base)];
+                }
+            }
+        }
+    }
+
+    private static class ScoreTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FeatureBinner binner;
+        private final BinnedRows rows;
+        private final int from;
+        private final int to;
+        private final double [] out;
+
+        ScoreTask(FeatureBinner binner, BinnedRows rows, int from, int to, double [] out) {
+            this.binner = binner;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.out = out;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                binner.scoreBlock(rows, from, to, out);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ScoreTask(binner, rows, from, mid, out), new ScoreTask(binner, rows, mid, to, out));
+        }
+    }
+
+    /**
+     * 按列存放的箱号，箱数不超过256的特征每个值1字节，否则2字节；没有被树使用的特征不占空间
+     */
+    public static final class BinnedRows {
+        private final FeatureBinner binner;
+        private final int rows;
+        private final byte [][] narrow;
+        private final short [][] wide;
+
+        BinnedRows(FeatureBinner binner, int rows) {
+            this.binner = binner;
+            this.rows = rows;
+            int features = binner.featureNames.length;
+            this.narrow = new byte[features][];
+            this.wide = new short[features][];
+            for (int f = 0; f < features; f++) {
+                int bins = binner.getBinCount(f);
+                if (bins == 0) {
+                    continue;
+                }
+                if (bins <= 256) {
+                    this.narrow[f] = new byte[rows];
+                } else {
+                    this.wide[f] = new short[rows];
+                }
+            }
+        }
+
+        public int getRowCount() { return this.rows; }
+
+        public void set(int row, double [] features) {
+            if (features.length < narrow.length) {
+                throw new IllegalArgumentException("gbdt input length must not be less than " + narrow.length);
+            }
+            for (int f = 0; f < narrow.length; f++) {
+                if (narrow[f] != null || wide[f] != null) {
+                    setBin(row, f, binner.bin(f, features[f]));
+                }
+            }
+        }
+
+        public void set(int row, Map<String, Double> data) {
+            for (int f = 0; f < narrow.length; f++) {
+                if (narrow[f] != null || wide[f] != null) {
+                    setBin(row, f, binner.zeroBin[f]);
+                }
+            }
+            for (Map.Entry<String, Double> entry : data.entrySet()) {
+                Integer f = binner.featureIndex.get(entry.getKey());
+                if (f != null && (narrow[f] != null || wide[f] != null)) {
+                    setBin(row, f, binner.bin(f, entry.getValue() == null ? Double.NaN : entry.getValue()));
+                }
+            }
+        }
+
+        /**
+         * 直接写入已经量化好的箱号，例如离线作业按同一份切分点预先计算的结果
+         */
+        public void setBin(int row, int feature, int bin) {
+            if (narrow[feature] != null) {
+                narrow[feature][row] = (byte) bin;
+            } else if (wide[feature] != null) {
+                wide[feature][row] = (short) bin;
+            }
+        }
+
+        public int get(int row, int feature) {
+            byte [] column = narrow[feature];
+            if (column != null) {
+                return column[row] & 0xFF;
+            }
+            return wide[feature][row] & 0xFFFF;
+        }
+
+        /**
+         * @return 箱号占用的字节数
+         */
+        public long getBytes() {
+            long bytes = 0;
+            for (int f = 0; f < narrow.length; f++) {
+                if (narrow[f] != null) {
+                    bytes += narrow[f].length;
+                } else if (wide[f] != null) {
+                    bytes += 2L * wide[f].length;
+                }
+            }
+            return bytes;
+        }
+    }
+}
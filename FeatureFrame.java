@@ -0,0 +1,220 @@
+package com.ymkigeg.ml.pmml;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 按列存放的一批样本，可以反复clear后复用，填写时不装箱。
+ * 特征编号来自同一个FeatureSchema；用dense声明的特征每个占一列double[]，
+ * 其余特征按CSR格式存放(每行一段连续的 编号/取值)，适合大量稀疏特征。
+ * 稠密列在新增的行上默认为0.0，与Map输入中特征缺失相同；GBDT用NaN表示缺失值。
+ * 一行内的特征顺序为：稠密列按声明顺序，然后是稀疏特征按填写顺序。
+ * 同一行重复填写的稀疏特征都会保留，GBDT取最后一个，LR/FM按多次出现累加，与数组输入一致。
+ * 不是线程安全的，填写完成后可以交给多个模型预测
+ */
+public final class FeatureFrame {
+
+    private final FeatureSchema schema;
+    private int rows;
+    private int capacity;
+
+    // 按特征编号索引的稠密列，未声明为稠密的特征为null
+    private double [][] dense = new double[0][];
+    private int [] denseIds = new int[0];
+
+    // CSR：第r行的稀疏特征位于 [rowStart[r], rowStart[r + 1])
+    private int [] rowStart;
+    private int [] sparseIds;
+    private double [] sparseValues;
+
+    public FeatureFrame(FeatureSchema schema) {
+        this(schema, 16);
+    }
+
+    /**
+     * @param capacity 预分配的行数，超出时自动扩容
+     */
+    public FeatureFrame(FeatureSchema schema, int capacity) {
+        this.schema = schema;
+        this.capacity = Math.max(1, capacity);
+        this.rowStart = new int[this.capacity + 1];
+        this.sparseIds = new int[this.capacity * 4];
+        this.sparseValues = new double[this.capacity * 4];
+    }
+
+    /**
+     * 把特征声明为稠密列，只能在没有行时调用
+     */
+    public FeatureFrame dense(int id) {
+        checkId(id);
+        if (this.rows > 0) {
+            throw new IllegalStateException("dense columns must be declared before adding rows");
+        }
+        if (id >= this.dense.length) {
+            this.dense = Arrays.copyOf(this.dense, Math.max(id + 1, this.schema.size()));
+        }
+        if (this.dense[id] == null) {
+            this.dense[id] = new double[this.capacity];
+            this.denseIds = Arrays.copyOf(this.denseIds, this.denseIds.length + 1);
+            this.denseIds[this.denseIds.length - 1] = id;
+        }
+        return this;
+    }
+
+    public FeatureFrame dense(String name) {
+        return dense(this.schema.intern(name));
+    }
+
+    /**
+     * 清空所有行，保留已分配的数组和稠密列的声明
+     */
+    public void clear() {
+        this.rows = 0;
+    }
+
+    /**
+     * 新增一行，之后的put都写入这一行
+     * @return 行号
+     */
+    public int addRow() {
+        if (this.rows == this.capacity) {
+            grow(this.capacity * 2);
+        }
+        int row = this.rows++;
+        for (int id : this.denseIds) {
+            this.dense[id][row] = 0.0;
+        }
+        this.rowStart[row + 1] = this.rowStart[row];
+        return row;
+    }
+
+    /**
+     * 新增一行并填入Map中的特征，值为null时取NaN，schema中没有的特征忽略
+     */
+    public int addRow(Map<String, Double> data) {
+        int row = addRow();
+        for (Map.Entry<String, Double> entry : data.entrySet()) {
+            int id = this.schema.id(entry.getKey());
+            if (id >= 0) {
+                put(id, entry.getValue() == null ? Double.NaN : entry.getValue());
+            }
+        }
+        return row;
+    }
+
+    /**
+     * 写入当前行(最后一次addRow的行)
+     */
+    public void put(int id, double value) {
+        if (this.rows == 0) {
+            throw new IllegalStateException("addRow must be called before put");
+        }
+        if (id >= 0 && id < this.dense.length && this.dense[id] != null) {
+            this.dense[id][this.rows - 1] = value;
+            return;
+        }
+        checkId(id);
+        int end = this.rowStart[this.rows];
+        if (end == this.sparseIds.length) {
+            this.sparseIds = Arrays.copyOf(this.sparseIds, end * 2);
+            this.sparseValues = Arrays.copyOf(this.sparseValues, end * 2);
+        }
+        this.sparseIds[end] = id;
+        this.sparseValues[end] = value;
+        this.rowStart[this.rows] = end + 1;
+    }
+
+    /**
+     * 按特征名写入当前行，schema中没有的特征忽略
+     */
+    public void put(String name, double value) {
+        int id = this.schema.id(name);
+        if (id >= 0) {
+            put(id, value);
+        }
+    }
+
+    /**
+     * @return 第row行特征id的取值，稀疏特征没有填写时返回0.0，重复填写时返回最后一个
+     */
+    public double get(int row, int id) {
+        checkRow(row);
+        if (id >= 0 && id < this.dense.length && this.dense[id] != null) {
+            return this.dense[id][row];
+        }
+        for (int i = this.rowStart[row + 1] - 1; i >= this.rowStart[row]; i--) {
+            if (this.sparseIds[i] == id) {
+                return this.sparseValues[i];
+            }
+        }
+        return 0.0;
+    }
+
+    /**
+     * 把第row行展开到按模型槽位排列的数组，未填写的槽位为0.0
+     * @param binding 模型对本frame的schema的映射
+     * @param dst 长度不小于模型的槽位数
+     */
+    public void fill(int row, FeatureSchema.Binding binding, double [] dst) {
+        Arrays.fill(dst, 0.0);
+        for (int id : this.denseIds) {
+            int slot = binding.slot(id);
+            if (slot >= 0) {
+                dst[slot] = this.dense[id][row];
+            }
+        }
+        for (int i = this.rowStart[row], end = this.rowStart[row + 1]; i < end; i++) {
+            int slot = binding.slot(this.sparseIds[i]);
+            if (slot >= 0) {
+                dst[slot] = this.sparseValues[i];
+            }
+        }
+    }
+
+    public FeatureSchema getSchema() { return this.schema; }
+    public int getRowCount() { return this.rows; }
+
+    // 稠密列的个数，以及第i个稠密列的特征编号
+    public int getDenseCount() { return this.denseIds.length; }
+    public int getDenseId(int i) { return this.denseIds[i]; }
+
+    /**
+     * @return 特征id的稠密列，长度不小于行数，可以直接读写；不是稠密列时返回null
+     */
+    public double [] getColumn(int id) {
+        return id >= 0 && id < this.dense.length ? this.dense[id] : null;
+    }
+
+    // 第row行的稀疏特征在getSparseIds()/getSparseValues()中的范围[start, end)
+    public int getSparseStart(int row) { checkRow(row); return this.rowStart[row]; }
+    public int getSparseEnd(int row) { checkRow(row); return this.rowStart[row + 1]; }
+    public int [] getSparseIds() { return this.sparseIds; }
+    public double [] getSparseValues() { return this.sparseValues; }
+
+    /**
+     * @return 填写的取值总数，稠密列按每行一个计
+     */
+    public long getValueCount() {
+        return (long) this.rows * this.denseIds.length + this.rowStart[this.rows];
+    }
+
+    private void grow(int newCapacity) {
+        for (int id : this.denseIds) {
+            this.dense[id] = Arrays.copyOf(this.dense[id], newCapacity);
+        }
+        this.rowStart = Arrays.copyOf(this.rowStart, newCapacity + 1);
+        this.capacity = newCapacity;
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= this.schema.size()) {
+            throw new IllegalArgumentException("feature id " + id + " out of schema size " + this.schema.size());
+        }
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= this.rows) {
+            throw new IndexOutOfBoundsException("row " + row + " out of frame rows " + this.rows);
+        }
+    }
+}
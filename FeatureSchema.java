@@ -0,0 +1,159 @@
+package com.ymkigeg.ml.pmml;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * 特征名到稠密编号的字典，编号从0开始连续分配，只增不删，可以跨线程共享。
+ * 调用方在启动时把所有模型的特征名intern一次，之后用编号填写FeatureFrame，
+ * 每个模型按名字把编号映射到自己的槽位(见bind)，预测时不再查找字符串也不装箱。
+ * GBDT按特征名匹配；LR和FM的特征名是特征编号的十进制字符串，如"12"
+ */
+public final class FeatureSchema {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String [] names = new String[16];
+    private volatile int size;
+
+    public FeatureSchema() {}
+
+    public FeatureSchema(Collection<String> names) {
+        for (String name : names) {
+            intern(name);
+        }
+    }
+
+    public static FeatureSchema of(String... names) {
+        return new FeatureSchema(Arrays.asList(names));
+    }
+
+    /**
+     * @return 特征名的编号，第一次出现时分配新编号
+     */
+    public int intern(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("feature name must not be null");
+        }
+        Integer id = this.ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = this.ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            int next = this.size;
+            String [] current = this.names;
+            if (next == current.length) {
+                current = Arrays.copyOf(current, next * 2);
+            }
+            current[next] = name;
+            this.names = current;
+            this.ids.put(name, next);
+            this.size = next + 1;
+            return next;
+        }
+    }
+
+    public void internAll(String... names) {
+        for (String name : names) {
+            intern(name);
+        }
+    }
+
+    /**
+     * @return 特征名的编号，没有intern过时返回-1
+     */
+    public int id(String name) {
+        Integer id = this.ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public String name(int id) {
+        if (id < 0 || id >= this.size) {
+            throw new IndexOutOfBoundsException("feature id " + id + " out of schema size " + this.size);
+        }
+        return this.names[id];
+    }
+
+    public int size() { return this.size; }
+
+    /**
+     * 按当前的特征名建立 编号 -> 模型槽位 的映射，之后intern的新特征需要重新绑定
+     * @param slotOf 特征名 -> 模型中的槽位，模型不使用的特征返回-1
+     */
+    public Binding bind(ToIntFunction<String> slotOf) {
+        int count = this.size;
+        String [] current = this.names;
+        int [] slots = new int[count];
+        for (int id = 0; id < count; id++) {
+            slots[id] = slotOf.applyAsInt(current[id]);
+        }
+        return new Binding(this, slots);
+    }
+
+    /**
+     * 把LR/FM的特征名解析为特征编号
+     * @return [0, limit)之内的十进制编号，其它名字返回-1
+     */
+    public static int parseIndex(String name, int limit) {
+        int length = name.length();
+        if (length == 0 || length > 10) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value < limit ? (int) value : -1;
+    }
+
+    /**
+     * 按槽位排列的一行稠密输入，取值之间用逗号或空白分隔，缺失值写NaN
+     * @throws NumberFormatException 有取值不是数字
+     */
+    public static double [] parseDense(String line) {
+        String [] tokens = line.trim().split("[,\\s]+");
+        double [] values = new double[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            values[i] = Double.parseDouble(tokens[i]);
+        }
+        return values;
+    }
+
+    /**
+     * 某个模型对某个schema的槽位映射，不可变
+     */
+    public static final class Binding {
+        private final FeatureSchema schema;
+        private final int [] slots;
+
+        private Binding(FeatureSchema schema, int [] slots) {
+            this.schema = schema;
+            this.slots = slots;
+        }
+
+        /**
+         * @return 特征编号在模型中的槽位，模型不使用时为-1
+         */
+        public int slot(int id) {
+            return id < this.slots.length ? this.slots[id] : -1;
+        }
+
+        /**
+         * @return 是否为该schema当前全部特征建立的映射
+         */
+        public boolean isCurrent(FeatureSchema schema) {
+            return this.schema == schema && this.slots.length == schema.size;
+        }
+
+        public FeatureSchema getSchema() { return this.schema; }
+    }
+}
@@ -0,0 +1,140 @@
+package com.ymkigeg.ml.pmml;
+
+/**
+ * GBDT森林的扁平化布局，所有树的节点连续存放在基本类型数组中
+ * 节点按先序排列，左孩子紧跟在父节点之后；特征名在加载时已经解析成槽位下标。
+ * 经ForestOptimizer优化后，紧跟在父节点之后的是样本中更常走的孩子，打分用的森林中相同的子树可能被多个父节点共用
+ */
+final class FlatForest implements ForestScorer {
+
+    static final byte DEFAULT_LEFT = 1;
+    static final byte CATEGORICAL = 2;
+
+    final int[] roots;
+    // 分裂特征的槽位，叶子节点为 -1
+    final int[] feature;
+    final double[] threshold;
+    final int[] left;
+    final int[] right;
+    final byte[] flags;
+    final double[] leafValue;
+    // PMML中的节点id，以及叶子节点的gbdt编码
+    final int[] nodeId;
+    final int[] leafCode;
+    // "=="分裂的取值集合，其余节点为null
+    final double[][] categories;
+    final int featureCount;
+    // 批量预测时每块的行数，让一块的特征数据大致落在L1/L2缓存中
+    final int blockRows;
+
+    FlatForest(int[] roots, int[] feature, double[] threshold, int[] left, int[] right, byte[] flags,
+               double[] leafValue, int[] nodeId, int[] leafCode, double[][] categories, int featureCount) {
+        this.roots = roots;
+        this.feature = feature;
+        this.threshold = threshold;
+        this.left = left;
+        this.right = right;
+        this.flags = flags;
+        this.leafValue = leafValue;
+        this.nodeId = nodeId;
+        this.leafCode = leafCode;
+        this.categories = categories;
+        this.featureCount = featureCount;
+        this.blockRows = Math.max(16, Math.min(512, (64 * 1024) / (8 * Math.max(1, featureCount))));
+    }
+
+    int treeCount() { return roots.length; }
+    int nodeCount() { return feature.length; }
+
+    /**
+     * 从第tree棵树的根节点走到叶子
+     * @return 叶子节点在数组中的下标
+     */
+    int leaf(int tree, double[] x) {
+        int node = roots[tree];
+        while (feature[node] >= 0) {
+            double data = x[feature[node]];
+            boolean goLeft;
+            if (data != data) {
+                goLeft = (flags[node] & DEFAULT_LEFT) != 0;
+            } else if ((flags[node] & CATEGORICAL) == 0) {
+                goLeft = data <= threshold[node];
+            } else {
+                goLeft = contains(categories[node], data);
+            }
+            node = goLeft ? left[node] : right[node];
+        }
+        return node;
+    }
+
+    /**
+     * 分裂节点node对输入x走向的孩子，与leaf中的判断相同
+     */
+    int child(int node, double[] x) {
+        double data = x[feature[node]];
+        boolean goLeft;
+        if (data != data) {
+            goLeft = (flags[node] & DEFAULT_LEFT) != 0;
+        } else if ((flags[node] & CATEGORICAL) == 0) {
+            goLeft = data <= threshold[node];
+        } else {
+            goLeft = contains(categories[node], data);
+        }
+        return goLeft ? left[node] : right[node];
+    }
+
+    @Override
+    public double score(double[] x) {
+        double score = 0.0;
+        for (int t = 0; t < roots.length; t++) {
+            score = score + leafValue[leaf(t, x)];
+        }
+        return score;
+    }
+
+    /**
+     * 按树优先的顺序对[from, to)行打分，块内每棵树只被加载一次
+     * 每行的累加顺序与score一致，结果逐位相同
+     */
+    @Override
+    public void scoreBlock(double[][] rows, int from, int to, double[] out) {
+        for (int start = from; start < to; start += blockRows) {
+            int end = Math.min(to, start + blockRows);
+            for (int r = start; r < end; r++) {
+                out[r] = 0.0;
+            }
+            for (int t = 0; t < roots.length; t++) {
+                for (int r = start; r < end; r++) {
+                    out[r] = out[r] + leafValue[leaf(t, rows[r])];
+                }
+            }
+        }
+    }
+
+    /**
+     * 按树优先的顺序求[from, to)行的叶子，mapping取nodeId或leafCode
+     */
+    void leafBlock(double[][] rows, int from, int to, int[] mapping, int[][] out) {
+        for (int start = from; start < to; start += blockRows) {
+            int end = Math.min(to, start + blockRows);
+            for (int r = start; r < end; r++) {
+                out[r] = new int[roots.length];
+            }
+            for (int t = 0; t < roots.length; t++) {
+                for (int r = start; r < end; r++) {
+                    out[r][t] = mapping[leaf(t, rows[r])];
+                }
+            }
+        }
+    }
+
+    private static boolean contains(double[] values, double data) {
+        long bits = Double.doubleToLongBits(data);
+        for (double value : values) {
+            if (Double.doubleToLongBits(value) == bits) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
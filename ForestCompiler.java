@@ -0,0 +1,335 @@
+package com.ymkigeg.ml.pmml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把扁平化的森林编译成字节码：每棵树一个静态方法，内部是以常量为阈值的嵌套比较，
+ * score方法按树的顺序依次调用并累加，累加顺序与FlatForest.score一致，结果逐位相同。
+ * 每次编译用独立的ClassLoader定义一个新类，模型被替换后生成的类可以随之卸载
+ */
+final class ForestCompiler {
+
+    // 超过HotSpot的HugeMethodLimit(8000字节)的方法不会被JIT编译，此时放弃编译
+    static final int MAX_METHOD_BYTES = 8000;
+    private static final int TREES_PER_CHUNK = 1000;
+    private static final int MAX_CONSTANT_POOL = 65535;
+
+    private static final String SUPER_CLASS = "com/ymkigeg/ml/pmml/CompiledForest";
+    private static final String TREE_DESC = "([D)D";
+    private static final String CHUNK_DESC = "(D[D)D";
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final FlatForest forest;
+    private final String className;
+    private final ConstantPool pool = new ConstantPool();
+
+    private ForestCompiler(FlatForest forest, String className) {
+        this.forest = forest;
+        this.className = className;
+    }
+
+    /**
+     * @return 模型含有不支持的分裂或生成的方法过大时返回null，调用方退回解释执行
+     */
+    static CompiledForest compile(FlatForest forest, String modelName) {
+        String suffix = modelName == null ? "model" : modelName.replaceAll("[^A-Za-z0-9_]", "_");
+        String className = "com/ymkigeg/ml/pmml/generated/Forest_" + suffix + "_" + SEQUENCE.incrementAndGet();
+        byte[] bytes;
+        try {
+            bytes = new ForestCompiler(forest, className).generate();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (bytes == null) {
+            return null;
+        }
+
+        ForestClassLoader loader = new ForestClassLoader(CompiledForest.class.getClassLoader());
+        try {
+            Class<?> clazz = loader.define(className.replace('/', '.'), bytes);
+            return (CompiledForest) clazz.getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private byte[] generate() throws IOException {
+        int treeCount = forest.treeCount();
+        List<byte[]> treeCodes = new ArrayList<>();
+        for (int t = 0; t < treeCount; t++) {
+            Code code = new Code();
+            if (!emitNode(code, forest.roots[t]) || code.size() > MAX_METHOD_BYTES) {
+                return null;
+            }
+            treeCodes.add(code.toByteArray());
+        }
+
+        int chunkCount = (treeCount + TREES_PER_CHUNK - 1) / TREES_PER_CHUNK;
+        List<byte[]> chunkCodes = new ArrayList<>();
+        for (int c = 0; c < chunkCount; c++) {
+            Code code = new Code();
+            code.op(0x26); // dload_0
+            for (int t = c * TREES_PER_CHUNK; t < Math.min(treeCount, (c + 1) * TREES_PER_CHUNK); t++) {
+                code.op(0x2c); // aload_2
+                code.op(0xb8).u2(pool.methodRef(className, "tree" + t, TREE_DESC)); // invokestatic
+                code.op(0x63); // dadd
+            }
+            code.op(0xaf); // dreturn
+            chunkCodes.add(code.toByteArray());
+        }
+
+        Code score = new Code();
+        score.op(0x0e); // dconst_0
+        for (int c = 0; c < chunkCount; c++) {
+            score.op(0x2b); // aload_1
+            score.op(0xb8).u2(pool.methodRef(className, "chunk" + c, CHUNK_DESC));
+        }
+        score.op(0xaf);
+
+        Code init = new Code();
+        init.op(0x2a); // aload_0
+        init.op(0xb7).u2(pool.methodRef(SUPER_CLASS, "<init>", "()V")); // invokespecial
+        init.op(0xb1); // return
+
+        int thisClass = pool.classRef(className);
+        int superClass = pool.classRef(SUPER_CLASS);
+        int codeName = pool.utf8("Code");
+
+        ByteArrayOutputStream methods = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(methods);
+        writeMethod(out, 0x0001, "<init>", "()V", 1, 1, init.toByteArray(), codeName);
+        writeMethod(out, 0x0011, "score", TREE_DESC, 3, 2, score.toByteArray(), codeName);
+        for (int c = 0; c < chunkCount; c++) {
+            writeMethod(out, 0x000a, "chunk" + c, CHUNK_DESC, 4, 3, chunkCodes.get(c), codeName);
+        }
+        for (int t = 0; t < treeCount; t++) {
+            writeMethod(out, 0x000a, "tree" + t, TREE_DESC, 4, 1, treeCodes.get(t), codeName);
+        }
+        if (pool.size() > MAX_CONSTANT_POOL) {
+            return null;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream classFile = new DataOutputStream(bytes);
+        classFile.writeInt(0xCAFEBABE);
+        // 49(Java 5)的类文件不需要StackMapTable
+        classFile.writeShort(0);
+        classFile.writeShort(49);
+        pool.writeTo(classFile);
+        classFile.writeShort(0x0031); // public final super
+        classFile.writeShort(thisClass);
+        classFile.writeShort(superClass);
+        classFile.writeShort(0);
+        classFile.writeShort(0);
+        classFile.writeShort(2 + chunkCount + treeCount);
+        classFile.write(methods.toByteArray());
+        classFile.writeShort(0);
+        classFile.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 生成一个节点的代码：叶子直接返回常量；分裂节点比较失败时跳到右子树
+     * dcmpg把NaN当作大于走右边，dcmpl把NaN当作小于走左边，对应defaultLeft。
+     * 右孩子紧跟在父节点之后时(ForestOptimizer把更常走的孩子排在这里)反过来，比较成立时跳到左子树
+     */
+    private boolean emitNode(Code code, int node) {
+        if (code.size() > MAX_METHOD_BYTES) {
+            return false;
+        }
+        if (forest.feature[node] < 0) {
+            code.op(0x14).u2(pool.doubleConst(forest.leafValue[node])); // ldc2_w
+            code.op(0xaf);
+            return true;
+        }
+        if ((forest.flags[node] & FlatForest.CATEGORICAL) != 0 || forest.right[node] < 0
+                || Double.isNaN(forest.threshold[node])) {
+            return false;
+        }
+
+        code.op(0x2a); // aload_0
+        code.pushInt(forest.feature[node], pool);
+        code.op(0x31); // daload
+        code.op(0x14).u2(pool.doubleConst(forest.threshold[node]));
+        code.op((forest.flags[node] & FlatForest.DEFAULT_LEFT) != 0 ? 0x97 : 0x98); // dcmpl / dcmpg
+        boolean rightFirst = forest.right[node] == node + 1;
+        int jump = code.size();
+        code.op(rightFirst ? 0x9e : 0x9d).u2(0); // ifle / ifgt
+        if (!emitNode(code, rightFirst ? forest.right[node] : forest.left[node])) {
+            return false;
+        }
+        code.patch(jump, code.size() - jump);
+        return emitNode(code, rightFirst ? forest.left[node] : forest.right[node]);
+    }
+
+    private void writeMethod(DataOutputStream out, int access, String name, String desc,
+                             int maxStack, int maxLocals, byte[] code, int codeName) throws IOException {
+        out.writeShort(access);
+        out.writeShort(pool.utf8(name));
+        out.writeShort(pool.utf8(desc));
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    private static class ForestClassLoader extends ClassLoader {
+        ForestClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static class Code {
+        private byte[] buf = new byte[256];
+        private int size;
+
+        int size() { return size; }
+
+        Code op(int b) {
+            if (size == buf.length) {
+                buf = Arrays.copyOf(buf, size * 2);
+            }
+            buf[size++] = (byte) b;
+            return this;
+        }
+
+        Code u2(int v) {
+            return op(v >>> 8).op(v);
+        }
+
+        void patch(int at, int offset) {
+            buf[at + 1] = (byte) (offset >>> 8);
+            buf[at + 2] = (byte) offset;
+        }
+
+        void pushInt(int v, ConstantPool pool) {
+            if (v <= 5) {
+                op(0x03 + v); // iconst_<v>
+            } else if (v <= 127) {
+                op(0x10).op(v); // bipush
+            } else if (v <= 32767) {
+                op(0x11).u2(v); // sipush
+            } else {
+                op(0x13).u2(pool.intConst(v)); // ldc_w
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int next = 1;
+
+        int size() { return next; }
+
+        int utf8(String s) {
+            Integer index = entries.get("U" + s);
+            if (index != null) {
+                return index;
+            }
+            write(1, () -> out.writeUTF(s));
+            return register("U" + s, 1);
+        }
+
+        int classRef(String name) {
+            Integer index = entries.get("C" + name);
+            if (index != null) {
+                return index;
+            }
+            int nameIndex = utf8(name);
+            write(7, () -> out.writeShort(nameIndex));
+            return register("C" + name, 1);
+        }
+
+        int methodRef(String owner, String name, String desc) {
+            String key = "M" + owner + "." + name + desc;
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            int classIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descIndex = utf8(desc);
+            write(12, () -> {
+                out.writeShort(nameIndex);
+                out.writeShort(descIndex);
+            });
+            int nameAndType = register("N" + key, 1);
+            write(10, () -> {
+                out.writeShort(classIndex);
+                out.writeShort(nameAndType);
+            });
+            return register(key, 1);
+        }
+
+        int doubleConst(double v) {
+            String key = "D" + Double.doubleToRawLongBits(v);
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            write(6, () -> out.writeLong(Double.doubleToRawLongBits(v)));
+            // double常量占两个槽位
+            return register(key, 2);
+        }
+
+        int intConst(int v) {
+            String key = "I" + v;
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            write(3, () -> out.writeInt(v));
+            return register(key, 1);
+        }
+
+        void writeTo(DataOutputStream classFile) throws IOException {
+            out.flush();
+            classFile.writeShort(next);
+            classFile.write(bytes.toByteArray());
+        }
+
+        private int register(String key, int slots) {
+            int index = next;
+            entries.put(key, index);
+            next += slots;
+            return index;
+        }
+
+        private void write(int tag, Body body) {
+            try {
+                out.writeByte(tag);
+                body.write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private interface Body {
+            void write() throws IOException;
+        }
+    }
+}
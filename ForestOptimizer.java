@@ -0,0 +1,411 @@
+package com.ymkigeg.ml.pmml;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 加载后对森林做的等价变换，输出两份FlatForest：
+ *   叶子森林：只去掉不可达的分支，保留的叶子与原来一一对应，nodeId和leafCode不变，
+ *            供predictLeaf、gbdtEncoding使用；
+ *   打分森林：在叶子森林的基础上，两侧子树完全相同的分裂折叠成子树，相同的子树(含跨树)只保留一份，
+ *            只有leafValue有意义，供predict和各打分引擎使用。
+ * 可达性按祖先节点在同一特征上的判断推导：每个特征维护 (lo, hi] 区间以及NaN、-Infinity是否还可能出现，
+ * 只有某一侧在区间内取不到任何值时才去掉，"=="分裂和NaN阈值不参与推导。
+ * 给出样本时统计每个节点的命中次数，更常走的孩子排在父节点之后(下标为父节点+1)，否则保持左孩子在前
+ */
+final class ForestOptimizer {
+
+    private final FlatForest source;
+    private final long [] hits;
+    private FlatForest leafForest;
+    private FlatForest scoreForest;
+    // 叶子森林中每个节点的命中次数
+    private long [] leafHits;
+
+    private int bypassedSplits;
+    private int unreachableLeaves;
+    private int collapsedSplits;
+    private int reorderedSplits;
+
+    /**
+     * @param samples 按槽位排列的样本，可以为null
+     */
+    ForestOptimizer(FlatForest source, double [][] samples) {
+        this.source = source;
+        this.hits = new long[source.nodeCount()];
+        if (samples != null) {
+            for (double [] row : samples) {
+                for (int t = 0; t < source.treeCount(); t++) {
+                    int node = source.roots[t];
+                    this.hits[node]++;
+                    while (source.feature[node] >= 0) {
+                        node = source.child(node, row);
+                        this.hits[node]++;
+                    }
+                }
+            }
+        }
+        pruneUnreachable();
+        shareSubtrees();
+    }
+
+    FlatForest getLeafForest() { return this.leafForest; }
+    FlatForest getScoreForest() { return this.scoreForest; }
+
+    GBDTModel.OptimizationReport report(int samples, long nanos) {
+        return new GBDTModel.OptimizationReport(source.nodeCount(), leafForest.nodeCount(), scoreForest.nodeCount(),
+                bypassedSplits, unreachableLeaves, collapsedSplits, reorderedSplits, samples, nanos);
+    }
+
+    /**
+     * 先序遍历每棵树，沿途收紧各特征的取值范围，只有一侧可达的分裂直接换成那一侧的孩子
+     */
+    private void pruneUnreachable() {
+        FlatForest f = this.source;
+        int n = f.nodeCount();
+        double [] lo = new double[f.featureCount];
+        double [] hi = new double[f.featureCount];
+        boolean [] negativeInfinity = new boolean[f.featureCount];
+        boolean [] nan = new boolean[f.featureCount];
+        Arrays.fill(lo, Double.NEGATIVE_INFINITY);
+        Arrays.fill(hi, Double.POSITIVE_INFINITY);
+        Arrays.fill(negativeInfinity, true);
+        Arrays.fill(nan, true);
+
+        int [] origin = new int[n];
+        int [] left = new int[n];
+        int [] right = new int[n];
+        int [] roots = new int[f.treeCount()];
+        boolean [] kept = new boolean[n];
+        int count = 0;
+
+        Frames frames = new Frames();
+        for (int t = 0; t < f.treeCount(); t++) {
+            frames.visit(f.roots[t], -1, 0, -1);
+            while (frames.top > 0) {
+                int top = --frames.top;
+                int node = frames.node[top];
+                int feature = frames.feature[top];
+                if (node < 0) {
+                    // 子树访问完，恢复该特征的状态
+                    lo[feature] = frames.lo[top];
+                    hi[feature] = frames.hi[top];
+                    negativeInfinity[feature] = (frames.bits[top] & 1) != 0;
+                    nan[feature] = (frames.bits[top] & 2) != 0;
+                    continue;
+                }
+                int parent = frames.parent[top];
+                int side = frames.side[top];
+                if (feature >= 0) {
+                    // 进入孩子前先压入恢复帧，再按父节点的分裂收紧该特征的状态
+                    frames.restore(feature, lo[feature], hi[feature],
+                            (negativeInfinity[feature] ? 1 : 0) | (nan[feature] ? 2 : 0));
+                    narrow(origin[parent], side == 0, lo, hi, negativeInfinity, nan);
+                }
+
+                while (f.feature[node] >= 0) {
+                    int reachable = reachable(node, lo, hi, negativeInfinity, nan);
+                    if (reachable == 1) {
+                        node = f.left[node];
+                    } else if (reachable == 2 && f.right[node] >= 0) {
+                        node = f.right[node];
+                    } else {
+                        break;
+                    }
+                    this.bypassedSplits++;
+                }
+
+                int position = count++;
+                origin[position] = node;
+                kept[node] = true;
+                left[position] = -1;
+                right[position] = -1;
+                if (parent < 0) {
+                    roots[t] = position;
+                } else if (side == 0) {
+                    left[parent] = position;
+                } else {
+                    right[parent] = position;
+                }
+                if (f.feature[node] < 0) {
+                    continue;
+                }
+
+                // 后压入的先访问：更常走的孩子先输出，紧跟在父节点之后
+                boolean rightFirst = f.right[node] >= 0 && this.hits[f.right[node]] > this.hits[f.left[node]];
+                if (rightFirst) {
+                    this.reorderedSplits++;
+                    frames.visit(f.left[node], position, 0, f.feature[node]);
+                    frames.visit(f.right[node], position, 1, f.feature[node]);
+                } else {
+                    if (f.right[node] >= 0) {
+                        frames.visit(f.right[node], position, 1, f.feature[node]);
+                    }
+                    frames.visit(f.left[node], position, 0, f.feature[node]);
+                }
+            }
+        }
+
+        for (int node = 0; node < n; node++) {
+            if (!kept[node] && f.feature[node] < 0) {
+                this.unreachableLeaves++;
+            }
+        }
+        this.leafHits = new long[count];
+        for (int i = 0; i < count; i++) {
+            this.leafHits[i] = this.hits[origin[i]];
+        }
+        this.leafForest = copy(f, origin, left, right, roots, count);
+    }
+
+    /**
+     * 按节点from的分裂收紧其特征的状态
+     */
+    private void narrow(int from, boolean goLeft, double [] lo, double [] hi, boolean [] negativeInfinity, boolean [] nan) {
+        FlatForest f = this.source;
+        int feature = f.feature[from];
+        boolean defaultLeft = (f.flags[from] & FlatForest.DEFAULT_LEFT) != 0;
+        nan[feature] = nan[feature] && goLeft == defaultLeft;
+        if ((f.flags[from] & FlatForest.CATEGORICAL) != 0 || Double.isNaN(f.threshold[from])) {
+            return;
+        }
+        double threshold = f.threshold[from];
+        if (goLeft) {
+            hi[feature] = Math.min(hi[feature], threshold);
+        } else {
+            lo[feature] = Math.max(lo[feature], threshold);
+            negativeInfinity[feature] = false;
+        }
+    }
+
+    /**
+     * @return 0 两侧都可能走到(或无法判断)，1 只有左侧，2 只有右侧
+     */
+    private int reachable(int node, double [] lo, double [] hi, boolean [] negativeInfinity, boolean [] nan) {
+        FlatForest f = this.source;
+        if ((f.flags[node] & FlatForest.CATEGORICAL) != 0 || Double.isNaN(f.threshold[node])) {
+            return 0;
+        }
+        int feature = f.feature[node];
+        double threshold = f.threshold[node];
+        boolean defaultLeft = (f.flags[node] & FlatForest.DEFAULT_LEFT) != 0;
+        // 非NaN的取值：-Infinity(若仍可能出现)以及 (lo, hi] 中的值
+        boolean left = (nan[feature] && defaultLeft) || negativeInfinity[feature]
+                || lo[feature] < Math.min(hi[feature], threshold);
+        boolean right = (nan[feature] && !defaultLeft) || Math.max(lo[feature], threshold) < hi[feature];
+        if (left && !right) {
+            return 1;
+        }
+        if (right && !left) {
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * 自底向上给叶子森林的每个节点一个规范编号，结构和取值完全相同的子树编号相同；
+     * 两个孩子编号相同的分裂直接取孩子的编号。再按先序把每个编号输出一次
+     */
+    private void shareSubtrees() {
+        FlatForest f = this.leafForest;
+        int n = f.nodeCount();
+        int [] canonical = new int[n];
+        // 规范编号 -> 代表节点，以及孩子的规范编号
+        int [] representative = new int[n];
+        int [] canonicalLeft = new int[n];
+        int [] canonicalRight = new int[n];
+        long [] canonicalHits = new long[n];
+        Map<NodeKey, Integer> index = new HashMap<>();
+        // 叶子森林按先序排列，孩子的下标总是大于父节点
+        for (int node = n - 1; node >= 0; node--) {
+            int l = f.left[node] < 0 ? -1 : canonical[f.left[node]];
+            int r = f.right[node] < 0 ? -1 : canonical[f.right[node]];
+            if (f.feature[node] >= 0 && l >= 0 && l == r) {
+                canonical[node] = l;
+                canonicalHits[l] += this.leafHits[node];
+                this.collapsedSplits++;
+                continue;
+            }
+            NodeKey key = new NodeKey(f, node, l, r);
+            Integer id = index.get(key);
+            if (id == null) {
+                id = index.size();
+                index.put(key, id);
+                representative[id] = node;
+                canonicalLeft[id] = l;
+                canonicalRight[id] = r;
+            }
+            canonical[node] = id;
+            canonicalHits[id] += this.leafHits[node];
+        }
+
+        int size = index.size();
+        if (size == n) {
+            this.scoreForest = f;
+            return;
+        }
+        int [] position = new int[size];
+        Arrays.fill(position, -1);
+        int [] order = new int[size];
+        int [] roots = new int[f.treeCount()];
+        int [] stack = new int[64];
+        int count = 0;
+        for (int t = 0; t < f.treeCount(); t++) {
+            int root = canonical[f.roots[t]];
+            int top = 0;
+            stack[top++] = root;
+            while (top > 0) {
+                int id = stack[--top];
+                if (position[id] >= 0) {
+                    continue;
+                }
+                position[id] = count;
+                order[count++] = id;
+                int l = canonicalLeft[id];
+                int r = canonicalRight[id];
+                if (top + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                // 更常走的孩子后压入、先输出，紧跟在父节点之后
+                boolean rightFirst = r >= 0 && canonicalHits[r] > canonicalHits[l];
+                int first = rightFirst ? r : l;
+                int second = rightFirst ? l : r;
+                if (second >= 0) {
+                    stack[top++] = second;
+                }
+                if (first >= 0) {
+                    stack[top++] = first;
+                }
+            }
+            roots[t] = position[root];
+        }
+
+        int [] origin = new int[size];
+        int [] left = new int[size];
+        int [] right = new int[size];
+        for (int i = 0; i < size; i++) {
+            int id = order[i];
+            origin[i] = representative[id];
+            left[i] = canonicalLeft[id] < 0 ? -1 : position[canonicalLeft[id]];
+            right[i] = canonicalRight[id] < 0 ? -1 : position[canonicalRight[id]];
+        }
+        this.scoreForest = copy(f, origin, left, right, roots, size);
+    }
+
+    /**
+     * 按origin从from中取出节点的分裂和叶子信息，孩子和根换成新的下标
+     */
+    private static FlatForest copy(FlatForest from, int [] origin, int [] left, int [] right, int [] roots, int count) {
+        int [] feature = new int[count];
+        double [] threshold = new double[count];
+        byte [] flags = new byte[count];
+        double [] leafValue = new double[count];
+        int [] nodeId = new int[count];
+        int [] leafCode = new int[count];
+        double [][] categories = new double[count][];
+        for (int i = 0; i < count; i++) {
+            int node = origin[i];
+            feature[i] = from.feature[node];
+            threshold[i] = from.threshold[node];
+            flags[i] = from.flags[node];
+            leafValue[i] = from.leafValue[node];
+            nodeId[i] = from.nodeId[node];
+            leafCode[i] = from.leafCode[node];
+            categories[i] = from.categories[node];
+        }
+        return new FlatForest(roots, feature, threshold, Arrays.copyOf(left, count), Arrays.copyOf(right, count),
+                flags, leafValue, nodeId, leafCode, categories, from.featureCount);
+    }
+
+    /**
+     * pruneUnreachable的显式栈：node >= 0 为待访问的孩子，feature为父节点的分裂特征(根为-1)；
+     * node为-1时是恢复帧，记录进入子树前该特征的状态
+     */
+    private static final class Frames {
+        int [] node = new int[64];
+        int [] parent = new int[64];
+        int [] side = new int[64];
+        int [] feature = new int[64];
+        double [] lo = new double[64];
+        double [] hi = new double[64];
+        byte [] bits = new byte[64];
+        int top;
+
+        void visit(int child, int parentPosition, int childSide, int splitFeature) {
+            int i = push();
+            this.node[i] = child;
+            this.parent[i] = parentPosition;
+            this.side[i] = childSide;
+            this.feature[i] = splitFeature;
+        }
+
+        void restore(int splitFeature, double low, double high, int flags) {
+            int i = push();
+            this.node[i] = -1;
+            this.feature[i] = splitFeature;
+            this.lo[i] = low;
+            this.hi[i] = high;
+            this.bits[i] = (byte) flags;
+        }
+
+        private int push() {
+            if (this.top == this.node.length) {
+                int size = this.top * 2;
+                this.node = Arrays.copyOf(this.node, size);
+                this.parent = Arrays.copyOf(this.parent, size);
+                this.side = Arrays.copyOf(this.side, size);
+                this.feature = Arrays.copyOf(this.feature, size);
+                this.lo = Arrays.copyOf(this.lo, size);
+                this.hi = Arrays.copyOf(this.hi, size);
+                this.bits = Arrays.copyOf(this.bits, size);
+            }
+            return this.top++;
+        }
+    }
+
+    /**
+     * 子树的规范形式：叶子按取值的位模式，分裂按特征、阈值、标志、取值集合以及孩子的规范编号
+     */
+    private static final class NodeKey {
+        private final int feature;
+        private final long value;
+        private final byte flags;
+        private final double [] categories;
+        private final int left;
+        private final int right;
+        private final int hash;
+
+        NodeKey(FlatForest forest, int node, int left, int right) {
+            this.feature = forest.feature[node];
+            this.value = Double.doubleToLongBits(this.feature < 0 ? forest.leafValue[node] : forest.threshold[node]);
+            this.flags = this.feature < 0 ? 0 : forest.flags[node];
+            this.categories = forest.categories[node];
+            this.left = left;
+            this.right = right;
+            int h = this.feature;
+            h = 31 * h + Long.hashCode(this.value);
+            h = 31 * h + this.flags;
+            h = 31 * h + Arrays.hashCode(this.categories);
+            h = 31 * h + left;
+            h = 31 * h + right;
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NodeKey)) {
+                return false;
+            }
+            NodeKey other = (NodeKey) o;
+            return this.hash == other.hash && this.feature == other.feature && this.value == other.value
+                    && this.flags == other.flags && this.left == other.left && this.right == other.right
+                    && Arrays.equals(this.categories, other.categories);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.ymkigeg.ml.pmml;
+
+/**
+ * GBDT森林的打分引擎，返回所有树叶子值之和（sigmoid之前的分数）
+ */
+interface ForestScorer {
+
+    double score(double[] x);
+
+    /**
+     * 对rows的[from, to)行打分，结果写入out的相同下标
+     */
+    void scoreBlock(double[][] rows, int from, int to, double[] out);
+}
@@ -0,0 +1,301 @@
+package com.ymkigeg.ml.pmml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 把并发到达的单行请求合并成小批量，通过模型的批量接口打分后把结果分发给各个调用方。
+ * 调用方可以是大量虚拟线程，每个请求阻塞在自己的future上；后台的worker线程取出第一个请求后，
+ * 继续收集后续请求，直到凑满maxBatchSize或者第一个请求已等待maxWait。
+ * 等待是自适应的：按最近请求到达间隔的滑动平均估计，剩余等待时间内不会再有请求时立即发出，
+ * 低负载下单个请求不会白等maxWait。
+ * 批量打分抛出异常时逐行重新打分，只有出错的请求失败
+ */
+public final class MicroBatcher<T> implements AutoCloseable {
+
+    // 每个worker的队列容量，按批大小的倍数
+    private static final int QUEUE_BATCHES = 64;
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * 批量打分，返回与输入一一对应的分数
+     */
+    @FunctionalInterface
+    public interface BatchScorer<T> {
+        double [] score(List<T> inputs) throws Exception;
+    }
+
+    private final String name;
+    private final BatchScorer<T> scorer;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request<T>> queue;
+    private final Thread [] workers;
+    private volatile boolean closed;
+
+    // 到达间隔的滑动平均，单个样本不超过2倍maxWait，空闲之后能很快恢复；并发更新时允许丢失样本
+    private final AtomicLong lastArrival = new AtomicLong(System.nanoTime());
+    private volatile long arrivalGap;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+
+    /**
+     * @param maxBatchSize 每批最多的请求数
+     * @param maxWaitMicros 第一个请求最多等待的微秒数，0表示只合并已经在排队的请求
+     * @param workers 打分线程数
+     */
+    public MicroBatcher(String name, BatchScorer<T> scorer, int maxBatchSize, long maxWaitMicros, int workers) {
+        if (maxBatchSize < 1 || maxWaitMicros < 0 || workers < 1) {
+            throw new IllegalArgumentException("micro batcher needs maxBatchSize >= 1, maxWaitMicros >= 0, workers >= 1");
+        }
+        this.name = name;
+        this.scorer = scorer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.arrivalGap = 2 * this.maxWaitNanos;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1024, maxBatchSize * QUEUE_BATCHES * workers));
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::run, "micro-batcher-" + name + "-" + i);
+            worker.setDaemon(true);
+            this.workers[i] = worker;
+            worker.start();
+        }
+    }
+
+    /**
+     * GBDT按槽位排列的数组输入，经predictBatch按树优先的顺序打分
+     */
+    public static MicroBatcher<double []> forGbdt(GBDTModel model, int maxBatchSize, long maxWaitMicros) {
+        return new MicroBatcher<>(model.getModelName(),
+                rows -> model.predictBatch(rows.toArray(new double[rows.size()][]), ForkJoinPool.commonPool()),
+                maxBatchSize, maxWaitMicros, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static MicroBatcher<double []> forLr(LogisticRegressionModel model, int maxBatchSize, long maxWaitMicros) {
+        return new MicroBatcher<>(model.getModelName(), rows -> {
+            double [] scores = new double[rows.size()];
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = model.predict(rows.get(i));
+            }
+            return scores;
+        }, maxBatchSize, maxWaitMicros, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 提交一个请求，结果在所在批次打分完成后返回；还没被打分时cancel返回的future，该请求不再打分
+     * @throws RejectedExecutionException 排队的请求已满
+     * @throws IllegalStateException 已经close
+     */
+    public CompletableFuture<Double> submit(T input) {
+        if (this.closed) {
+            throw new IllegalStateException("micro batcher " + this.name + " is closed");
+        }
+        long now = System.nanoTime();
+        long gap = Math.min(now - this.lastArrival.getAndSet(now), 2 * this.maxWaitNanos);
+        this.arrivalGap += (gap - this.arrivalGap) >> 3;
+
+        Request<T> request = new Request<>(input, now);
+        if (!this.queue.offer(request)) {
+            this.rejected.increment();
+            throw new RejectedExecutionException("micro batcher " + this.name + " queue is full");
+        }
+        // 与close并发时close可能已经清空了队列，这时没有人会再取这个请求；被worker取走的照常打分
+        if (this.closed && this.queue.remove(request)) {
+            request.result.completeExceptionally(new IllegalStateException("micro batcher " + this.name + " is closed"));
+        }
+        this.requests.increment();
+        return request.result;
+    }
+
+    /**
+     * 提交并等待结果，适合每个请求一个虚拟线程的调用方
+     */
+    public double score(T input) throws InterruptedException {
+        try {
+            return submit(input).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("micro batcher " + this.name + " failed to score", cause);
+        }
+    }
+
+    private void run() {
+        List<Request<T>> batch = new ArrayList<>(this.maxBatchSize);
+        List<T> inputs = new ArrayList<>(this.maxBatchSize);
+        while (true) {
+            Request<T> first;
+            try {
+                first = this.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failQueued("worker is interrupted");
+                return;
+            }
+            if (first == null) {
+                if (this.closed) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            long deadline = first.arrival + this.maxWaitNanos;
+            while (batch.size() < this.maxBatchSize) {
+                Request<T> next = this.queue.poll();
+                if (next == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || this.arrivalGap > remaining || this.closed) {
+                        break;
+                    }
+                    try {
+                        next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (next == null) {
+                        break;
+                    }
+                }
+                batch.add(next);
+            }
+            dispatch(batch, inputs);
+            batch.clear();
+            inputs.clear();
+            if (Thread.currentThread().isInterrupted()) {
+                failQueued("worker is interrupted");
+                return;
+            }
+        }
+    }
+
+    private void dispatch(List<Request<T>> batch, List<T> inputs) {
+        // 调用方已经取消的请求(见ScoringServer中被拒绝的请求)不再打分
+        int size = batch.size();
+        batch.removeIf(request -> request.result.isDone());
+        this.cancelled.add(size - batch.size());
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (Request<T> request : batch) {
+            inputs.add(request.input);
+        }
+        this.batches.increment();
+        double [] scores;
+        try {
+            scores = this.scorer.score(inputs);
+            if (scores == null || scores.length != inputs.size()) {
+                throw new IllegalStateException("batch scorer returned " + (scores == null ? "null" : scores.length + " scores")
+                        + " for " + inputs.size() + " inputs");
+            }
+        } catch (Throwable e) {
+            if (batch.size() == 1) {
+                fail(batch.get(0), e);
+            } else {
+                dispatchEach(batch);
+            }
+            return;
+        }
+        for (int i = 0; i < scores.length; i++) {
+            batch.get(i).result.complete(scores[i]);
+        }
+    }
+
+    private void dispatchEach(List<Request<T>> batch) {
+        List<T> single = new ArrayList<>(1);
+        for (Request<T> request : batch) {
+            single.clear();
+            single.add(request.input);
+            try {
+                double [] scores = this.scorer.score(single);
+                request.result.complete(scores[0]);
+            } catch (Throwable e) {
+                fail(request, e);
+            }
+        }
+    }
+
+    private void fail(Request<T> request, Throwable e) {
+        this.failures.increment();
+        request.result.completeExceptionally(e);
+    }
+
+    /**
+     * 让队列中还没被取走的请求失败
+     */
+    private void failQueued(String reason) {
+        Request<T> request;
+        while ((request = this.queue.poll()) != null) {
+            request.result.completeExceptionally(new IllegalStateException("micro batcher " + this.name + " " + reason));
+        }
+    }
+
+    /**
+     * 停止接收请求，已经排队的请求打分完成后退出worker线程；
+     * 等待时被中断则不再等worker，保留中断标记，剩下的排队请求直接失败
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        try {
+            for (Thread worker : this.workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 与close并发提交、没有被worker取到的请求
+        failQueued("is closed");
+    }
+
+    public String getName() { return this.name; }
+    public int getMaxBatchSize() { return this.maxBatchSize; }
+    public long getMaxWaitMicros() { return TimeUnit.NANOSECONDS.toMicros(this.maxWaitNanos); }
+    public long getRequestCount() { return this.requests.sum(); }
+    public long getBatchCount() { return this.batches.sum(); }
+    public long getFailureCount() { return this.failures.sum(); }
+    public long getRejectedCount() { return this.rejected.sum(); }
+    public long getCancelledCount() { return this.cancelled.sum(); }
+    public int getQueueSize() { return this.queue.size(); }
+
+    public double getAverageBatchSize() {
+        long count = this.batches.sum();
+        return count == 0 ? 0 : (double) (this.requests.sum() - this.cancelled.sum()) / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s requests=%d batches=%d avgBatch=%.2f failures=%d rejected=%d cancelled=%d queued=%d",
+                this.name, getRequestCount(), getBatchCount(), getAverageBatchSize(), getFailureCount(),
+                getRejectedCount(), getCancelledCount(), getQueueSize());
+    }
+
+    private static final class Request<T> {
+        final T input;
+        final long arrival;
+        final CompletableFuture<Double> result = new CompletableFuture<>();
+
+        Request(T input, long arrival) {
+            this.input = input;
+            this.arrival = arrival;
+        }
+    }
+}
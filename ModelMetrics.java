@@ -0,0 +1,452 @@
+package com.ymkigeg.ml.pmml;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 模型打分的监控指标：按模型和方法记录调用次数、行数、特征数、延迟直方图和分配字节数，
+ * 以及每次加载的耗时和解析错误数。同一类型、同名的模型(例如热加载的各个版本)共用一份指标。
+ * 指标通过 snapshot() 拉取，同时以MXBean注册到平台MBeanServer，ObjectName为
+ *   com.ymkigeg.ml.pmml:type=ModelMetrics,model=<模型类型>,name=<模型名>
+ * 打分指标默认关闭，关闭时每次调用只多一次volatile读；分配字节数需要单独打开，依赖HotSpot的ThreadMXBean
+ */
+public final class ModelMetrics {
+
+    public enum Method {
+        PREDICT,
+        PREDICT_LEAF,
+        GBDT_ENCODING,
+        PREDICT_BATCH,
+        PREDICT_LEAF_BATCH,
+        GBDT_ENCODING_BATCH,
+        SCORE_CANDIDATES,
+        PREDICT_ABOVE,
+        PREDICT_BINNED,
+        PREDICT_FRAME,
+        PREDICT_PROBA,
+        PREDICT_PROBA_BATCH
+    }
+
+    static final String DOMAIN = "com.ymkigeg.ml.pmml";
+
+    private static volatile boolean enabled;
+    private static volatile boolean allocationTracking;
+    private static final ConcurrentMap<String, Recorder> RECORDERS = new ConcurrentHashMap<>();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    // 当前线程最近一次start时已分配的字节数
+    private static final ThreadLocal<long []> ALLOCATION_MARK = ThreadLocal.withInitial(() -> new long[1]);
+
+    private ModelMetrics() {}
+
+    public static boolean isEnabled() { return enabled; }
+
+    /**
+     * 打开或关闭打分指标，加载指标始终记录
+     */
+    public static void setEnabled(boolean enabled) { ModelMetrics.enabled = enabled; }
+
+    public static boolean isAllocationTracking() { return allocationTracking; }
+
+    /**
+     * 打开后每次打分额外读取两次当前线程的已分配字节数，JVM不支持时忽略
+     */
+    public static void setAllocationTracking(boolean tracking) {
+        allocationTracking = tracking && allocationSupported();
+    }
+
+    /**
+     * @param modelType 模型类型，例如 GBDTModel
+     * @param modelName 模型名，为空时用 default
+     */
+    public static Recorder recorder(String modelType, String modelName) {
+        String name = modelName == null || modelName.isEmpty() ? "default" : modelName;
+        return RECORDERS.computeIfAbsent(modelType + '/' + name, key -> {
+            Recorder recorder = new Recorder(modelType, name);
+            register(recorder);
+            return recorder;
+        });
+    }
+
+    public static List<Snapshot> snapshot() {
+        List<Snapshot> result = new ArrayList<>();
+        for (Recorder recorder : RECORDERS.values()) {
+            result.add(recorder.snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * 清零所有计数，MXBean保持注册
+     */
+    public static void reset() {
+        for (Recorder recorder : RECORDERS.values()) {
+            recorder.reset();
+        }
+    }
+
+    /**
+     * 注册失败(没有JMX、同名MBean已被其它类加载器注册等)不影响打分，
+     * 原因保存在Recorder.getRegistrationError()，并在标准错误输出一行
+     */
+    private static void register(Recorder recorder) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=ModelMetrics,model="
+                    + ObjectName.quote(recorder.modelType) + ",name=" + ObjectName.quote(recorder.modelName));
+            server.registerMBean(new Bean(recorder), objectName);
+        } catch (Exception | LinkageError e) {
+            recorder.registrationError = e;
+            System.err.println("ModelMetrics: failed to register MXBean for " + recorder.modelType + "/"
+                    + recorder.modelName + ", only snapshot() is available: " + e);
+        }
+    }
+
+    private static boolean allocationSupported() {
+        try {
+            return THREADS instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+                    && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * 一个模型的全部指标，方法内部只用原子计数，不加锁
+     */
+    public static final class Recorder {
+        private final String modelType;
+        private final String modelName;
+        private final MethodStats [] methods = new MethodStats[Method.values().length];
+        private final LongAdder loads = new LongAdder();
+        private final LongAdder totalLoadNanos = new LongAdder();
+        private final AtomicLong lastLoadNanos = new AtomicLong();
+        private final LongAdder parseErrors = new LongAdder();
+        private volatile Throwable registrationError;
+
+        Recorder(String modelType, String modelName) {
+            this.modelType = modelType;
+            this.modelName = modelName;
+            for (int i = 0; i < methods.length; i++) {
+                methods[i] = new MethodStats(Method.values()[i]);
+            }
+        }
+
+        public String getModelType() { return this.modelType; }
+        public String getModelName() { return this.modelName; }
+        // MXBean注册失败的原因，注册成功时为null
+        public Throwable getRegistrationError() { return this.registrationError; }
+
+        /**
+         * 打分开始时调用
+         * @return 传给record的开始时间，指标关闭时为0
+         */
+        public long start() {
+            if (!enabled) {
+                return 0L;
+            }
+            if (allocationTracking) {
+                ALLOCATION_MARK.get()[0] = allocatedBytes();
+            }
+            return System.nanoTime();
+        }
+
+        /**
+         * 打分结束时调用，嵌套的start/record只有最内层的分配字节数是准确的
+         * @param start start()的返回值
+         * @param rows 本次打分的行数
+         * @param features 本次输入的特征数
+         */
+        public void record(Method method, long start, int rows, long features) {
+            if (start == 0L) {
+                return;
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = -1;
+            if (allocationTracking) {
+                allocated = allocatedBytes() - ALLOCATION_MARK.get()[0];
+            }
+            methods[method.ordinal()].record(elapsed, rows, features, allocated);
+        }
+
+        /**
+         * 记录一次加载，不受setEnabled影响
+         */
+        public void recordLoad(long nanos, long errors) {
+            loads.increment();
+            totalLoadNanos.add(nanos);
+            lastLoadNanos.set(nanos);
+            parseErrors.add(errors);
+        }
+
+        public Snapshot snapshot() {
+            List<MethodSnapshot> methodSnapshots = new ArrayList<>();
+            for (MethodStats stats : methods) {
+                if (stats.calls.sum() > 0) {
+                    methodSnapshots.add(stats.snapshot());
+                }
+            }
+            return new Snapshot(modelType, modelName, loads.sum(), lastLoadNanos.get(), totalLoadNanos.sum(),
+                    parseErrors.sum(), Collections.unmodifiableList(methodSnapshots));
+        }
+
+        void reset() {
+            for (MethodStats stats : methods) {
+                stats.reset();
+            }
+            loads.reset();
+            totalLoadNanos.reset();
+            lastLoadNanos.set(0);
+            parseErrors.reset();
+        }
+    }
+
+    private static final class MethodStats {
+        final Method method;
+        final LongAdder calls = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder features = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAdder allocatedBytes = new LongAdder();
+        final LongAdder allocationSamples = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final Histogram latency = new Histogram();
+
+        MethodStats(Method method) {
+            this.method = method;
+        }
+
+        void record(long nanos, int rows, long features, long allocated) {
+            calls.increment();
+            this.rows.add(rows);
+            this.features.add(features);
+            totalNanos.add(nanos);
+            latency.record(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            if (allocated >= 0) {
+                allocatedBytes.add(allocated);
+                allocationSamples.increment();
+            }
+        }
+
+        MethodSnapshot snapshot() {
+            long count = calls.sum();
+            long samples = allocationSamples.sum();
+            return new MethodSnapshot(method.name(), count, rows.sum(), features.sum(),
+                    count == 0 ? 0 : totalNanos.sum() / count, latency.percentile(0.5), latency.percentile(0.99),
+                    latency.percentile(0.999), maxNanos.get(), allocatedBytes.sum(),
+                    samples == 0 ? -1 : allocatedBytes.sum() / samples);
+        }
+
+        void reset() {
+            calls.reset();
+            rows.reset();
+            features.reset();
+            totalNanos.reset();
+            allocatedBytes.reset();
+            allocationSamples.reset();
+            maxNanos.set(0);
+            latency.reset();
+        }
+    }
+
+    /**
+     * 对数线性分桶的延迟直方图：每个2的幂区间再均分为16个桶，相对误差不超过1/16，
+     * 覆盖1ns到约2^40ns(18分钟)，更大的值计入最后一个桶
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 40;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void record(long value) {
+            counts.incrementAndGet(bucket(value));
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) Math.max(0, value);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return 桶的上界
+         */
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            int sub = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+
+        long percentile(double quantile) {
+            long [] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+        }
+    }
+
+    public static final class Snapshot {
+        private final String modelType;
+        private final String modelName;
+        private final long loads;
+        private final long lastLoadNanos;
+        private final long totalLoadNanos;
+        private final long parseErrors;
+        private final List<MethodSnapshot> methods;
+
+        Snapshot(String modelType, String modelName, long loads, long lastLoadNanos, long totalLoadNanos,
+                 long parseErrors, List<MethodSnapshot> methods) {
+            this.modelType = modelType;
+            this.modelName = modelName;
+            this.loads = loads;
+            this.lastLoadNanos = lastLoadNanos;
+            this.totalLoadNanos = totalLoadNanos;
+            this.parseErrors = parseErrors;
+            this.methods = methods;
+        }
+
+        public String getModelType() { return this.modelType; }
+        public String getModelName() { return this.modelName; }
+        public long getLoads() { return this.loads; }
+        public long getLastLoadNanos() { return this.lastLoadNanos; }
+        public long getTotalLoadNanos() { return this.totalLoadNanos; }
+        public long getParseErrors() { return this.parseErrors; }
+        public List<MethodSnapshot> getMethods() { return this.methods; }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%s/%s loads=%d lastLoad=%.1fms parseErrors=%d",
+                    modelType, modelName, loads, lastLoadNanos / 1e6, parseErrors));
+            for (MethodSnapshot method : methods) {
+                sb.append("\n  ").append(method);
+            }
+            return sb.toString();
+        }
+    }
+
+    public static final class MethodSnapshot {
+        private final String method;
+        private final long calls;
+        private final long rows;
+        private final long features;
+        private final long meanNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+        private final long maxNanos;
+        private final long allocatedBytes;
+        private final long allocatedBytesPerCall;
+
+        MethodSnapshot(String method, long calls, long rows, long features, long meanNanos, long p50Nanos,
+                       long p99Nanos, long p999Nanos, long maxNanos, long allocatedBytes, long allocatedBytesPerCall) {
+            this.method = method;
+            this.calls = calls;
+            this.rows = rows;
+            this.features = features;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.p999Nanos = p999Nanos;
+            this.maxNanos = maxNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.allocatedBytesPerCall = allocatedBytesPerCall;
+        }
+
+        public String getMethod() { return this.method; }
+        public long getCalls() { return this.calls; }
+        public long getRows() { return this.rows; }
+        public long getFeatures() { return this.features; }
+        public long getMeanNanos() { return this.meanNanos; }
+        public long getP50Nanos() { return this.p50Nanos; }
+        public long getP99Nanos() { return this.p99Nanos; }
+        public long getP999Nanos() { return this.p999Nanos; }
+        public long getMaxNanos() { return this.maxNanos; }
+        public long getAllocatedBytes() { return this.allocatedBytes; }
+        // 没有打开分配统计时为-1
+        public long getAllocatedBytesPerCall() { return this.allocatedBytesPerCall; }
+
+        @Override
+        public String toString() {
+            return String.format("%s calls=%d rows=%d features=%d mean=%dns p50=%dns p99=%dns p999=%dns max=%dns alloc/call=%d",
+                    method, calls, rows, features, meanNanos, p50Nanos, p99Nanos, p999Nanos, maxNanos,
+                    allocatedBytesPerCall);
+        }
+    }
+
+    private static final class Bean implements ModelMetricsMXBean {
+        private final Recorder recorder;
+
+        Bean(Recorder recorder) {
+            this.recorder = recorder;
+        }
+
+        @Override
+        public String getModelType() { return recorder.modelType; }
+
+        @Override
+        public String getModelName() { return recorder.modelName; }
+
+        @Override
+        public Snapshot getSnapshot() { return recorder.snapshot(); }
+
+        @Override
+        public boolean isEnabled() { return enabled; }
+
+        @Override
+        public void setEnabled(boolean value) { ModelMetrics.setEnabled(value); }
+
+        @Override
+        public void reset() { recorder.reset(); }
+    }
+}
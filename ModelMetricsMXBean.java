@@ -0,0 +1,20 @@
+package com.ymkigeg.ml.pmml;
+
+/**
+ * 一个模型的监控指标，见 ModelMetrics
+ */
+public interface ModelMetricsMXBean {
+
+    String getModelType();
+
+    String getModelName();
+
+    ModelMetrics.Snapshot getSnapshot();
+
+    // 全局开关，对所有模型生效
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    void reset();
+}
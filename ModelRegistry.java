@@ -0,0 +1,404 @@
+package com.ymkigeg.ml.pmml;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 模型的热加载注册表：后台线程轮询模型文件或目录，发现新版本后在后台加载、预热，再原子地替换当前版本。
+ * 请求通过acquire()拿到当前版本的租约，替换时已经拿到旧版本的请求在旧版本上执行完，
+ * 旧版本的租约全部释放后才交给Disposer回收。
+ * 为了控制内存峰值，上一个被替换的版本没有回收完之前不会开始加载下一个版本。
+ *
+ * 用法：
+ *   ModelRegistry<GBDTModel> registry = new ModelRegistry<>("ctr", new File("/models/ctr"), GBDTModel::createByPmml);
+ *   registry.setWarmer(model -> model.warmUp(10000));
+ *   registry.start();
+ *   try (ModelRegistry.Lease<GBDTModel> lease = registry.acquire()) {
+ *       lease.get().predict(row);
+ *   }
+ *
+ * @param <M> 模型类型
+ */
+public class ModelRegistry<M> implements Closeable {
+
+    public interface Loader<M> {
+        M load(File file) throws Exception;
+    }
+
+    public interface Warmer<M> {
+        void warm(M model) throws Exception;
+    }
+
+    public interface Disposer<M> {
+        void dispose(M model);
+    }
+
+    public interface SwapListener<M> {
+        /**
+         * 新版本生效后在加载线程上回调
+         * @param previous 被替换的版本，第一次加载时为null
+         */
+        void onSwap(Version<M> previous, Version<M> current);
+    }
+
+    private final String name;
+    private final File source;
+    private final Loader<M> loader;
+    private volatile Warmer<M> warmer;
+    private volatile Disposer<M> disposer;
+    private volatile FileFilter fileFilter;
+    private volatile long pollIntervalMillis = 10000;
+
+    private final AtomicReference<Version<M>> current = new AtomicReference<>();
+    private final List<SwapListener<M>> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService executor;
+    // 上一个被替换、还没回收完的版本
+    private Version<M> retired;
+    private long versionSequence;
+    // 上一次轮询看到的文件，连续两次相同才认为文件已经写完
+    private Signature lastSeen;
+    // 加载失败的文件，变化之前不再重试
+    private Signature failed;
+
+    private volatile Throwable lastError;
+    private volatile long failedLoads;
+
+    /**
+     * @param source 模型文件；如果是目录，取其中文件名最大的文件(例如按dt命名的模型)
+     */
+    public ModelRegistry(String name, File source, Loader<M> loader) {
+        this.name = name;
+        this.source = source;
+        this.loader = loader;
+    }
+
+    /**
+     * 加载完成、替换之前调用，通常用合成数据做一些预测，让JIT提前编译
+     */
+    public void setWarmer(Warmer<M> warmer) { this.warmer = warmer; }
+
+    /**
+     * 被替换的版本所有租约释放后调用
+     */
+    public void setDisposer(Disposer<M> disposer) { this.disposer = disposer; }
+
+    /**
+     * source为目录时用来筛选候选文件
+     */
+    public void setFileFilter(FileFilter fileFilter) { this.fileFilter = fileFilter; }
+
+    /**
+     * 需要在start()之前设置
+     */
+    public void setPollInterval(long interval, TimeUnit unit) { this.pollIntervalMillis = unit.toMillis(interval); }
+
+    public void addSwapListener(SwapListener<M> listener) { this.listeners.add(listener); }
+
+    public void removeSwapListener(SwapListener<M> listener) { this.listeners.remove(listener); }
+
+    public String getName() { return this.name; }
+    public Throwable getLastError() { return this.lastError; }
+    public long getFailedLoads() { return this.failedLoads; }
+
+    /**
+     * 同步加载一次当前的文件，然后开始后台轮询
+     * @throws Exception 第一次加载失败时抛出
+     */
+    public synchronized void start() throws Exception {
+        if (this.executor != null) {
+            throw new IllegalStateException("model registry " + name + " is already started");
+        }
+        File file = candidate();
+        if (file == null) {
+            throw new IllegalStateException("no model file found in " + source);
+        }
+        swap(file, new Signature(file));
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "model-registry-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::poll, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止轮询，释放注册表对当前版本的引用，仍在使用的租约不受影响
+     */
+    @Override
+    public synchronized void close() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+        Version<M> version = this.current.getAndSet(null);
+        if (version != null) {
+            version.release();
+        }
+    }
+
+    /**
+     * 拿到当前版本的租约，用完必须close，建议用try-with-resources
+     */
+    public Lease<M> acquire() {
+        while (true) {
+            Version<M> version = this.current.get();
+            if (version == null) {
+                throw new IllegalStateException("model registry " + name + " has no model loaded");
+            }
+            if (version.retain()) {
+                return new Lease<>(version);
+            }
+            // 该版本刚好被替换并回收完，重新读取当前版本
+        }
+    }
+
+    /**
+     * 当前版本，不持有租约，调用期间模型可能被替换
+     */
+    public Version<M> current() {
+        return this.current.get();
+    }
+
+    /**
+     * 立即检查一次，文件有变化时同步加载；与轮询一样，上一个被替换的版本还没回收完时不加载
+     * @return 是否替换了版本
+     */
+    public synchronized boolean reload() throws Exception {
+        if (!retiredDrained()) {
+            return false;
+        }
+        File file = candidate();
+        if (file == null) {
+            return false;
+        }
+        Signature signature = new Signature(file);
+        Version<M> version = this.current.get();
+        if (version != null && signature.equals(version.signature)) {
+            return false;
+        }
+        swap(file, signature);
+        return true;
+    }
+
+    private synchronized void poll() {
+        try {
+            if (!retiredDrained()) {
+                return;
+            }
+            File file = candidate();
+            if (file == null) {
+                return;
+            }
+            Signature signature = new Signature(file);
+            Version<M> version = this.current.get();
+            if ((version != null && signature.equals(version.signature)) || signature.equals(this.failed)) {
+                return;
+            }
+            if (!signature.equals(this.lastSeen)) {
+                // 文件可能还在写入，等下一次轮询确认大小和修改时间不再变化
+                this.lastSeen = signature;
+                return;
+            }
+            try {
+                swap(file, signature);
+            } catch (Throwable e) {
+                this.failed = signature;
+                throw e;
+            }
+        } catch (Throwable e) {
+            this.lastError = e;
+            this.failedLoads++;
+        }
+    }
+
+    /**
+     * @return 上一个被替换的版本是否已经回收完
+     */
+    private boolean retiredDrained() {
+        if (this.retired != null) {
+            if (this.retired.refs.get() > 0) {
+                return false;
+            }
+            this.retired = null;
+        }
+        return true;
+    }
+
+    private void swap(File file, Signature signature) throws Exception {
+        long start = System.nanoTime();
+        M model = loader.load(file);
+        if (model == null) {
+            throw new IllegalStateException("loader returned null for " + file);
+        }
+        long loaded = System.nanoTime();
+        Warmer<M> warmer = this.warmer;
+        if (warmer != null) {
+            try {
+                warmer.warm(model);
+            } catch (Throwable e) {
+                // 没有发布的模型直接回收，mmap和堆外内存不必等GC
+                try {
+                    dispose(model);
+                } catch (RuntimeException disposeError) {
+                    e.addSuppressed(disposeError);
+                }
+                throw e;
+            }
+        }
+        long warmed = System.nanoTime();
+
+        Version<M> version = new Version<>(this, model, ++versionSequence, file, signature,
+                loaded - start, warmed - loaded);
+        Version<M> previous = this.current.getAndSet(version);
+        this.lastSeen = signature;
+        this.lastError = null;
+        if (previous != null) {
+            this.retired = previous;
+            previous.release();
+        }
+        for (SwapListener<M> listener : listeners) {
+            listener.onSwap(previous, version);
+        }
+    }
+
+    private File candidate() {
+        if (!source.isDirectory()) {
+            return source.isFile() ? source : null;
+        }
+        FileFilter filter = this.fileFilter;
+        File [] files = filter == null ? source.listFiles() : source.listFiles(filter);
+        File best = null;
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && !file.isHidden() && (best == null || file.getName().compareTo(best.getName()) > 0)) {
+                    best = file;
+                }
+            }
+        }
+        return best;
+    }
+
+    private void dispose(M model) {
+        Disposer<M> disposer = this.disposer;
+        if (disposer != null) {
+            disposer.dispose(model);
+        }
+    }
+
+    /**
+     * 模型的一个已加载版本，注册表持有一个引用，每个租约再持有一个
+     */
+    public static final class Version<M> {
+        private final ModelRegistry<M> registry;
+        private final M model;
+        private final long version;
+        private final File file;
+        private final Signature signature;
+        private final long loadNanos;
+        private final long warmUpNanos;
+        private final long loadedAt;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Version(ModelRegistry<M> registry, M model, long version, File file, Signature signature,
+                long loadNanos, long warmUpNanos) {
+            this.registry = registry;
+            this.model = model;
+            this.version = version;
+            this.file = file;
+            this.signature = signature;
+            this.loadNanos = loadNanos;
+            this.warmUpNanos = warmUpNanos;
+            this.loadedAt = System.currentTimeMillis();
+        }
+
+        public M getModel() { return this.model; }
+        // 注册表内单调递增的版本号，从1开始
+        public long getVersion() { return this.version; }
+        public File getFile() { return this.file; }
+        public long getLoadNanos() { return this.loadNanos; }
+        public long getWarmUpNanos() { return this.warmUpNanos; }
+        public long getLoadedAt() { return this.loadedAt; }
+        public int getLeaseCount() { return Math.max(0, this.refs.get() - (registry.current.get() == this ? 1 : 0)); }
+
+        boolean retain() {
+            while (true) {
+                int count = refs.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                registry.dispose(this.model);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s v%d %s load=%.1fms warmUp=%.1fms", registry.name, version, file,
+                    loadNanos / 1e6, warmUpNanos / 1e6);
+        }
+    }
+
+    /**
+     * 一次请求对某个版本的使用权，只能在一个线程中使用
+     */
+    public static final class Lease<M> implements AutoCloseable {
+        private final Version<M> version;
+        private boolean closed;
+
+        Lease(Version<M> version) {
+            this.version = version;
+        }
+
+        public M get() { return this.version.model; }
+        public Version<M> getVersion() { return this.version; }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                version.release();
+            }
+        }
+    }
+
+    private static final class Signature {
+        final String path;
+        final long length;
+        final long lastModified;
+
+        Signature(File file) {
+            this.path = file.getAbsolutePath();
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Signature)) {
+                return false;
+            }
+            Signature other = (Signature) o;
+            return path.equals(other.path) && length == other.length && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + Long.hashCode(lastModified);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.ymkigeg.ml.pmml;
+
+import org.dom4j.DocumentException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * PMML的流式读取工具，用StAX逐个事件读取，不在内存中构造整棵DOM树。
+ * 关闭DTD和外部实体，模型文件中的实体引用不会被展开
+ */
+final class PmmlStreams {
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private PmmlStreams() {}
+
+    interface Parser<T> {
+        T parse(XMLStreamReader reader) throws XMLStreamException, DocumentException;
+    }
+
+    static <T> T read(File file, Parser<T> parser) throws DocumentException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            return read(in, parser);
+        } catch (IOException e) {
+            throw new DocumentException("failed to read pmml " + file, e);
+        }
+    }
+
+    static <T> T read(URL url, Parser<T> parser) throws DocumentException {
+        try (InputStream in = new BufferedInputStream(url.openStream(), 1 << 16)) {
+            return read(in, parser);
+        } catch (IOException e) {
+            throw new DocumentException("failed to read pmml " + url, e);
+        }
+    }
+
+    /**
+     * 不关闭调用方传入的流
+     */
+    static <T> T read(InputStream in, Parser<T> parser) throws DocumentException {
+        XMLStreamReader reader = null;
+        try {
+            synchronized (FACTORY) {
+                reader = FACTORY.createXMLStreamReader(in);
+            }
+            return parser.parse(reader);
+        } catch (XMLStreamException e) {
+            throw new DocumentException("failed to parse pmml: " + e.getMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取必需的属性，缺失时抛出DocumentException
+     */
+    static String requireAttribute(XMLStreamReader reader, String name) throws DocumentException {
+        String value = reader.getAttributeValue(null, name);
+        if (value == null) {
+            throw new DocumentException("<" + reader.getLocalName() + "> has no attribute " + name
+                    + " at line " + reader.getLocation().getLineNumber());
+        }
+        return value;
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return factory;
+    }
+}
@@ -0,0 +1,544 @@
+package com.ymkigeg.ml.pmml;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 预测结果缓存，可以放在任意模型前面：以 模型版本 + 规范化后的特征 的128位哈希为key缓存预测分，
+ * 相同的特征向量(重试、热门物料、扇出重复)不再重复计算。
+ * 按字节预算分配固定大小的数组，分段加锁；淘汰采用W-TinyLFU：新条目先进入占1%的窗口LRU，
+ * 从窗口淘汰的条目与主区(SLRU，probation 20% + protected 80%)的淘汰候选比较Count-Min Sketch估计的访问频率，频率高的留下。
+ * 特征的规范化：0.0和-0.0视为相同，所有NaN视为相同；稀疏和Map输入与特征顺序无关，并忽略取值为0的特征。
+ * 同一向量的不同排列可能命中同一个条目，得到的分数与重新计算最多相差浮点舍入误差。
+ *
+ * 用法：
+ *   PredictionCache cache = new PredictionCache(64L << 20);
+ *   cache.invalidateOn(registry);
+ *   try (ModelRegistry.Lease<GBDTModel> lease = registry.acquire()) {
+ *       double score = cache.predict(lease.getVersion().getVersion(), row, lease.get()::predict);
+ *   }
+ */
+public class PredictionCache {
+
+    public interface DenseModel<E extends Exception> {
+        double predict(double [] features) throws E;
+    }
+
+    public interface SparseModel<E extends Exception> {
+        double predict(int [] index, double [] value) throws E;
+    }
+
+    public interface MapModel<K, E extends Exception> {
+        double predict(Map<K, Double> features) throws E;
+    }
+
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private static final int MAX_SEGMENTS = 64;
+    private static final long CANONICAL_NAN = Double.doubleToLongBits(Double.NaN);
+    // 缓存的分数用doubleToLongBits保存，NaN都规范化为CANONICAL_NAN，不会与这个NaN相同
+    private static final long MISS = 0x7FF80000DEADBEEFL;
+    private static final long P1 = 0x9E3779B97F4A7C15L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+
+    private final Segment [] segments;
+    private final int segmentMask;
+    private final long maxBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxBytes 缓存占用内存的上限，包括key、值、淘汰队列、哈希索引和频率统计
+     */
+    public PredictionCache(long maxBytes) {
+        int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, Runtime.getRuntime().availableProcessors() * 4)));
+        while (count > 1 && maxBytes / count < Segment.bytes(MIN_SEGMENT_CAPACITY)) {
+            count >>>= 1;
+        }
+        long segmentBytes = maxBytes / count;
+        // 找到字节数不超过预算的最大容量
+        int low = MIN_SEGMENT_CAPACITY;
+        int high = (int) Math.min(Integer.MAX_VALUE >>> 3, Math.max(low, segmentBytes / 32));
+        while (low < high) {
+            int mid = (int) (((long) low + high + 1) >>> 1);
+            if (Segment.bytes(mid) <= segmentBytes) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            this.segments[i] = new Segment(low);
+        }
+        this.segmentMask = count - 1;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 稠密输入，特征按位置区分
+     * @param version 模型版本，例如 ModelRegistry.Version.getVersion()
+     */
+    public <E extends Exception> double predict(long version, double [] features, DenseModel<E> model) throws E {
+        long h1 = version * P1;
+        long h2 = version * P2 + features.length;
+        for (double feature : features) {
+            long bits = canonical(feature);
+            h1 = Long.rotateLeft((h1 ^ bits) * P1, 31);
+            h2 = Long.rotateLeft((h2 ^ bits) * P2, 29) + h1;
+        }
+        h1 = mix(h1 ^ features.length);
+        h2 = mix(h2 ^ h1);
+        Segment segment = segment(h1);
+        long cached = segment.get(h1, h2, this);
+        if (cached != MISS) {
+            return Double.longBitsToDouble(cached);
+        }
+        double score = model.predict(features);
+        segment.put(h1, h2, score, this);
+        return score;
+    }
+
+    /**
+     * 稀疏输入，例如FMModel.predict(int[], double[])
+     */
+    public <E extends Exception> double predict(long version, int [] index, double [] value, SparseModel<E> model)
+            throws E {
+        long h1 = 0;
+        long h2 = 0;
+        int count = 0;
+        for (int i = 0; i < index.length; i++) {
+            if (value[i] == 0) {
+                continue;
+            }
+            long bits = canonical(value[i]);
+            h1 += mix(index[i] * P1 + bits);
+            h2 += mix((index[i] * P2) ^ Long.rotateLeft(bits, 17));
+            count++;
+        }
+        h1 = mix(h1 ^ version * P3 ^ count);
+        h2 = mix(h2 + version * P1 + h1);
+        Segment segment = segment(h1);
+        long cached = segment.get(h1, h2, this);
+        if (cached != MISS) {
+            return Double.longBitsToDouble(cached);
+        }
+        double score = model.predict(index, value);
+        segment.put(h1, h2, score, this);
+        return score;
+    }
+
+    /**
+     * Map输入，key为String或Integer等，例如GBDTModel.predict(Map)或FMModel.predict(Map)
+     */
+    public <K, E extends Exception> double predict(long version, Map<K, Double> features, MapModel<K, E> model)
+            throws E {
+        long h1 = 0;
+        long h2 = 0;
+        int count = 0;
+        for (Map.Entry<K, Double> entry : features.entrySet()) {
+            Double value = entry.getValue();
+            double v = value == null ? Double.NaN : value;
+            if (v == 0) {
+                continue;
+            }
+            long key = keyHash(entry.getKey());
+            long bits = canonical(v);
+            h1 += mix(key * P1 + bits);
+            h2 += mix((key * P2) ^ Long.rotateLeft(bits, 17));
+            count++;
+        }
+        h1 = mix(h1 ^ version * P3 ^ count);
+        h2 = mix(h2 + version * P1 + h1);
+        Segment segment = segment(h1);
+        long cached = segment.get(h1, h2, this);
+        if (cached != MISS) {
+            return Double.longBitsToDouble(cached);
+        }
+        double score = model.predict(features);
+        segment.put(h1, h2, score, this);
+        return score;
+    }
+
+    /**
+     * 清空缓存，模型更新时调用；版本号本身也是key的一部分，旧版本的条目不会被新版本读到
+     */
+    public void invalidate() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+        invalidations.increment();
+    }
+
+    /**
+     * 注册表每次替换版本后清空缓存
+     */
+    public <M> void invalidateOn(ModelRegistry<M> registry) {
+        registry.addSwapListener((previous, current) -> invalidate());
+    }
+
+    public long getHits() { return this.hits.sum(); }
+    public long getMisses() { return this.misses.sum(); }
+    public long getEvictions() { return this.evictions.sum(); }
+    // 从窗口淘汰时因访问频率不如主区的候选而被丢弃的条目数
+    public long getRejections() { return this.rejections.sum(); }
+    public long getInvalidations() { return this.invalidations.sum(); }
+    public long getMaxBytes() { return this.maxBytes; }
+
+    public double getHitRate() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long capacity() {
+        return (long) segments.length * segments[0].capacity;
+    }
+
+    /**
+     * @return 实际分配的字节数
+     */
+    public long estimatedBytes() {
+        return segments.length * Segment.bytes(segments[0].capacity);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d capacity=%d bytes=%d hits=%d misses=%d hitRate=%.3f evictions=%d rejections=%d",
+                size(), capacity(), estimatedBytes(), getHits(), getMisses(), getHitRate(), getEvictions(),
+                getRejections());
+    }
+
+    private Segment segment(long h1) {
+        return segments[(int) (h1 >>> 40) & segmentMask];
+    }
+
+    private static long canonical(double value) {
+        if (value == 0) {
+            return 0;
+        }
+        return value != value ? CANONICAL_NAN : Double.doubleToRawLongBits(value);
+    }
+
+    private static long keyHash(Object key) {
+        if (key instanceof String) {
+            String s = (String) key;
+            long h = P3 ^ s.length();
+            for (int i = 0; i < s.length(); i++) {
+                h = (h ^ s.charAt(i)) * P1;
+            }
+            return mix(h);
+        }
+        if (key instanceof Integer || key instanceof Long) {
+            return ((Number) key).longValue();
+        }
+        return key == null ? 0 : mix(key.hashCode() * P2);
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    /**
+     * 一个分段：条目存放在定长数组中，哈希索引为线性探测的开放寻址表，
+     * 窗口、probation、protected三个队列用prev/next下标串成双向链表，表头是最久未访问的条目
+     */
+    private static final class Segment {
+        private static final int WINDOW = 0;
+        private static final int PROBATION = 1;
+        private static final int PROTECTED = 2;
+        private static final int NIL = -1;
+        // 每个条目的数组开销: keyHi + keyLo + value + prev + next + queue
+        private static final int SLOT_BYTES = 8 + 8 + 8 + 4 + 4 + 1;
+
+        final int capacity;
+        private final int windowCapacity;
+        private final int protectedCapacity;
+        private final long [] keyHi;
+        private final long [] keyLo;
+        private final long [] values;
+        private final int [] prev;
+        private final int [] next;
+        private final byte [] queue;
+        // 条目下标+1，0表示空
+        private final int [] table;
+        private final int tableMask;
+        private final FrequencySketch sketch;
+
+        private final int [] head = new int[3];
+        private final int [] tail = new int[3];
+        private final int [] queueSize = new int[3];
+        private int freeList;
+        private int size;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.windowCapacity = Math.max(1, capacity / 100);
+            int mainCapacity = capacity - windowCapacity;
+            this.protectedCapacity = (int) (mainCapacity * 0.8);
+            int slots = capacity + 1;
+            this.keyHi = new long[slots];
+            this.keyLo = new long[slots];
+            this.values = new long[slots];
+            this.prev = new int[slots];
+            this.next = new int[slots];
+            this.queue = new byte[slots];
+            this.table = new int[tableLength(capacity)];
+            this.tableMask = this.table.length - 1;
+            this.sketch = new FrequencySketch(capacity);
+            clear();
+        }
+
+        static long bytes(int capacity) {
+            return (long) (capacity + 1) * SLOT_BYTES + (long) tableLength(capacity) * 4
+                    + FrequencySketch.bytes(capacity);
+        }
+
+        private static int tableLength(int capacity) {
+            return Integer.highestOneBit(Math.max(4, capacity + 1) * 2 - 1) << 1;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(table, 0);
+            Arrays.fill(head, NIL);
+            Arrays.fill(tail, NIL);
+            Arrays.fill(queueSize, 0);
+            for (int i = 0; i < next.length; i++) {
+                next[i] = i + 1 < next.length ? i + 1 : NIL;
+            }
+            freeList = 0;
+            size = 0;
+            sketch.clear();
+        }
+
+        /**
+         * @return 分数的doubleToLongBits，不存在时为MISS
+         */
+        synchronized long get(long hi, long lo, PredictionCache cache) {
+            sketch.increment(hi);
+            int slot = find(hi, lo);
+            if (slot < 0) {
+                cache.misses.increment();
+                return MISS;
+            }
+            cache.hits.increment();
+            long value = values[slot];
+            if (queue[slot] == WINDOW) {
+                unlink(slot);
+                append(WINDOW, slot);
+            } else if (queue[slot] == PROBATION) {
+                unlink(slot);
+                append(PROTECTED, slot);
+                if (queueSize[PROTECTED] > protectedCapacity) {
+                    int demoted = head[PROTECTED];
+                    unlink(demoted);
+                    append(PROBATION, demoted);
+                }
+            } else {
+                unlink(slot);
+                append(PROTECTED, slot);
+            }
+            return value;
+        }
+
+        synchronized void put(long hi, long lo, double value, PredictionCache cache) {
+            int slot = find(hi, lo);
+            if (slot >= 0) {
+                values[slot] = Double.doubleToLongBits(value);
+                return;
+            }
+            slot = freeList;
+            freeList = next[slot];
+            keyHi[slot] = hi;
+            keyLo[slot] = lo;
+            values[slot] = Double.doubleToLongBits(value);
+            insertIndex(slot);
+            append(WINDOW, slot);
+            size++;
+
+            if (queueSize[WINDOW] > windowCapacity) {
+                // 窗口的最旧条目进入主区，主区满时与主区的最旧条目比较频率
+                int candidate = head[WINDOW];
+                unlink(candidate);
+                append(PROBATION, candidate);
+                if (size > capacity) {
+                    int victim = head[PROBATION] != candidate ? head[PROBATION] : head[PROTECTED];
+                    if (victim == NIL || sketch.frequency(keyHi[candidate]) > sketch.frequency(keyHi[victim])) {
+                        evict(victim == NIL ? candidate : victim);
+                    } else {
+                        evict(candidate);
+                        cache.rejections.increment();
+                    }
+                    cache.evictions.increment();
+                }
+            }
+        }
+
+        private void evict(int slot) {
+            unlink(slot);
+            removeIndex(slot);
+            next[slot] = freeList;
+            freeList = slot;
+            size--;
+        }
+
+        private int find(long hi, long lo) {
+            int i = (int) lo & tableMask;
+            while (true) {
+                int entry = table[i];
+                if (entry == 0) {
+                    return -1;
+                }
+                int slot = entry - 1;
+                if (keyLo[slot] == lo && keyHi[slot] == hi) {
+                    return slot;
+                }
+                i = (i + 1) & tableMask;
+            }
+        }
+
+        private void insertIndex(int slot) {
+            int i = (int) keyLo[slot] & tableMask;
+            while (table[i] != 0) {
+                i = (i + 1) & tableMask;
+            }
+            table[i] = slot + 1;
+        }
+
+        /**
+         * 线性探测表的删除：把后面同一探测链上的条目往前移，不留墓碑
+         */
+        private void removeIndex(int slot) {
+            int i = (int) keyLo[slot] & tableMask;
+            while (table[i] != slot + 1) {
+                i = (i + 1) & tableMask;
+            }
+            int hole = i;
+            int j = hole;
+            while (true) {
+                j = (j + 1) & tableMask;
+                int entry = table[j];
+                if (entry == 0) {
+                    break;
+                }
+                int home = (int) keyLo[entry - 1] & tableMask;
+                // home不在(hole, j]之间时可以移到hole
+                if (((j - home) & tableMask) >= ((j - hole) & tableMask)) {
+                    table[hole] = entry;
+                    hole = j;
+                }
+            }
+            table[hole] = 0;
+        }
+
+        private void append(int q, int slot) {
+            queue[slot] = (byte) q;
+            prev[slot] = tail[q];
+            next[slot] = NIL;
+            if (tail[q] == NIL) {
+                head[q] = slot;
+            } else {
+                next[tail[q]] = slot;
+            }
+            tail[q] = slot;
+            queueSize[q]++;
+        }
+
+        private void unlink(int slot) {
+            int q = queue[slot];
+            if (prev[slot] == NIL) {
+                head[q] = next[slot];
+            } else {
+                next[prev[slot]] = next[slot];
+            }
+            if (next[slot] == NIL) {
+                tail[q] = prev[slot];
+            } else {
+                prev[next[slot]] = prev[slot];
+            }
+            queueSize[q]--;
+        }
+    }
+
+    /**
+     * 4位计数器的Count-Min Sketch，每个long存16个计数器，每个key取4个计数器的最小值；
+     * 累计次数达到容量的10倍时所有计数器减半，让频率随时间衰减
+     */
+    private static final class FrequencySketch {
+        private static final long [] SEEDS = {0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL,
+                0xCBF29CE484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long [] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            this.table = new long[length(capacity)];
+            this.tableMask = this.table.length - 1;
+            this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * capacity);
+        }
+
+        static long bytes(int capacity) {
+            return (long) length(capacity) * 8;
+        }
+
+        private static int length(int capacity) {
+            return Integer.highestOneBit(Math.max(8, capacity) * 2 - 1);
+        }
+
+        void clear() {
+            Arrays.fill(table, 0);
+            additions = 0;
+        }
+
+        int frequency(long hash) {
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                long h = mix((hash + SEEDS[i]) * SEEDS[i]);
+                int shift = (int) (h & 15) << 2;
+                frequency = Math.min(frequency, (int) (table[(int) (h >>> 32) & tableMask] >>> shift) & 15);
+            }
+            return frequency;
+        }
+
+        void increment(long hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                long h = mix((hash + SEEDS[i]) * SEEDS[i]);
+                int shift = (int) (h & 15) << 2;
+                int index = (int) (h >>> 32) & tableMask;
+                if (((table[index] >>> shift) & 15) != 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions >>>= 1;
+            }
+        }
+    }
+}
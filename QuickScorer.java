@@ -0,0 +1,185 @@
+package com.ymkigeg.ml.pmml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * QuickScorer位向量打分：把所有树的"<="分裂按(特征, 阈值)排序，
+ * 对每个特征只扫描阈值小于特征值的那些节点，用位与排除其左子树的叶子，
+ * 每棵树剩下的最低位就是出口叶子。要求每棵树不超过64个叶子、只有数值分裂
+ */
+final class QuickScorer implements ForestScorer {
+
+    static final int MAX_LEAVES = 64;
+
+    // 按特征分段、段内按阈值升序的分裂节点
+    private final int[] featureStart;
+    private final double[] thresholds;
+    private final int[] trees;
+    private final long[] masks;
+    private final boolean[] defaultLeft;
+
+    // 第t棵树的第i个叶子（从左到右）的值在leafValues[leafOffset[t] + i]
+    private final int[] leafOffset;
+    private final double[] leafValues;
+
+    private final ThreadLocal<long[]> bitvectors;
+
+    private QuickScorer(int[] featureStart, double[] thresholds, int[] trees, long[] masks, boolean[] defaultLeft,
+                        int[] leafOffset, double[] leafValues) {
+        this.featureStart = featureStart;
+        this.thresholds = thresholds;
+        this.trees = trees;
+        this.masks = masks;
+        this.defaultLeft = defaultLeft;
+        this.leafOffset = leafOffset;
+        this.leafValues = leafValues;
+        final int treeCount = leafOffset.length;
+        this.bitvectors = ThreadLocal.withInitial(() -> new long[treeCount]);
+    }
+
+    /**
+     * @return 森林不满足条件时返回null
+     */
+    static QuickScorer build(FlatForest forest) {
+        List<Split> splits = new ArrayList<>();
+        int[] leafOffset = new int[forest.treeCount()];
+        double[] leafValues = new double[0];
+        int leafCount = 0;
+        for (int t = 0; t < forest.treeCount(); t++) {
+            TreeBuilder builder = new TreeBuilder(forest, t, splits);
+            if (!builder.visit(forest.roots[t], 0)) {
+                return null;
+            }
+            leafOffset[t] = leafCount;
+            if (leafCount + builder.leafCount > leafValues.length) {
+                leafValues = Arrays.copyOf(leafValues, Math.max(leafValues.length * 2, leafCount + builder.leafCount));
+            }
+            System.arraycopy(builder.leafValues, 0, leafValues, leafCount, builder.leafCount);
+            leafCount += builder.leafCount;
+        }
+
+        splits.sort(Comparator.<Split>comparingInt(s -> s.feature).thenComparingDouble(s -> s.threshold));
+        int n = splits.size();
+        int[] featureStart = new int[forest.featureCount + 1];
+        double[] thresholds = new double[n];
+        int[] trees = new int[n];
+        long[] masks = new long[n];
+        boolean[] defaultLeft = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            Split split = splits.get(i);
+            featureStart[split.feature + 1]++;
+            thresholds[i] = split.threshold;
+            trees[i] = split.tree;
+            masks[i] = split.mask;
+            defaultLeft[i] = split.defaultLeft;
+        }
+        for (int f = 0; f < forest.featureCount; f++) {
+            featureStart[f + 1] += featureStart[f];
+        }
+        return new QuickScorer(featureStart, thresholds, trees, masks, defaultLeft,
+                leafOffset, Arrays.copyOf(leafValues, leafCount));
+    }
+
+    /**
+     * 每棵树平均叶子数，供自动选择打分引擎使用
+     */
+    double averageLeaves() {
+        return leafOffset.length == 0 ? 0 : (double) leafValues.length / leafOffset.length;
+    }
+
+    @Override
+    public double score(double[] x) {
+        long[] v = bitvectors.get();
+        Arrays.fill(v, -1L);
+        for (int f = 0; f + 1 < featureStart.length; f++) {
+            int start = featureStart[f];
+            int end = featureStart[f + 1];
+            if (start == end) {
+                continue;
+            }
+            double data = x[f];
+            if (data != data) {
+                for (int i = start; i < end; i++) {
+                    if (!defaultLeft[i]) {
+                        v[trees[i]] &= masks[i];
+                    }
+                }
+            } else {
+                for (int i = start; i < end && thresholds[i] < data; i++) {
+                    v[trees[i]] &= masks[i];
+                }
+            }
+        }
+
+        double score = 0.0;
+        for (int t = 0; t < v.length; t++) {
+            score = score + leafValues[leafOffset[t] + Long.numberOfTrailingZeros(v[t])];
+        }
+        return score;
+    }
+
+    @Override
+    public void scoreBlock(double[][] rows, int from, int to, double[] out) {
+        for (int r = from; r < to; r++) {
+            out[r] = score(rows[r]);
+        }
+    }
+
+    private static class Split {
+        int feature;
+        double threshold;
+        int tree;
+        long mask;
+        boolean defaultLeft;
+    }
+
+    /**
+     * 从左到右给一棵树的叶子编号，并记录每个分裂节点为false时要清掉的左子树叶子位。
+     * 深度为d的分裂节点所在的树至少有d+2个叶子，所以递归深度不超过MAX_LEAVES，
+     * 很深的链状树在这里就被拒绝，不会爆栈
+     */
+    private static class TreeBuilder {
+        private final FlatForest forest;
+        private final int tree;
+        private final List<Split> splits;
+        private final double[] leafValues = new double[MAX_LEAVES];
+        private int leafCount;
+
+        TreeBuilder(FlatForest forest, int tree, List<Split> splits) {
+            this.forest = forest;
+            this.tree = tree;
+            this.splits = splits;
+        }
+
+        boolean visit(int node, int depth) {
+            if (forest.feature[node] < 0) {
+                if (leafCount == MAX_LEAVES) {
+                    return false;
+                }
+                leafValues[leafCount++] = forest.leafValue[node];
+                return true;
+            }
+            if ((forest.flags[node] & FlatForest.CATEGORICAL) != 0 || forest.right[node] < 0
+                    || Double.isNaN(forest.threshold[node]) || depth >= MAX_LEAVES - 1) {
+                return false;
+            }
+
+            int first = leafCount;
+            if (!visit(forest.left[node], depth + 1)) {
+                return false;
+            }
+            int width = leafCount - first;
+            Split split = new Split();
+            split.feature = forest.feature[node];
+            split.threshold = forest.threshold[node];
+            split.tree = tree;
+            split.mask = ~((width == 64 ? -1L : (1L << width) - 1) << first);
+            split.defaultLeft = (forest.flags[node] & FlatForest.DEFAULT_LEFT) != 0;
+            splits.add(split);
+            return visit(forest.right[node], depth + 1);
+        }
+    }
+}
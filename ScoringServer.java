@@ -0,0 +1,282 @@
+package com.ymkigeg.ml.pmml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 基于JDK HttpServer的最小打分服务，用于本地联调和压测，每个模型一个MicroBatcher。
+ *   POST /score/{name}  请求体每行一个样本，按注册时的parser解析；响应每行一个分数，顺序与请求相同
+ *   GET  /stats         每个模型的批处理统计
+ * 每个HTTP请求在自己的线程上等待结果，JDK 21以上用虚拟线程，否则退回缓存线程池。
+ * 同一个HTTP请求中的多行与其它请求一起参与合批
+ */
+public final class ScoringServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Endpoint<?>> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * @param port 0表示随机端口，见getPort()
+     */
+    public ScoringServer(int port) throws IOException {
+        // JDK HttpServer默认不设TCP_NODELAY，小响应会被Nagle算法和延迟确认卡住约40ms；需在第一次创建服务前设置
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.executor = newRequestExecutor();
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/score/", this::score);
+        this.server.createContext("/stats", this::stats);
+    }
+
+    /**
+     * 注册模型，已有同名模型时替换，旧的MicroBatcher由调用方关闭
+     * @param parser 把请求体的一行解析为模型输入，输入不合法时抛出IllegalArgumentException
+     */
+    public <T> void register(String name, MicroBatcher<T> batcher, Function<String, T> parser) {
+        this.endpoints.put(name, new Endpoint<>(batcher, parser));
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * 停止服务并关闭所有注册的MicroBatcher
+     */
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdown();
+        for (Endpoint<?> endpoint : this.endpoints.values()) {
+            endpoint.batcher.close();
+        }
+    }
+
+    /**
+     * 每个任务一个线程的线程池，JDK 21以上为虚拟线程，通过反射调用以便在JDK 8上编译运行
+     */
+    public static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "scoring-request-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * 按槽位排列的稠密输入，见FeatureSchema.parseDense
+     */
+    public static double [] parseDense(String line) {
+        return FeatureSchema.parseDense(line);
+    }
+
+    /**
+     * 固定宽度的稠密输入，宽度与模型不符的行在解析时就拒绝(400)，不进入批量打分
+     * @param width 模型的特征数，如 GBDTModel.getFeatureCount()、LogisticRegressionModel.getNumberOfFields()
+     */
+    public static Function<String, double []> denseParser(int width) {
+        return line -> {
+            double [] values = FeatureSchema.parseDense(line);
+            if (values.length != width) {
+                throw new IllegalArgumentException("expect " + width + " values but got " + values.length);
+            }
+            return values;
+        };
+    }
+
+    /**
+     * name=value 形式的输入，之间用逗号或空白分隔，取值为null时对应Map中的null
+     */
+    public static Map<String, Double> parseNamed(String line) {
+        Map<String, Double> values = new HashMap<>();
+        for (String token : line.trim().split("[,\\s]+")) {
+            int split = token.indexOf('=');
+            if (split <= 0) {
+                throw new IllegalArgumentException("expect name=value but got '" + token + "'");
+            }
+            String value = token.substring(split + 1);
+            values.put(token.substring(0, split), "null".equals(value) ? null : Double.valueOf(value));
+        }
+        return values;
+    }
+
+    private void score(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "use POST\n");
+                return;
+            }
+            String name = exchange.getRequestURI().getPath().substring("/score/".length());
+            Endpoint<?> endpoint = this.endpoints.get(name);
+            if (endpoint == null) {
+                respond(exchange, 404, "unknown model " + name + "\n");
+                return;
+            }
+            String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            List<CompletableFuture<Double>> results;
+            try {
+                results = endpoint.submit(body);
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "bad input: " + e.getMessage() + "\n");
+                return;
+            } catch (RejectedExecutionException | IllegalStateException e) {
+                // 队列已满或者模型正在关闭
+                respond(exchange, 503, e.getMessage() + "\n");
+                return;
+            }
+            StringBuilder response = new StringBuilder(results.size() * 20);
+            for (CompletableFuture<Double> result : results) {
+                response.append(result.get()).append('\n');
+            }
+            respond(exchange, 200, response.toString());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                respond(exchange, 400, "bad input: " + e.getCause().getMessage() + "\n");
+            } else {
+                respond(exchange, 500, "scoring failed: " + e.getCause() + "\n");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "interrupted\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        try {
+            StringBuilder response = new StringBuilder();
+            for (Endpoint<?> endpoint : this.endpoints.values()) {
+                response.append(endpoint.batcher).append('\n');
+            }
+            respond(exchange, 200, response.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte [] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte [] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte [] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static final class Endpoint<T> {
+        final MicroBatcher<T> batcher;
+        final Function<String, T> parser;
+
+        Endpoint(MicroBatcher<T> batcher, Function<String, T> parser) {
+            this.batcher = batcher;
+            this.parser = parser;
+        }
+
+        /**
+         * 先解析全部行再提交，任一行不合法时整个请求返回400；
+         * 中途被拒绝时取消已经提交的行，整个请求要么全部打分，要么都不打分
+         */
+        List<CompletableFuture<Double>> submit(String body) {
+            List<T> inputs = new ArrayList<>();
+            for (String line : body.split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    inputs.add(this.parser.apply(line));
+                }
+            }
+            List<CompletableFuture<Double>> results = new ArrayList<>(inputs.size());
+            try {
+                for (T input : inputs) {
+                    results.add(this.batcher.submit(input));
+                }
+            } catch (RuntimeException e) {
+                for (CompletableFuture<Double> result : results) {
+                    result.cancel(false);
+                }
+                throw e;
+            }
+            return results;
+        }
+    }
+
+    /**
+     * 用法: ScoringServer <端口> <名字>=<gbdt|lr>:<pmml文件> ...
+     * 批大小和等待时间由系统属性 scoring.maxBatch(默认64)、scoring.maxWaitMicros(默认200) 指定
+     */
+    public static void main(String [] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: ScoringServer <port> <name>=<gbdt|lr>:<pmml file> ...");
+            System.exit(2);
+        }
+        int maxBatch = Integer.getInteger("scoring.maxBatch", 64);
+        long maxWait = Long.getLong("scoring.maxWaitMicros", 200L);
+        ScoringServer server = new ScoringServer(Integer.parseInt(args[0]));
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            int colon = args[i].indexOf(':', eq + 1);
+            if (eq <= 0 || colon < 0) {
+                System.err.println("bad model spec: " + args[i]);
+                System.exit(2);
+            }
+            String name = args[i].substring(0, eq);
+            String type = args[i].substring(eq + 1, colon);
+            File file = new File(args[i].substring(colon + 1));
+            if ("gbdt".equals(type)) {
+                GBDTModel model = GBDTModel.createByPmml(file);
+                server.register(name, MicroBatcher.forGbdt(model, maxBatch, maxWait),
+                        denseParser(model.getFeatureCount()));
+            } else if ("lr".equals(type)) {
+                LogisticRegressionModel model = LogisticRegressionModel.createByPmml(file);
+                server.register(name, MicroBatcher.forLr(model, maxBatch, maxWait),
+                        denseParser(model.getNumberOfFields()));
+            } else {
+                System.err.println("unknown model type: " + type);
+                System.exit(2);
+            }
+        }
+        server.start();
+        System.out.println("scoring server listening on port " + server.getPort());
+    }
+}
@@ -0,0 +1,230 @@
+package com.ymkigeg.ml.pmml;
+
+/**
+ * 各模型共用的sigmoid链接函数，可以在精度和速度之间选择：
+ * EXACT    直接计算 1 / (1 + exp(-x))
+ * TABLE    查表加线性插值，步长和截断区间按maxAbsError推算，误差不超过maxAbsError
+ * RATIONAL 0.5 + 0.5 * tanh(x / 2)，tanh用Padé有理式近似，按maxAbsError选取最低可用阶数：
+ *          3阶 1.0e-2，5阶 7.0e-4，7阶 5.0e-5，9阶 3.5e-6
+ */
+public abstract class Sigmoid {
+
+    public enum Mode {
+        EXACT,
+        TABLE,
+        RATIONAL
+    }
+
+    private static final Sigmoid EXACT = new Exact();
+
+    // sigmoid二阶导数绝对值的最大值 1 / (6 * sqrt(3))，用于估计线性插值误差
+    private static final double MAX_SECOND_DERIVATIVE = 0.0962250448649376;
+    private static final int MAX_TABLE_SIZE = 1 << 22;
+
+    public static Sigmoid exact() {
+        return EXACT;
+    }
+
+    /**
+     * @param mode
+     * @param maxAbsError 允许的最大绝对误差，EXACT模式忽略
+     * @return
+     */
+    public static Sigmoid create(Mode mode, double maxAbsError) {
+        if (mode == Mode.EXACT) {
+            return EXACT;
+        }
+        if (!(maxAbsError > 0 && maxAbsError < 0.5)) {
+            throw new IllegalArgumentException("maxAbsError must be in (0, 0.5): " + maxAbsError);
+        }
+        if (mode == Mode.TABLE) {
+            return new Table(maxAbsError);
+        }
+        for (int order = 0; order < Rational.BOUNDS.length; order++) {
+            if (Rational.BOUNDS[order] <= maxAbsError) {
+                return new Rational(order);
+            }
+        }
+        throw new IllegalArgumentException("rational sigmoid can not reach maxAbsError " + maxAbsError
+                + ", the best bound is " + Rational.BOUNDS[Rational.BOUNDS.length - 1]);
+    }
+
+    public abstract double apply(double x);
+
+    public abstract Mode getMode();
+
+    /**
+     * @return 该实现保证的最大绝对误差
+     */
+    public abstract double getMaxAbsError();
+
+    /**
+     * 在[-40, 40]上以1e-4为步长与精确值比较，返回实测的最大绝对误差
+     */
+    public double measureMaxAbsError() {
+        double error = 0;
+        for (int i = -400000; i <= 400000; i++) {
+            double x = i * 1e-4;
+            error = Math.max(error, Math.abs(apply(x) - exactValue(x)));
+        }
+        return error;
+    }
+
+    /**
+     * 校验TABLE和RATIONAL的实测误差不超过getMaxAbsError()，有超出时以非0退出，
+     * RATIONAL逐一校验每个阶数。
+     * 用法: Sigmoid [maxAbsError ...]，默认 1e-2 1e-3 1e-4 1e-5 1e-6
+     */
+    public static void main(String [] args) {
+        double [] errors = {1e-2, 1e-3, 1e-4, 1e-5, 1e-6};
+        if (args.length > 0) {
+            errors = new double[args.length];
+            for (int i = 0; i < args.length; i++) {
+                errors[i] = Double.parseDouble(args[i]);
+            }
+        }
+        int failures = 0;
+        for (double error : errors) {
+            failures += check(create(Mode.TABLE, error));
+        }
+        for (double bound : Rational.BOUNDS) {
+            failures += check(create(Mode.RATIONAL, bound));
+        }
+        if (failures > 0) {
+            System.err.println(failures + " sigmoid(s) exceed their error bound");
+            System.exit(1);
+        }
+    }
+
+    private static int check(Sigmoid sigmoid) {
+        double measured = sigmoid.measureMaxAbsError();
+        boolean ok = measured <= sigmoid.getMaxAbsError();
+        System.out.printf("%-8s bound=%.1e measured=%.3e %s%n", sigmoid.getMode(), sigmoid.getMaxAbsError(), measured,
+                ok ? "ok" : "EXCEEDED");
+        return ok ? 0 : 1;
+    }
+
+    private static double exactValue(double x) {
+        return 1 / (1 + Math.exp(-x));
+    }
+
+    private static class Exact extends Sigmoid {
+        @Override
+        public double apply(double x) {
+            return exactValue(x);
+        }
+
+        @Override
+        public Mode getMode() { return Mode.EXACT; }
+
+        @Override
+        public double getMaxAbsError() { return 0; }
+    }
+
+    /**
+     * 区间[-range, range]内等距取点，一半误差预算留给插值，一半留给区间外截断成0/1
+     */
+    private static class Table extends Sigmoid {
+        private final double maxAbsError;
+        private final double range;
+        private final double inverseStep;
+        private final double[] values;
+
+        Table(double maxAbsError) {
+            this.maxAbsError = maxAbsError;
+            double half = maxAbsError / 2;
+            this.range = Math.log(1 / half - 1);
+            double step = Math.sqrt(8 * half / MAX_SECOND_DERIVATIVE);
+            long size = (long) Math.ceil(2 * range / step) + 2;
+            if (size > MAX_TABLE_SIZE) {
+                throw new IllegalArgumentException("sigmoid table for maxAbsError " + maxAbsError + " is too large");
+            }
+            this.inverseStep = (size - 2) / (2 * range);
+            this.values = new double[(int) size];
+            for (int i = 0; i < size; i++) {
+                values[i] = exactValue(i / inverseStep - range);
+            }
+
+            // 插值误差在每格中点附近最大，构造时逐格校验
+            for (int i = 0; i + 2 < size; i++) {
+                double x = (i + 0.5) / inverseStep - range;
+                if (Math.abs(apply(x) - exactValue(x)) > maxAbsError) {
+                    throw new IllegalStateException("sigmoid table exceeds maxAbsError at " + x);
+                }
+            }
+        }
+
+        @Override
+        public double apply(double x) {
+            if (x <= -range) {
+                return 0.0;
+            }
+            if (x >= range) {
+                return 1.0;
+            }
+            double position = (x + range) * inverseStep;
+            int i = (int) position;
+            double low = values[i];
+            return low + (values[i + 1] - low) * (position - i);
+        }
+
+        @Override
+        public Mode getMode() { return Mode.TABLE; }
+
+        @Override
+        public double getMaxAbsError() { return this.maxAbsError; }
+    }
+
+    /**
+     * tanh的[n/n-1]阶Padé近似，|x/2|超过截断点后取±1，截断点和误差上界由离线扫描得到
+     */
+    private static class Rational extends Sigmoid {
+        private static final double[] BOUNDS = {1.0e-2, 7.0e-4, 5.0e-5, 3.5e-6};
+        private static final double[] CUTOFFS = {2.33, 3.65, 4.98, 6.3};
+
+        private final int order;
+        private final double cutoff;
+
+        Rational(int order) {
+            this.order = order;
+            this.cutoff = CUTOFFS[order];
+        }
+
+        @Override
+        public double apply(double x) {
+            double y = 0.5 * x;
+            double t;
+            if (y >= cutoff) {
+                t = 1.0;
+            } else if (y <= -cutoff) {
+                t = -1.0;
+            } else {
+                double y2 = y * y;
+                switch (order) {
+                    case 0:
+                        t = y * (15 + y2) / (15 + 6 * y2);
+                        break;
+                    case 1:
+                        t = y * (945 + y2 * (105 + y2)) / (945 + y2 * (420 + 15 * y2));
+                        break;
+                    case 2:
+                        t = y * (135135 + y2 * (17325 + y2 * (378 + y2)))
+                                / (135135 + y2 * (62370 + y2 * (3150 + 28 * y2)));
+                        break;
+                    default:
+                        t = y * (34459425 + y2 * (4729725 + y2 * (135135 + y2 * (990 + y2))))
+                                / (34459425 + y2 * (16216200 + y2 * (945945 + y2 * (13860 + 45 * y2))));
+                        break;
+                }
+                t = Math.max(-1.0, Math.min(1.0, t));
+            }
+            return 0.5 + 0.5 * t;
+        }
+
+        @Override
+        public Mode getMode() { return Mode.RATIONAL; }
+
+        @Override
+        public double getMaxAbsError() { return BOUNDS[order]; }
+    }
+}
@@ -0,0 +1,155 @@
+package com.ymkigeg.ml.benchmark;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 比较两次JMH运行的CSV结果(-rf csv)，任一基准比基线差超过阈值时以非0退出，用于在CI中拦截性能回退
+ * thrpt模式分数越高越好，其余模式(avgt/sample/ss)越低越好；
+ * 每次操作的分配量(单位B/op或名字以gc.alloc.rate.norm结尾的次级结果)总是越低越好，
+ * 它的Mode列沿用主基准，thrpt基准的分配量也按越低越好比较；
+ * 只在基线中出现的基准会被提示但不算回退
+ * 用法: java BenchmarkGate <基线.csv> <本次.csv> [允许的回退百分比, 默认5]
+ */
+public class BenchmarkGate {
+
+    private BenchmarkGate() {}
+
+    public static class Row {
+        final String mode;
+        final double score;
+        final double error;
+        final String unit;
+        // 每次操作的分配量，与mode无关，越低越好
+        final boolean allocation;
+
+        Row(String name, String mode, double score, double error, String unit) {
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+            this.allocation = "B/op".equals(unit) || name.endsWith("gc.alloc.rate.norm");
+        }
+
+        boolean higherIsBetter() {
+            return !this.allocation && "thrpt".equals(this.mode);
+        }
+    }
+
+    /**
+     * @return 基准名加参数 -> 结果
+     */
+    public static Map<String, Row> read(File file) throws IOException {
+        Map<String, Row> result = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line == null) {
+                return result;
+            }
+            List<String> header = split(line);
+            int benchmark = header.indexOf("Benchmark");
+            int mode = header.indexOf("Mode");
+            int score = header.indexOf("Score");
+            int error = header.indexOf("Score Error (99.9%)");
+            int unit = header.indexOf("Unit");
+            if (benchmark < 0 || mode < 0 || score < 0 || unit < 0) {
+                throw new IOException("not a jmh csv result: " + file);
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                List<String> cols = split(line);
+                StringBuilder key = new StringBuilder(cols.get(benchmark));
+                for (int i = 0; i < header.size() && i < cols.size(); i++) {
+                    if (header.get(i).startsWith("Param: ") && !cols.get(i).isEmpty()) {
+                        key.append(' ').append(header.get(i).substring(7)).append('=').append(cols.get(i));
+                    }
+                }
+                // 带 -prof gc 时的次级结果中只比较每次操作的分配量，其余随吞吐变化
+                String name = cols.get(benchmark);
+                if (name.indexOf(':') >= 0 && !name.endsWith("gc.alloc.rate.norm")) {
+                    continue;
+                }
+                result.put(key.toString(), new Row(name, cols.get(mode), parse(cols.get(score)),
+                        error >= 0 && error < cols.size() ? parse(cols.get(error)) : Double.NaN, cols.get(unit)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return 回退的基准数
+     */
+    public static int compare(Map<String, Row> baseline, Map<String, Row> current, double maxRegressionPercent,
+                              PrintStream out) {
+        int regressions = 0;
+        for (Map.Entry<String, Row> entry : baseline.entrySet()) {
+            Row base = entry.getValue();
+            Row now = current.get(entry.getKey());
+            if (now == null) {
+                out.println("MISSING     " + entry.getKey());
+                continue;
+            }
+            if (base.score == 0 || Double.isNaN(base.score) || Double.isNaN(now.score)) {
+                continue;
+            }
+            boolean higherIsBetter = base.higherIsBetter();
+            double change = (now.score - base.score) / Math.abs(base.score) * 100;
+            double worse = higherIsBetter ? -change : change;
+            String status = worse > maxRegressionPercent ? "REGRESSION" : "ok";
+            if (worse > maxRegressionPercent) {
+                regressions++;
+            }
+            out.println(String.format("%-11s %s: %.4g -> %.4g %s (%+.1f%%)", status, entry.getKey(),
+                    base.score, now.score, now.unit, change));
+        }
+        return regressions;
+    }
+
+    private static double parse(String value) {
+        if (value.isEmpty() || "NaN".equals(value)) {
+            return Double.NaN;
+        }
+        return Double.parseDouble(value.replace(',', '.'));
+    }
+
+    private static List<String> split(String line) {
+        List<String> cols = new ArrayList<>();
+        StringBuilder col = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    col.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                cols.add(col.toString());
+                col.setLength(0);
+            } else {
+                col.append(c);
+            }
+        }
+        cols.add(col.toString());
+        return cols;
+    }
+
+    public static void main(String [] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BenchmarkGate <baseline.csv> <current.csv> [max regression percent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 5.0;
+        int regressions = compare(read(new File(args[0])), read(new File(args[1])), threshold, System.out);
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed by more than " + threshold + "%");
+            System.exit(1);
+        }
+    }
+}
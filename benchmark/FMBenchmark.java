@@ -0,0 +1,198 @@
+package com.ymkigeg.ml.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FMModel的加载时间(文本单线程、文本并行、二进制映射)和单行延迟，每次操作的分配量用 -prof gc 查看。
+ * FMModel等类在默认包中，带包名的类不能直接引用，这里通过static final的MethodHandle调用，
+ * JIT把它们当作常量内联，测到的开销与直接调用相同
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FMBenchmark {
+
+    private static final int ROWS = 1024;
+
+    private static final Class<?> MODEL = type("FMModel");
+    private static final Class<?> PRECISION = type("EmbeddingStore$Precision");
+    private static final MethodHandle CONVERT = method(type("FMBinaryFormat"), "convert", true,
+            void.class, InputStream.class, int.class, PRECISION, File.class);
+    private static final MethodHandle CREATE_BY_TEXT = method(MODEL, "createByText", true,
+            MODEL, InputStream.class, int.class, PRECISION, boolean.class);
+    private static final MethodHandle CREATE_BY_BINARY = method(MODEL, "createByBinary", true,
+            MODEL, File.class);
+    private static final MethodHandle LOAD_TEXT = method(type("FMTextLoader"), "load", true,
+            type("FMTextLoader$LoadResult"), File.class, int.class, PRECISION, boolean.class, int.class);
+    private static final MethodHandle GET_MODEL = method(type("FMTextLoader$LoadResult"), "getModel", false,
+            MODEL);
+    private static final MethodHandle PREDICT_SPARSE = method(MODEL, "predict", false,
+            double.class, int [].class, double [].class);
+    private static final MethodHandle PREDICT_MAP = method(MODEL, "predict", false,
+            double.class, Map.class);
+
+    @Param({"1000000"})
+    public int featureSize;
+
+    @Param({"8", "32"})
+    public int k;
+
+    // 每个请求的非零特征数
+    @Param({"20", "100"})
+    public int nnz;
+
+    // 模型文件中不出现的特征比例
+    @Param({"0.5"})
+    public double sparsity;
+
+    @Param({"FP64", "FP32", "FP16", "INT8"})
+    public String precision;
+
+    private File text;
+    private File binary;
+    private Object model;
+    private int [][] indexes;
+    private double [][] values;
+    private List<Map<Integer, Double>> maps;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int advance() {
+            return next++ & (ROWS - 1);
+        }
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * 查找方法并把接收者、参数和返回值中的默认包类型换成Object，调用时用invokeExact
+     */
+    private static MethodHandle method(Class<?> owner, String name, boolean isStatic, Class<?> result,
+                                       Class<?>... parameters) {
+        MethodType type = MethodType.methodType(result, parameters);
+        try {
+            MethodHandle handle = isStatic ? MethodHandles.publicLookup().findStatic(owner, name, type)
+                    : MethodHandles.publicLookup().findVirtual(owner, name, type);
+            MethodType visible = handle.type().changeReturnType(visible(handle.type().returnType()));
+            for (int i = 0; i < visible.parameterCount(); i++) {
+                visible = visible.changeParameterType(i, visible(visible.parameterType(i)));
+            }
+            return handle.asType(visible);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static Class<?> visible(Class<?> type) {
+        boolean unnamed = !type.isPrimitive() && !type.isArray() && type.getName().indexOf('.') < 0;
+        return unnamed ? Object.class : type;
+    }
+
+    private Object precision() {
+        for (Object value : PRECISION.getEnumConstants()) {
+            if (((Enum<?>) value).name().equals(precision)) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("unknown precision " + precision);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        text = File.createTempFile("fm-benchmark", ".txt");
+        binary = File.createTempFile("fm-benchmark", ".bin");
+        SyntheticModels.writeFmText(text, featureSize, k, sparsity, 1);
+        try (InputStream in = new FileInputStream(text)) {
+            CONVERT.invokeExact(in, featureSize, precision(), binary);
+        }
+        model = (Object) CREATE_BY_BINARY.invokeExact(binary);
+
+        Object [] sparse = SyntheticModels.sparseRows(ROWS, featureSize, nnz, 2);
+        indexes = (int [][]) sparse[0];
+        values = (double [][]) sparse[1];
+        maps = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            Map<Integer, Double> map = new HashMap<>();
+            for (int j = 0; j < indexes[i].length; j++) {
+                map.put(indexes[i][j], values[i][j]);
+            }
+            maps.add(map);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        model = null;
+        for (File file : new File[]{text, binary}) {
+            if (file != null && !file.delete()) {
+                throw new IOException("failed to delete " + file);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public Object loadText() throws Throwable {
+        try (InputStream in = new FileInputStream(text)) {
+            return (Object) CREATE_BY_TEXT.invokeExact(in, featureSize, precision(), false);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public Object loadTextParallel() throws Throwable {
+        Object result = (Object) LOAD_TEXT.invokeExact(text, featureSize, precision(), false,
+                Runtime.getRuntime().availableProcessors());
+        return (Object) GET_MODEL.invokeExact(result);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public Object loadBinary() throws Throwable {
+        return (Object) CREATE_BY_BINARY.invokeExact(binary);
+    }
+
+    @Benchmark
+    public double predictSparse(Cursor cursor) throws Throwable {
+        int i = cursor.advance();
+        return (double) PREDICT_SPARSE.invokeExact(model, indexes[i], values[i]);
+    }
+
+    @Benchmark
+    public double predictMap(Cursor cursor) throws Throwable {
+        return (double) PREDICT_MAP.invokeExact(model, maps.get(cursor.advance()));
+    }
+}
@@ -0,0 +1,114 @@
+package com.ymkigeg.ml.benchmark;
+
+import com.ymkigeg.ml.pmml.GBDTModel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GBDTModel的加载时间、单行延迟和批量吞吐，每次操作的分配量用 -prof gc 查看(gc.alloc.rate.norm)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GBDTBenchmark {
+
+    private static final int ROWS = 4096;
+    private static final int BATCH = 1024;
+
+    @Param({"100", "1000"})
+    public int trees;
+
+    @Param({"6"})
+    public int depth;
+
+    @Param({"100"})
+    public int features;
+
+    @Param({"0.1"})
+    public double missingRate;
+
+    @Param({"AUTO", "TRAVERSAL", "QUICK_SCORER", "COMPILED"})
+    public String mode;
+
+    private File file;
+    private GBDTModel model;
+    private double [][] rows;
+    private List<Map<String, Double>> mapRows;
+    private double [][] batch;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int advance() {
+            return next++ & (ROWS - 1);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        file = File.createTempFile("gbdt-benchmark", ".pmml");
+        SyntheticModels.writeGbdtPmml(file, trees, depth, features, 1);
+        model = GBDTModel.createByPmml(file);
+        model.setEvaluationMode(GBDTModel.EvaluationMode.valueOf(mode));
+        rows = SyntheticModels.denseRows(ROWS, model.getFeatureNames().length, missingRate, 2);
+        mapRows = SyntheticModels.mapRows(ROWS, model.getFeatureNames(), missingRate, 3);
+        batch = SyntheticModels.denseRows(BATCH, model.getFeatureNames().length, missingRate, 4);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (file != null && !file.delete()) {
+            throw new IOException("failed to delete " + file);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public GBDTModel load() throws Exception {
+        return GBDTModel.createByPmml(file);
+    }
+
+    @Benchmark
+    public double predictArray(Cursor cursor) {
+        return model.predict(rows[cursor.advance()]);
+    }
+
+    @Benchmark
+    public double predictMap(Cursor cursor) {
+        return model.predict(mapRows.get(cursor.advance()));
+    }
+
+    @Benchmark
+    public int [] predictLeaf(Cursor cursor) {
+        return model.predictLeaf(rows[cursor.advance()]);
+    }
+
+    @Benchmark
+    public int [] gbdtEncoding(Cursor cursor) {
+        return model.gbdtEncoding(rows[cursor.advance()]);
+    }
+
+    /**
+     * 结果按行计，ops/s即每秒打分行数
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void predictBatch(Blackhole blackhole) {
+        blackhole.consume(model.predictBatch(batch));
+    }
+}
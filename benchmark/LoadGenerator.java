@@ -0,0 +1,179 @@
+package com.ymkigeg.ml.benchmark;
+
+import com.ymkigeg.ml.pmml.GBDTModel;
+import com.ymkigeg.ml.pmml.MicroBatcher;
+import com.ymkigeg.ml.pmml.ScoringServer;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 闭环压测：每个客户端一个线程(支持时为虚拟线程)，收到结果后立即发下一个请求，统计吞吐和延迟分位数。
+ * 用法:
+ *   java LoadGenerator local <树数> <客户端数> <秒数> [最大批大小, 默认64] [最长等待微秒, 默认200]
+ *     用合成GBDT模型在进程内对比逐行predict与经MicroBatcher合批，再经HTTP跑一遍
+ *   java LoadGenerator http <url> <特征数> <客户端数> <秒数>
+ *     向已启动的ScoringServer(如 http://localhost:8080/score/ctr)发送随机稠密样本
+ */
+public class LoadGenerator {
+
+    private LoadGenerator() {}
+
+    /**
+     * 一个请求，返回分数
+     */
+    public interface Call {
+        double call(double [] row) throws Exception;
+    }
+
+    public static class Result {
+        final long requests;
+        final double seconds;
+        final long [] latencies;
+
+        Result(long requests, double seconds, long [] latencies) {
+            this.requests = requests;
+            this.seconds = seconds;
+            this.latencies = latencies;
+        }
+
+        long percentile(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            return latencies[Math.min(latencies.length - 1, (int) (p * latencies.length))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f req/s, p50 %d us, p99 %d us, p999 %d us", requests / seconds,
+                    percentile(0.5) / 1000, percentile(0.99) / 1000, percentile(0.999) / 1000);
+        }
+    }
+
+    /**
+     * @param rows 每个客户端依次循环使用的样本
+     */
+    public static Result run(Call call, double [][] rows, int clients, double seconds) throws InterruptedException {
+        long [][] samples = new long[clients][];
+        int [] counts = new int[clients];
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        ExecutorService executor = ScoringServer.newRequestExecutor();
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            executor.execute(() -> {
+                long [] latency = new long[1024];
+                int n = 0;
+                int next = client;
+                try {
+                    while (System.nanoTime() < end) {
+                        long begin = System.nanoTime();
+                        call.call(rows[next++ % rows.length]);
+                        if (n == latency.length) {
+                            latency = Arrays.copyOf(latency, n * 2);
+                        }
+                        latency[n++] = System.nanoTime() - begin;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                samples[client] = latency;
+                counts[client] = n;
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long [] latencies = new long[total];
+        int offset = 0;
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(samples[c], 0, latencies, offset, counts[c]);
+            offset += counts[c];
+        }
+        Arrays.sort(latencies);
+        return new Result(total, elapsed, latencies);
+    }
+
+    /**
+     * 向ScoringServer发送一行样本
+     */
+    public static Call http(String url) {
+        URL target;
+        try {
+            target = new URL(url);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return row -> {
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < row.length; i++) {
+                body.append(i == 0 ? "" : ",").append(row[i]);
+            }
+            byte [] bytes = body.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+            HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(bytes.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(bytes);
+            }
+            if (connection.getResponseCode() != 200) {
+                throw new IOException("http " + connection.getResponseCode() + " from " + url);
+            }
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                return Double.parseDouble(reader.readLine());
+            }
+        };
+    }
+
+    public static void main(String [] args) throws Exception {
+        if (args.length >= 4 && "local".equals(args[0])) {
+            int trees = Integer.parseInt(args[1]);
+            int clients = Integer.parseInt(args[2]);
+            double seconds = Double.parseDouble(args[3]);
+            int maxBatch = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+            long maxWait = args.length > 5 ? Long.parseLong(args[5]) : 200;
+
+            File file = File.createTempFile("load", ".pmml");
+            file.deleteOnExit();
+            SyntheticModels.writeGbdtPmml(file, trees, 6, 100, 42);
+            GBDTModel model = GBDTModel.createByPmml(file);
+            model.warmUp(10000);
+            double [][] rows = SyntheticModels.denseRows(4096, model.getFeatureCount(), 0.1, 7);
+
+            System.out.println("direct predict:  " + run(model::predict, rows, clients, seconds));
+            try (MicroBatcher<double []> batcher = MicroBatcher.forGbdt(model, maxBatch, maxWait)) {
+                System.out.println("micro-batched:   " + run(batcher::score, rows, clients, seconds));
+                System.out.println("  " + batcher);
+            }
+            try (ScoringServer server = new ScoringServer(0)) {
+                MicroBatcher<double []> batcher = MicroBatcher.forGbdt(model, maxBatch, maxWait);
+                server.register("gbdt", batcher, ScoringServer.denseParser(model.getFeatureCount()));
+                server.start();
+                String url = "http://localhost:" + server.getPort() + "/score/gbdt";
+                System.out.println("http:           " + run(http(url), rows, clients, seconds));
+                System.out.println("  " + batcher);
+            }
+        } else if (args.length >= 5 && "http".equals(args[0])) {
+            int features = Integer.parseInt(args[2]);
+            double [][] rows = SyntheticModels.denseRows(4096, features, 0.1, 7);
+            System.out.println(run(http(args[1]), rows, Integer.parseInt(args[3]), Double.parseDouble(args[4])));
+        } else {
+            System.err.println("usage: LoadGenerator local <trees> <clients> <seconds> [max batch] [max wait us]");
+            System.err.println("       LoadGenerator http <url> <features> <clients> <seconds>");
+            System.exit(2);
+        }
+    }
+}
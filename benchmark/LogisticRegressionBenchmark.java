@@ -0,0 +1,71 @@
+package com.ymkigeg.ml.benchmark;
+
+import com.ymkigeg.ml.pmml.LogisticRegressionModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LogisticRegressionModel的加载时间和单行延迟，每次操作的分配量用 -prof gc 查看
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogisticRegressionBenchmark {
+
+    private static final int ROWS = 1024;
+
+    @Param({"100", "10000"})
+    public int features;
+
+    // 系数为0的比例
+    @Param({"0.0", "0.9"})
+    public double sparsity;
+
+    private File file;
+    private LogisticRegressionModel model;
+    private double [][] rows;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int advance() {
+            return next++ & (ROWS - 1);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        file = File.createTempFile("lr-benchmark", ".pmml");
+        SyntheticModels.writeLrPmml(file, features, sparsity, 1);
+        model = LogisticRegressionModel.createByPmml(file);
+        rows = SyntheticModels.denseRows(ROWS, features, 0.0, 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (file != null && !file.delete()) {
+            throw new IOException("failed to delete " + file);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public LogisticRegressionModel load() throws Exception {
+        return LogisticRegressionModel.createByPmml(file);
+    }
+
+    @Benchmark
+    public double predict(Cursor cursor) {
+        return model.predict(rows[cursor.advance()]);
+    }
+}
@@ -0,0 +1,238 @@
+package com.ymkigeg.ml.benchmark;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 生成合成的模型文件和输入数据，供基准测试和容量评估使用，同样的参数和种子生成的文件完全相同
+ * 用法:
+ *   java SyntheticModels gbdt <输出文件> <树数> <深度> <特征数> [种子]
+ *   java SyntheticModels lr   <输出文件> <特征数> <系数为0的比例> [种子]
+ *   java SyntheticModels fm   <输出文件> <特征数> <k> <缺失特征的比例> [种子]
+ */
+public class SyntheticModels {
+
+    // 深度未到上限的节点提前成为叶子的概率，让树的形状不是满二叉树
+    private static final double EARLY_LEAF_PROBABILITY = 0.2;
+
+    private SyntheticModels() {}
+
+    /**
+     * LightGBM导出格式的GBDT二分类模型，特征名为 f0, f1, ...，阈值在[-2, 2]之间
+     */
+    public static void writeGbdtPmml(File file, int trees, int depth, int features, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (Writer out = writer(file)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<PMML xmlns=\"http://www.dmg.org/PMML-4_3\" version=\"4.3\">\n");
+            out.write("<DataDictionary numberOfFields=\"" + (features + 1) + "\">\n");
+            out.write("<DataField name=\"y\" optype=\"categorical\" dataType=\"integer\"><Value value=\"0\"/><Value value=\"1\"/></DataField>\n");
+            for (int f = 0; f < features; f++) {
+                out.write("<DataField name=\"f" + f + "\" optype=\"continuous\" dataType=\"double\"/>\n");
+            }
+            out.write("</DataDictionary>\n");
+            out.write("<MiningModel modelName=\"synthetic\" algorithmName=\"LightGBM\" functionName=\"classification\">"
+                    + "<MiningSchema/><Segmentation multipleModelMethod=\"modelChain\"><Segment id=\"1\"><True/>"
+                    + "<MiningModel functionName=\"regression\"><MiningSchema/><Segmentation multipleModelMethod=\"sum\">\n");
+            for (int t = 0; t < trees; t++) {
+                out.write("<Segment id=\"" + (t + 1) + "\"><True/><TreeModel functionName=\"regression\" "
+                        + "noTrueChildStrategy=\"returnLastPrediction\"><MiningSchema/>");
+                writeTree(out, random, depth, features);
+                out.write("</TreeModel></Segment>\n");
+            }
+            out.write("</Segmentation></MiningModel></Segment><Segment id=\"2\"><True/>"
+                    + "<RegressionModel functionName=\"classification\" normalizationMethod=\"logit\"/></Segment>"
+                    + "</Segmentation></MiningModel></PMML>\n");
+        }
+    }
+
+    /**
+     * 按先序写出一棵树，用显式栈保存待写的右孩子和待闭合的节点
+     */
+    private static void writeTree(Writer out, Random random, int depth, int features) throws IOException {
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(depth, "<True/>", false));
+        int nodeId = 0;
+        while (!stack.isEmpty()) {
+            Frame frame = stack.pop();
+            if (frame.close) {
+                out.write("</Node>");
+                continue;
+            }
+            boolean leaf = frame.remaining == 0
+                    || (frame.remaining < depth && random.nextDouble() < EARLY_LEAF_PROBABILITY);
+            out.write("<Node id=\"" + (++nodeId) + "\"");
+            if (leaf) {
+                out.write(" score=\"" + Math.round((random.nextDouble() * 2 - 1) * 1e6) / 1e6 + "\"");
+            }
+            out.write(">");
+            out.write(frame.predicate);
+            stack.push(new Frame(0, null, true));
+            if (!leaf) {
+                String field = "f" + random.nextInt(features);
+                double threshold = Math.round((random.nextDouble() * 4 - 2) * 1e3) / 1e3;
+                stack.push(new Frame(frame.remaining - 1, "<SimplePredicate field=\"" + field
+                        + "\" operator=\"greaterThan\" value=\"" + threshold + "\"/>", false));
+                stack.push(new Frame(frame.remaining - 1, "<SimplePredicate field=\"" + field
+                        + "\" operator=\"lessOrEqual\" value=\"" + threshold + "\"/>", false));
+            }
+        }
+    }
+
+    private static class Frame {
+        final int remaining;
+        final String predicate;
+        final boolean close;
+
+        Frame(int remaining, String predicate, boolean close) {
+            this.remaining = remaining;
+            this.predicate = predicate;
+            this.close = close;
+        }
+    }
+
+    /**
+     * 二分类逻辑回归，特征名为 0, 1, ...
+     * @param sparsity 系数为0的特征比例
+     */
+    public static void writeLrPmml(File file, int features, double sparsity, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (Writer out = writer(file)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<PMML xmlns=\"http://www.dmg.org/PMML-4_3\" version=\"4.3\">\n");
+            out.write("<DataDictionary numberOfFields=\"" + (features + 1) + "\">\n");
+            out.write("<DataField name=\"y\" optype=\"categorical\" dataType=\"integer\"/>\n");
+            for (int f = 0; f < features; f++) {
+                out.write("<DataField name=\"" + f + "\" optype=\"continuous\" dataType=\"double\"/>\n");
+            }
+            out.write("</DataDictionary>\n");
+            out.write("<RegressionModel modelName=\"synthetic\" algorithmName=\"glm\" functionName=\"classification\" "
+                    + "normalizationMethod=\"logit\"><MiningSchema/>\n");
+            out.write("<RegressionTable targetCategory=\"1\" intercept=\"" + random.nextGaussian() * 0.1 + "\">\n");
+            for (int f = 0; f < features; f++) {
+                double coefficient = random.nextDouble() < sparsity ? 0.0 : random.nextGaussian() * 0.1;
+                out.write("<NumericPredictor name=\"" + f + "\" exponent=\"1\" coefficient=\"" + coefficient + "\"/>\n");
+            }
+            out.write("</RegressionTable>\n");
+            out.write("<RegressionTable targetCategory=\"0\" intercept=\"0.0\"/>\n");
+            out.write("</RegressionModel>\n</PMML>\n");
+        }
+    }
+
+    /**
+     * FMModel.createByText的文本格式
+     * @param sparsity 文件中不出现(参数全为0)的特征比例
+     */
+    public static void writeFmText(File file, int features, int k, double sparsity, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (Writer out = writer(file)) {
+            out.write("dt:20261016\n");
+            out.write("bias:" + random.nextGaussian() * 0.1 + "\n");
+            StringBuilder line = new StringBuilder();
+            for (int f = 0; f < features; f++) {
+                if (random.nextDouble() < sparsity) {
+                    continue;
+                }
+                out.write("i_" + f + ":" + random.nextGaussian() * 0.1 + "\n");
+                line.setLength(0);
+                line.append("v_").append(f).append(':');
+                for (int i = 0; i < k; i++) {
+                    if (i > 0) {
+                        line.append(' ');
+                    }
+                    line.append(random.nextGaussian() * 0.1);
+                }
+                out.write(line.append('\n').toString());
+            }
+        }
+    }
+
+    /**
+     * 稠密输入，每个值以missingRate的概率为NaN
+     */
+    public static double [][] denseRows(int rows, int features, double missingRate, long seed) {
+        Random random = new Random(seed);
+        double [][] result = new double[rows][features];
+        for (double [] row : result) {
+            for (int f = 0; f < features; f++) {
+                row[f] = random.nextDouble() < missingRate ? Double.NaN : random.nextGaussian() * 1.5;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Map形式的输入，每个特征以missingRate的概率不出现
+     */
+    public static List<Map<String, Double>> mapRows(int rows, String [] names, double missingRate, long seed) {
+        Random random = new Random(seed);
+        List<Map<String, Double>> result = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            Map<String, Double> row = new HashMap<>();
+            for (String name : names) {
+                if (random.nextDouble() >= missingRate) {
+                    row.put(name, random.nextGaussian() * 1.5);
+                }
+            }
+            result.add(row);
+        }
+        return result;
+    }
+
+    /**
+     * 稀疏输入，每行nnz个不重复的特征id，取值为1.0或[0, 1)的随机数
+     * @return [0]为特征id，类型int[][]；[1]为特征值，类型double[][]
+     */
+    public static Object [] sparseRows(int rows, int featureSize, int nnz, long seed) {
+        Random random = new Random(seed);
+        int [][] indexes = new int[rows][];
+        double [][] values = new double[rows][];
+        for (int i = 0; i < rows; i++) {
+            Set<Integer> ids = new LinkedHashSet<>();
+            while (ids.size() < Math.min(nnz, featureSize)) {
+                ids.add(random.nextInt(featureSize));
+            }
+            indexes[i] = new int[ids.size()];
+            values[i] = new double[ids.size()];
+            int j = 0;
+            for (int id : ids) {
+                indexes[i][j] = id;
+                values[i][j] = random.nextBoolean() ? 1.0 : random.nextDouble();
+                j++;
+            }
+        }
+        return new Object[]{indexes, values};
+    }
+
+    private static Writer writer(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    public static void main(String [] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("usage: SyntheticModels gbdt <file> <trees> <depth> <features> [seed]");
+            System.err.println("       SyntheticModels lr <file> <features> <sparsity> [seed]");
+            System.err.println("       SyntheticModels fm <file> <features> <k> <sparsity> [seed]");
+            System.exit(1);
+        }
+        File file = new File(args[1]);
+        switch (args[0]) {
+            case "gbdt":
+                writeGbdtPmml(file, Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                        args.length > 5 ? Long.parseLong(args[5]) : 1);
+                break;
+            case "lr":
+                writeLrPmml(file, Integer.parseInt(args[2]), Double.parseDouble(args[3]),
+                        args.length > 4 ? Long.parseLong(args[4]) : 1);
+                break;
+            case "fm":
+                writeFmText(file, Integer.parseInt(args[2]), Integer.parseInt(args[3]), Double.parseDouble(args[4]),
+                        args.length > 5 ? Long.parseLong(args[5]) : 1);
+                break;
+            default:
+                System.err.println("unknown model type " + args[0]);
+                System.exit(1);
+        }
+    }
+}
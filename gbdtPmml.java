@@ -1,90 +1,200 @@
 package com.ymkigeg.ml.pmml;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import lombok.Data;
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.dom4j.Document;
 import org.dom4j.DocumentException;
-import org.dom4j.Element;
-import org.dom4j.io.SAXReader;
 
 
 public class GBDTModel {
 
+    // 批量预测超过这个行数才拆分到ForkJoin线程池
+    private static final int PARALLEL_THRESHOLD = 2048;
+    // AUTO模式下每棵树平均叶子数达到这个值才用QuickScorer，更小的树直接遍历更快
+    private static final int QUICK_SCORER_MIN_AVG_LEAVES = 8;
+    // predictAbove在sigmoid误差之外额外留出的概率余量，覆盖exp和log的舍入
+    private static final double THRESHOLD_MARGIN = 1e-12;
+
+    // 流式解析时各层元素的含义
+    private static final int NONE = 0;
+    private static final int OTHER = 1;
+    private static final int ROOT = 2;
+    private static final int DICTIONARY = 3;
+    private static final int MODEL = 4;
+    private static final int SEGMENTATION = 5;
+    private static final int SEGMENT = 6;
+    private static final int SUB_MODEL = 7;
+    private static final int TREE_SEGMENTATION = 8;
+    private static final int TREE_SEGMENT = 9;
+    private static final int TREE_MODEL = 10;
+    private static final int NODE = 11;
+    // 只取第一个的子元素种类，按父元素分别记录
+    private static final int ROOT_DICTIONARY = 0;
+    private static final int ROOT_MODEL = 1;
+    private static final int MODEL_SEGMENTATION = 2;
+    private static final int SEGMENT_MODEL = 3;
+    private static final int TREE_NODE = 4;
+    private static final int NODE_PREDICATE = 5;
+
     private String modelName;
     private String algorithmName;
     private String functionName;
     private List<GBDTTree> treeInfo = new ArrayList<>();
     private Map<String, FieldType> fieldDict;
     private int treeCount;
+    private int leafCount;
+
+    // 加载时编译好的扁平化树结构，以及特征名到槽位的映射
+    private FlatForest forest;
+    // 打分用的森林，optimize之前与forest相同，之后只有叶子取值与forest一致，见ForestOptimizer
+    private FlatForest scoreForest;
+    private Map<String, Integer> featureIndex;
+    private String[] featureNames;
+
+    private volatile ForestScorer scorer;
+    private volatile FeatureBinner binner;
+    private volatile FeatureSchema.Binding binding;
+    private volatile EvaluationMode evaluationMode;
+    private EvaluationMode requestedMode;
+    private Sigmoid sigmoid = Sigmoid.exact();
+    private ModelMetrics.Recorder metrics;
+
+    // predictAbove: 按叶子取值范围从大到小排列的树，以及从第i棵起剩余树的最小/最大分数之和
+    private int [] boundOrder;
+    private double [] suffixMin;
+    private double [] suffixMax;
+    // 按不同顺序累加时舍入误差的上界
+    private double sumError;
+    private final ThreadLocal<double []> treeScores = ThreadLocal.withInitial(() -> new double[0]);
 
     private GBDTModel() {}
 
     public static GBDTModel createByPmml(String modelFile) throws DocumentException{
-        SAXReader reader = new SAXReader();
-        Document document = reader.read(new File(modelFile));
-        return create(document);
+        return PmmlStreams.read(new File(modelFile), GBDTModel::create);
     }
 
     public static GBDTModel createByPmml(InputStream in) throws DocumentException{
-        SAXReader reader = new SAXReader();
-        Document document = reader.read(in);
-        return create(document);
+        return PmmlStreams.read(in, GBDTModel::create);
     }
 
     public static GBDTModel createByPmml(File file) throws DocumentException{
-        SAXReader reader = new SAXReader();
-        Document document = reader.read(file);
-        return create(document);
+        return PmmlStreams.read(file, GBDTModel::create);
     }
 
     public static GBDTModel createByPmml(URL url) throws DocumentException{
-        SAXReader reader = new SAXReader();
-        Document document = reader.read(url);
-        return create(document);
+        return PmmlStreams.read(url, GBDTModel::create);
     }
 
-    private static GBDTModel create(Document document) {
+    private static GBDTModel create(XMLStreamReader reader) throws XMLStreamException, DocumentException {
+        long start = System.nanoTime();
         GBDTModel gbdtModel = new GBDTModel();
-        Element root = document.getRootElement();
-        gbdtModel.parseFieldType(root.element("DataDictionary"));
-        gbdtModel.parseAttributes(root.element("MiningModel"));
-
-        List<Element> treeElements = GBDTModel.findTreeElement(root.element("MiningModel").element("Segmentation"));
-        gbdtModel.buildGBDTTree(treeElements);
+        gbdtModel.parse(reader);
 
         // 对叶子节点进行特征编码
         gbdtModel.leafEncoding();
+
+        // 编译成扁平化数组结构供预测使用
+        gbdtModel.flatten();
+        gbdtModel.prepareBounds();
+        gbdtModel.setEvaluationMode(EvaluationMode.AUTO);
+        gbdtModel.metrics = ModelMetrics.recorder("GBDTModel", gbdtModel.modelName);
+        gbdtModel.metrics.recordLoad(System.nanoTime() - start, 0);
         return gbdtModel;
     }
 
     public double predict(Map<String, Double> data){
+        long start = metrics.start();
+        double result = score(toFeatureArray(data));
+        metrics.record(ModelMetrics.Method.PREDICT, start, 1, data.size());
+        return result;
+    }
 
-        double score = 0.0;
-        for (GBDTTree tree : treeInfo) {
-            score = score + predictTree(data, tree.getTree());
-        }
+    /**
+     * 按特征槽位顺序输入的预测接口，槽位见 getFeatureNames()，缺失值用NaN表示
+     * @param features
+     * @return
+     */
+    public double predict(double [] features){
+        long start = metrics.start();
+        double result = score(features);
+        metrics.record(ModelMetrics.Method.PREDICT, start, 1, features.length);
+        return result;
+    }
+
+    private double score(double [] features) {
+        checkFeatureLength(features);
+        return sigmoid.apply(scorer.score(features));
+    }
 
-        // TODO 这里可以将sigmoid函数存成字典，这样就减少计算量
-        score = 1 / (Math.exp(-score) + 1);
-        return score;
+    public Decision predictAbove(Map<String, Double> data, double threshold) {
+        long start = metrics.start();
+        Decision result = decide(toFeatureArray(data), threshold);
+        metrics.record(ModelMetrics.Method.PREDICT_ABOVE, start, 1, data.size());
+        return result;
     }
 
-    private double predictTree(Map<String, Double> data, DecisionTree tree) {
-        double preds = 0.0;
-        while(true) {
-            tree = tree.decison(data);
-            if (tree.getLeftChild() == null){
-                preds += tree.getLeafValue();
-                break;
+    /**
+     * 判断 predict(features) > threshold 是否成立，结果与predict完全一致。
+     * 按叶子取值范围从大到小的顺序计算各树，剩余的树无论落在哪个叶子都不能改变结论时提前返回；
+     * 直到最后仍不能确定时，按原顺序累加得到与predict相同的分数再比较
+     * @param threshold 概率阈值
+     */
+    public Decision predictAbove(double [] features, double threshold) {
+        long start = metrics.start();
+        Decision result = decide(features, threshold);
+        metrics.record(ModelMetrics.Method.PREDICT_ABOVE, start, 1, features.length);
+        return result;
+    }
+
+    private Decision decide(double [] features, double threshold) {
+        checkFeatureLength(features);
+        // sigmoid近似的误差不超过margin，原始分数超出[lower, upper]时两种sigmoid的结论相同
+        double margin = sigmoid.getMaxAbsError() + THRESHOLD_MARGIN;
+        double upper = threshold + margin >= 1 ? Double.POSITIVE_INFINITY : logit(threshold + margin) + sumError;
+        double lower = threshold - margin <= 0 ? Double.NEGATIVE_INFINITY : logit(threshold - margin) - sumError;
+
+        double [] scores = this.treeScores.get();
+        if (scores.length != this.treeCount) {
+            scores = new double[this.treeCount];
+            this.treeScores.set(scores);
+        }
+        double partial = 0;
+        for (int i = 0; i < this.treeCount; i++) {
+            if (partial + suffixMin[i] > upper) {
+                return new Decision(true, i, false);
             }
+            if (partial + suffixMax[i] < lower) {
+                return new Decision(false, i, false);
+            }
+            int tree = boundOrder[i];
+            double value = scoreForest.leafValue[scoreForest.leaf(tree, features)];
+            scores[tree] = value;
+            partial += value;
+        }
+        double score = 0.0;
+        for (int t = 0; t < this.treeCount; t++) {
+            score = score + scores[t];
         }
-        return preds;
+        return new Decision(sigmoid.apply(score) > threshold, this.treeCount, true);
+    }
+
+    private static double logit(double p) {
+        return Math.log(p / (1 - p));
     }
 
     /**
@@ -93,37 +203,278 @@ public class GBDTModel {
      * @return 特征编号列表
      */
     public int [] gbdtEncoding(Map<String, Double> data){
+        long start = metrics.start();
+        int [] result = leaves(toFeatureArray(data), forest.leafCode);
+        metrics.record(ModelMetrics.Method.GBDT_ENCODING, start, 1, data.size());
+        return result;
+    }
+
+    public int [] gbdtEncoding(double [] features){
+        long start = metrics.start();
+        int [] result = leaves(features, forest.leafCode);
+        metrics.record(ModelMetrics.Method.GBDT_ENCODING, start, 1, features.length);
+        return result;
+    }
+
+    public int [] predictLeaf(Map<String, Double> data){
+        long start = metrics.start();
+        int [] result = leaves(toFeatureArray(data), forest.nodeId);
+        metrics.record(ModelMetrics.Method.PREDICT_LEAF, start, 1, data.size());
+        return result;
+    }
+
+    public int [] predictLeaf(double [] features){
+        long start = metrics.start();
+        int [] result = leaves(features, forest.nodeId);
+        metrics.record(ModelMetrics.Method.PREDICT_LEAF, start, 1, features.length);
+        return result;
+    }
+
+    /**
+     * 单棵树的gbdt编码，不分配内存也不检查输入长度，供逐树融合下游模型的调用方使用
+     * @param tree 树的下标，[0, getTreeCount())
+     * @param features 长度不小于 getFeatureCount()
+     * @return 与gbdtEncoding的第tree个元素相同，取值[0, getLeafCount())
+     */
+    public int leafCode(int tree, double [] features) {
+        return forest.leafCode[forest.leaf(tree, features)];
+    }
 
+    /**
+     * @param mapping 叶子在扁平数组中的下标 -> 输出值，nodeId或leafCode
+     */
+    private int [] leaves(double [] features, int [] mapping) {
+        checkFeatureLength(features);
         int [] result = new int[this.treeCount];
-        int i=0;
-        for (GBDTTree tree : treeInfo) {
-            int nodeId = predictLeaf(data, tree.getTree());
-            result[i] = tree.getLeafEncodingMap().get(nodeId);
-            i++;
+        for (int i = 0; i < this.treeCount; i++) {
+            result[i] = mapping[forest.leaf(i, features)];
         }
+        return result;
+    }
 
+    /**
+     * 批量预测，按树优先的顺序分块计算，大批量拆分到公共ForkJoin线程池
+     * @param rows 每行按特征槽位排列
+     * @return 每行的预测分
+     */
+    public double [] predictBatch(double [][] rows){
+        return predictBatch(rows, ForkJoinPool.commonPool());
+    }
+
+    public double [] predictBatch(double [][] rows, ForkJoinPool pool){
+        long start = metrics.start();
+        double [] scores = scoreBatch(rows, pool);
+        metrics.record(ModelMetrics.Method.PREDICT_BATCH, start, rows.length, (long) rows.length * featureNames.length);
+        return scores;
+    }
+
+    private double [] scoreBatch(double [][] rows, ForkJoinPool pool) {
+        for (double [] row : rows) {
+            checkFeatureLength(row);
+        }
+        double [] scores = new double[rows.length];
+        runBatch(new BatchTask(forest, scorer, rows, 0, rows.length, scores, null, null), pool);
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = sigmoid.apply(scores[i]);
+        }
+        return scores;
+    }
+
+    public double [] predictBatch(List<Map<String, Double>> rows){
+        return predictBatch(toFeatureArrays(rows));
+    }
+
+    /**
+     * 对FeatureFrame批量预测，特征按名字对应到槽位，frame中没有填写的特征取0.0，
+     * 结果与对每行调用predict(Map)相同
+     */
+    public double [] predict(FeatureFrame frame){
+        return predict(frame, ForkJoinPool.commonPool());
+    }
+
+    public double [] predict(FeatureFrame frame, ForkJoinPool pool){
+        long start = metrics.start();
+        int rows = frame.getRowCount();
+        double [] scores = new double[rows];
+        FrameTask task = new FrameTask(scorer, frame, binding(frame.getSchema()), featureNames.length, 0, rows, scores);
+        if (rows <= PARALLEL_THRESHOLD) {
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+        for (int i = 0; i < rows; i++) {
+            scores[i] = sigmoid.apply(scores[i]);
+        }
+        metrics.record(ModelMetrics.Method.PREDICT_FRAME, start, rows, frame.getValueCount());
+        return scores;
+    }
+
+    /**
+     * schema编号到槽位的映射，schema变化或有新特征时重建
+     */
+    private FeatureSchema.Binding binding(FeatureSchema schema) {
+        FeatureSchema.Binding result = this.binding;
+        if (result == null || !result.isCurrent(schema)) {
+            result = schema.bind(this::getFeatureIndex);
+            this.binding = result;
+        }
         return result;
     }
 
-    public int [] predictLeaf(Map<String, Double> data){
+    /**
+     * 切分点表和预分箱的输入，第一次调用时创建
+     */
+    public FeatureBinner getFeatureBinner() {
+        FeatureBinner result = this.binner;
+        if (result == null) {
+            synchronized (this) {
+                result = this.binner;
+                if (result == null) {
+                    result = new FeatureBinner(scoreForest, featureNames, featureIndex);
+                    this.binner = result;
+                }
+            }
+        }
+        return result;
+    }
 
-        int [] result = new int[this.treeCount];
-        int i=0;
-        for (GBDTTree tree : treeInfo) {
-            result[i] = predictLeaf(data, tree.getTree());
-            i++;
+    /**
+     * 对预分箱的输入批量预测，结果与predictBatch相同
+     * @param rows 由 getFeatureBinner() 量化得到
+     */
+    public double [] predictBinned(FeatureBinner.BinnedRows rows){
+        return predictBinned(rows, ForkJoinPool.commonPool());
+    }
+
+    public double [] predictBinned(FeatureBinner.BinnedRows rows, ForkJoinPool pool){
+        long start = metrics.start();
+        double [] scores = new double[rows.getRowCount()];
+        getFeatureBinner().score(rows, scores, pool);
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = sigmoid.apply(scores[i]);
+        }
+        metrics.record(ModelMetrics.Method.PREDICT_BINNED, start, scores.length,
+                (long) scores.length * featureNames.length);
+        return scores;
+    }
+
+    public int [][] predictLeafBatch(double [][] rows){
+        return predictLeafBatch(rows, ForkJoinPool.commonPool());
+    }
+
+    public int [][] predictLeafBatch(double [][] rows, ForkJoinPool pool){
+        return leafBatch(rows, forest.nodeId, pool, ModelMetrics.Method.PREDICT_LEAF_BATCH);
+    }
+
+    public int [][] predictLeafBatch(List<Map<String, Double>> rows){
+        return predictLeafBatch(toFeatureArrays(rows));
+    }
+
+    public int [][] gbdtEncodingBatch(double [][] rows){
+        return gbdtEncodingBatch(rows, ForkJoinPool.commonPool());
+    }
+
+    public int [][] gbdtEncodingBatch(double [][] rows, ForkJoinPool pool){
+        return leafBatch(rows, forest.leafCode, pool, ModelMetrics.Method.GBDT_ENCODING_BATCH);
+    }
+
+    public int [][] gbdtEncodingBatch(List<Map<String, Double>> rows){
+        return gbdtEncodingBatch(toFeatureArrays(rows));
+    }
+
+    private int [][] leafBatch(double [][] rows, int [] mapping, ForkJoinPool pool, ModelMetrics.Method method) {
+        long start = metrics.start();
+        for (double [] row : rows) {
+            checkFeatureLength(row);
+        }
+        int [][] result = new int[rows.length][];
+        runBatch(new BatchTask(forest, scorer, rows, 0, rows.length, null, mapping, result), pool);
+        metrics.record(method, start, rows.length, (long) rows.length * featureNames.length);
+        return result;
+    }
+
+    private static void runBatch(BatchTask task, ForkJoinPool pool) {
+        if (task.to - task.from <= PARALLEL_THRESHOLD) {
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    /**
+     * 用合成数据做预测，让JIT提前编译打分路径，模型上线前调用，不计入ModelMetrics
+     * 每个特征的取值随机取自该特征的分裂阈值或其右侧，左右分支都能走到
+     * @param rows 合成的行数
+     */
+    public void warmUp(int rows) {
+        List<List<Double>> values = new ArrayList<>();
+        for (int i = 0; i < this.featureNames.length; i++) {
+            values.add(new ArrayList<>());
+        }
+        for (int node = 0; node < forest.nodeCount(); node++) {
+            if (forest.feature[node] < 0) {
+                continue;
+            }
+            List<Double> slot = values.get(forest.feature[node]);
+            if (forest.categories[node] != null) {
+                for (double value : forest.categories[node]) {
+                    slot.add(value);
+                }
+            } else {
+                slot.add(forest.threshold[node]);
+            }
         }
 
+        Random random = new Random(rows);
+        double [][] batch = new double[Math.min(rows, 1024)][];
+        for (int i = 0; i < rows; i++) {
+            double [] row = new double[this.featureNames.length];
+            for (int f = 0; f < row.length; f++) {
+                List<Double> slot = values.get(f);
+                if (!slot.isEmpty()) {
+                    double value = slot.get(random.nextInt(slot.size()));
+                    row[f] = random.nextBoolean() ? value : Math.nextUp(value);
+                }
+            }
+            score(row);
+            leaves(row, forest.nodeId);
+            leaves(row, forest.leafCode);
+            batch[i % batch.length] = row;
+        }
+        if (rows > 0) {
+            scoreBatch(batch, ForkJoinPool.commonPool());
+        }
+    }
+
+    private double [][] toFeatureArrays(List<Map<String, Double>> rows) {
+        double [][] result = new double[rows.size()][];
+        int i = 0;
+        for (Map<String, Double> row : rows) {
+            result[i++] = toFeatureArray(row);
+        }
         return result;
     }
 
-    private int predictLeaf(Map<String, Double> data, DecisionTree tree) {
-        while(true) {
-            tree = tree.decison(data);
-            if (tree.getLeftChild() == null){
-                return tree.getNodeId();
+    /**
+     * 把Map形式的特征转换成按槽位排列的数组，未出现的特征取0.0
+     * @param data
+     * @return
+     */
+    public double [] toFeatureArray(Map<String, Double> data) {
+        double [] features = new double[this.featureNames.length];
+        for (Map.Entry<String, Double> entry : data.entrySet()) {
+            Integer index = this.featureIndex.get(entry.getKey());
+            if (index != null) {
+                features[index] = entry.getValue() == null ? Double.NaN : entry.getValue();
             }
         }
+        return features;
+    }
+
+    private void checkFeatureLength(double [] features) {
+        if (features.length < this.featureNames.length) {
+            throw new IllegalArgumentException("gbdt input length must not be less than " + this.featureNames.length);
+        }
     }
 
     private void leafEncoding() {
@@ -136,50 +487,253 @@ public class GBDTModel {
                 coding++;
             }
         }
+        this.leafCount = coding;
     }
 
+    /**
+     * 从左到右列出叶子节点编号，用显式栈遍历
+     */
     private List<Integer> leafOrder(DecisionTree decisionTree) {
         List<Integer> leafs = new ArrayList<>();
-        if(!decisionTree.getIsLeaf()) {
-            leafs.addAll(leafOrder(decisionTree.getLeftChild()));
-            leafs.addAll(leafOrder(decisionTree.getRightChild()));
-        } else {
-            leafs.add(decisionTree.getNodeId());
+        Deque<DecisionTree> stack = new ArrayDeque<>();
+        stack.push(decisionTree);
+        while (!stack.isEmpty()) {
+            DecisionTree node = stack.pop();
+            if(!node.getIsLeaf()) {
+                stack.push(node.getRightChild());
+                stack.push(node.getLeftChild());
+            } else {
+                leafs.add(node.getNodeId());
+            }
         }
         return leafs;
     }
 
 
+    /**
+     * 加载后、发布前调用的森林优化，predict、predictLeaf、gbdtEncoding的结果都不变：
+     * 去掉祖先节点已经决定了走向的分支；两侧完全相同的分裂折叠掉，相同的子树只保留一份，只用于打分；
+     * 给出样本时把更常走的孩子排在父节点之后，编译引擎中作为顺序执行的分支。
+     * 叶子保留原来的nodeId和gbdt编码，不可达的叶子不会再被输出，getLeafCount()不变，下游模型不需要重新训练。
+     * 之后重新选择打分引擎、计算predictAbove的界，预分箱的切分点重新生成，之前量化的BinnedRows不能再用
+     * @param samples 按槽位排列的样本，用于统计分支的命中次数，可以为null
+     */
+    public synchronized OptimizationReport optimize(double [][] samples) {
+        long start = System.nanoTime();
+        if (samples != null) {
+            for (double [] row : samples) {
+                checkFeatureLength(row);
+            }
+        }
+        ForestOptimizer optimizer = new ForestOptimizer(this.forest, samples);
+        this.forest = optimizer.getLeafForest();
+        this.scoreForest = optimizer.getScoreForest();
+        this.binner = null;
+        prepareBounds();
+        setEvaluationMode(this.requestedMode);
+        return optimizer.report(samples == null ? 0 : samples.length, System.nanoTime() - start);
+    }
+
+    /**
+     * @param samples 样本文件，每行一个样本，按槽位排列，用逗号或空白分隔，缺失值写NaN
+     */
+    public OptimizationReport optimize(File samples) throws IOException {
+        List<double []> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(samples),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    rows.add(FeatureSchema.parseDense(line));
+                }
+            }
+        }
+        return optimize(rows.toArray(new double[0][]));
+    }
+
     public String getModelName() { return this.modelName; }
     public String getAlgorithmName() { return this.algorithmName; }
     public String getFunctionName() { return this.functionName; }
     public Map<String, FieldType> getFieldDict() { return this.fieldDict; }
     public int getTreeCount() { return this.treeCount; }
+    public String [] getFeatureNames() { return this.featureNames.clone(); }
+    public int getFeatureCount() { return this.featureNames.length; }
+    // 所有树的叶子总数，即gbdt编码的取值个数
+    public int getLeafCount() { return this.leafCount; }
+
+    public EvaluationMode getEvaluationMode() { return this.evaluationMode; }
+    public Sigmoid getSigmoid() { return this.sigmoid; }
+    public ModelMetrics.Recorder getMetrics() { return this.metrics; }
 
-    private void parseFieldType(Element dict) {
-        List<Element> dataFields = dict.elements("DataField");
-        Map<String, FieldType> result = new HashMap<>();
-        for (Element element : dataFields) {
-            FieldType fieldType = new FieldType();
-            fieldType.setOptype(element.attribute("optype").getValue());
-            fieldType.setDataType(element.attribute("dataType").getValue());
-            result.put(element.attribute("name").getValue(), fieldType);
+    /**
+     * 设置sigmoid的计算方式，默认为精确计算
+     * @param sigmoid 见 Sigmoid.create(mode, maxAbsError)
+     */
+    public void setSigmoid(Sigmoid sigmoid) { this.sigmoid = sigmoid; }
+
+    /**
+     * 切换打分引擎，请求的引擎不适用于当前模型时退回TRAVERSAL，实际使用的引擎见 getEvaluationMode()
+     * 各引擎的打分结果逐位相同
+     * @param mode
+     */
+    public synchronized void setEvaluationMode(EvaluationMode mode) {
+        this.requestedMode = mode;
+        ForestScorer selected = this.scoreForest;
+        EvaluationMode actual = EvaluationMode.TRAVERSAL;
+        if (mode == EvaluationMode.COMPILED) {
+            CompiledForest compiled = ForestCompiler.compile(this.scoreForest, this.modelName);
+            if (compiled != null) {
+                selected = compiled;
+                actual = EvaluationMode.COMPILED;
+            }
+        } else if (mode == EvaluationMode.QUICK_SCORER || mode == EvaluationMode.AUTO) {
+            QuickScorer quickScorer = QuickScorer.build(this.scoreForest);
+            if (quickScorer != null && (mode == EvaluationMode.QUICK_SCORER
+                    || quickScorer.averageLeaves() >= QUICK_SCORER_MIN_AVG_LEAVES)) {
+                selected = quickScorer;
+                actual = EvaluationMode.QUICK_SCORER;
+            }
         }
-        this.fieldDict = result;
+        this.scorer = selected;
+        this.evaluationMode = actual;
     }
 
-    private void parseAttributes(Element rootModel) {
-        this.modelName = rootModel.attribute("modelName").getValue();
-        this.algorithmName = rootModel.attribute("algorithmName").getValue();
-        this.functionName = rootModel.attribute("functionName").getValue();
+    public int getFeatureIndex(String featureName) {
+        Integer index = this.featureIndex.get(featureName);
+        return index == null ? -1 : index;
     }
 
-    private void buildGBDTTree(List<Element> treeElements) {
-        int treeCount = 0;
-        for (Element treeElement : treeElements) {
-            Element rootNode = treeElement.element("TreeModel").element("Node");
+    /**
+     * 按StAX事件增量构造模型，每个打开的元素对应栈上的一帧，节点之间的父子关系也用显式栈维护，
+     * 树的深度不受调用栈限制。读取的结构与原先的DOM解析一致：
+     * DataDictionary/DataField，根MiningModel的属性，其Segmentation中functionName为regression的
+     * 子MiningModel(有多个时取最后一个)，子模型下每个Segment的TreeModel中的第一个Node
+     */
+    private void parse(XMLStreamReader reader) throws XMLStreamException, DocumentException {
+        this.fieldDict = new LinkedHashMap<>();
+        List<DecisionTree> roots = null;
+        List<DecisionTree> current = null;
+        Deque<DecisionTree> nodes = new ArrayDeque<>();
+        int [] states = new int[64];
+        int [] taken = new int[64];
+        int depth = 0;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                if (states[depth] == NODE) {
+                    DecisionTree node = nodes.pop();
+                    if (!nodes.isEmpty() && (taken[depth] & 1 << NODE_PREDICATE) == 0) {
+                        throw new DocumentException("node " + node.getNodeId() + " has no SimplePredicate");
+                    }
+                } else if (states[depth] == SUB_MODEL) {
+                    roots = current;
+                    current = null;
+                }
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+
+            String name = reader.getLocalName();
+            int parent = depth == 0 ? NONE : states[depth];
+            int state = OTHER;
+            if (parent == NONE) {
+                state = ROOT;
+            } else if (parent == ROOT && "DataDictionary".equals(name) && first(taken, depth, ROOT_DICTIONARY)) {
+                state = DICTIONARY;
+            } else if (parent == DICTIONARY && "DataField".equals(name)) {
+                FieldType fieldType = new FieldType();
+                fieldType.setOptype(PmmlStreams.requireAttribute(reader, "optype"));
+                fieldType.setDataType(PmmlStreams.requireAttribute(reader, "dataType"));
+                this.fieldDict.put(PmmlStreams.requireAttribute(reader, "name"), fieldType);
+            } else if (parent == ROOT && "MiningModel".equals(name) && first(taken, depth, ROOT_MODEL)) {
+                this.modelName = PmmlStreams.requireAttribute(reader, "modelName");
+                this.algorithmName = PmmlStreams.requireAttribute(reader, "algorithmName");
+                this.functionName = PmmlStreams.requireAttribute(reader, "functionName");
+                state = MODEL;
+            } else if (parent == MODEL && "Segmentation".equals(name) && first(taken, depth, MODEL_SEGMENTATION)) {
+                state = SEGMENTATION;
+            } else if (parent == SEGMENTATION && "Segment".equals(name)) {
+                state = SEGMENT;
+            } else if (parent == SEGMENT && "MiningModel".equals(name) && first(taken, depth, SEGMENT_MODEL)
+                    && "regression".equals(reader.getAttributeValue(null, "functionName"))) {
+                current = new ArrayList<>();
+                state = SUB_MODEL;
+            } else if (parent == SUB_MODEL && "Segmentation".equals(name) && first(taken, depth, MODEL_SEGMENTATION)) {
+                state = TREE_SEGMENTATION;
+            } else if (parent == TREE_SEGMENTATION && "Segment".equals(name)) {
+                state = TREE_SEGMENT;
+            } else if (parent == TREE_SEGMENT && "TreeModel".equals(name) && first(taken, depth, SEGMENT_MODEL)) {
+                state = TREE_MODEL;
+            } else if ((parent == TREE_MODEL && "Node".equals(name) && first(taken, depth, TREE_NODE))
+                    || (parent == NODE && "Node".equals(name))) {
+                DecisionTree decisionTree = new DecisionTree();
+                decisionTree.setNodeId(Integer.valueOf(PmmlStreams.requireAttribute(reader, "id")));
+                String score = reader.getAttributeValue(null, "score");
+                if (score != null) {
+                    decisionTree.setLeafValue(Double.valueOf(score));
+                    decisionTree.setIsLeaf(true);
+                } else {
+                    decisionTree.setIsLeaf(false);
+                }
+                if (parent == TREE_MODEL) {
+                    current.add(decisionTree);
+                }
+                nodes.push(decisionTree);
+                state = NODE;
+            } else if (parent == NODE && "SimplePredicate".equals(name) && first(taken, depth, NODE_PREDICATE)
+                    && nodes.size() > 1) {
+                DecisionTree child = nodes.pop();
+                DecisionTree decisionTree = nodes.peek();
+                nodes.push(child);
+
+                decisionTree.setFeatureName(PmmlStreams.requireAttribute(reader, "field"));
+                decisionTree.setThreshold(PmmlStreams.requireAttribute(reader, "value"));
+                String decisionType = PmmlStreams.requireAttribute(reader, "operator");
+                if ("lessOrEqual".equals(decisionType)) {
+                    decisionTree.setDecisionType("<=");
+                    decisionTree.setLeftChild(child);
+                } else if ("greaterThan".equals(decisionType)) {
+                    decisionTree.setDecisionType("<=");
+                    decisionTree.setRightChild(child);
+                }
+            }
+
+            depth++;
+            if (depth == states.length) {
+                states = Arrays.copyOf(states, depth * 2);
+                taken = Arrays.copyOf(taken, depth * 2);
+            }
+            states[depth] = state;
+            taken[depth] = 0;
+        }
+
+        if (this.modelName == null) {
+            throw new DocumentException("pmml has no MiningModel");
+        }
+        if (roots == null) {
+            throw new DocumentException("pmml has no regression MiningModel segment");
+        }
+        buildGBDTTree(roots);
+    }
 
-            DecisionTree decisionTree = recursiveBuildTree(rootNode);
+    /**
+     * 只取父元素下第一个同类子元素，与dom4j的element(name)一致
+     */
+    private static boolean first(int [] taken, int depth, int kind) {
+        if ((taken[depth] & 1 << kind) != 0) {
+            return false;
+        }
+        taken[depth] |= 1 << kind;
+        return true;
+    }
+
+    private void buildGBDTTree(List<DecisionTree> roots) {
+        int treeCount = 0;
+        for (DecisionTree decisionTree : roots) {
             decisionTree.splitThrehold();
 
             GBDTTree gbdtTree = new GBDTTree();
@@ -191,55 +745,318 @@ public class GBDTModel {
         this.treeCount = treeCount;
     }
 
-    private DecisionTree recursiveBuildTree(Element parentNode) {
-
-        DecisionTree decisionTree = new DecisionTree();
-        decisionTree.setNodeId(Integer.valueOf(parentNode.attribute("id").getValue()));
+    /**
+     * 把所有树按先序铺平到连续数组中，特征名解析成槽位：先是DataDictionary中的字段，再是其余分裂字段
+     */
+    private void flatten() {
+        Map<String, Integer> index = new LinkedHashMap<>();
+        for (String name : this.fieldDict.keySet()) {
+            index.put(name, index.size());
+        }
 
-        if (parentNode.attribute("score") != null) {
-            String score = parentNode.attribute("score").getValue();
-            decisionTree.setLeafValue(Double.valueOf(score));
-            decisionTree.setIsLeaf(true);
-        } else {
-            decisionTree.setIsLeaf(false);
+        List<DecisionTree> nodes = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        int [] roots = new int[this.treeCount];
+        Deque<DecisionTree> stack = new ArrayDeque<>();
+        for (int t = 0; t < this.treeCount; t++) {
+            roots[t] = nodes.size();
+            stack.push(treeInfo.get(t).getTree());
+            while (!stack.isEmpty()) {
+                DecisionTree node = stack.pop();
+                nodes.add(node);
+                owners.add(t);
+                if (node.getLeftChild() != null) {
+                    if (node.getRightChild() != null) {
+                        stack.push(node.getRightChild());
+                    }
+                    stack.push(node.getLeftChild());
+                    if (!index.containsKey(node.getFeatureName())) {
+                        index.put(node.getFeatureName(), index.size());
+                    }
+                }
+            }
         }
 
-        List<Element> childNodes = parentNode.elements("Node");
-        if (CollectionUtils.isEmpty(childNodes)) {
-            return decisionTree;
+        Map<DecisionTree, Integer> position = new IdentityHashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            position.put(nodes.get(i), i);
         }
 
-        for (Element childNode : childNodes) {
-            String splitField = childNode.element("SimplePredicate").attribute("field").getValue();
-            decisionTree.setFeatureName(splitField);
+        int n = nodes.size();
+        int [] feature = new int[n];
+        double [] threshold = new double[n];
+        int [] left = new int[n];
+        int [] right = new int[n];
+        byte [] flags = new byte[n];
+        double [] leafValue = new double[n];
+        int [] nodeId = new int[n];
+        int [] leafCode = new int[n];
+        double [][] categories = new double[n][];
+        for (int i = 0; i < n; i++) {
+            DecisionTree node = nodes.get(i);
+            nodeId[i] = node.getNodeId();
+            leafCode[i] = -1;
+            left[i] = -1;
+            right[i] = -1;
+            if (node.getLeftChild() == null) {
+                if (node.getLeafValue() == null) {
+                    throw new IllegalStateException("leaf node " + node.getNodeId() + " has no score");
+                }
+                feature[i] = -1;
+                leafValue[i] = node.getLeafValue();
+                Integer code = treeInfo.get(owners.get(i)).getLeafEncodingMap().get(node.getNodeId());
+                leafCode[i] = code == null ? -1 : code;
+                continue;
+            }
 
-            String threshold = childNode.element("SimplePredicate").attribute("value").getValue();
-            decisionTree.setThreshold(threshold);
+            feature[i] = index.get(node.getFeatureName());
+            left[i] = position.get(node.getLeftChild());
+            if (node.getRightChild() != null) {
+                right[i] = position.get(node.getRightChild());
+            }
+            if (Boolean.TRUE.equals(node.getDefaultLeft())) {
+                flags[i] |= FlatForest.DEFAULT_LEFT;
+            }
+            if ("==".equals(node.getDecisionType())) {
+                flags[i] |= FlatForest.CATEGORICAL;
+                double [] values = new double[node.getThresholdSet().size()];
+                int j = 0;
+                for (Double value : node.getThresholdSet()) {
+                    values[j++] = value;
+                }
+                categories[i] = values;
+            } else {
+                threshold[i] = node.getThresholdSet().iterator().next();
+            }
+        }
 
-            String decisionType = childNode.element("SimplePredicate").attribute("operator").getValue();
+        this.featureIndex = index;
+        this.featureNames = index.keySet().toArray(new String[0]);
+        this.forest = new FlatForest(roots, feature, threshold, left, right, flags,
+                leafValue, nodeId, leafCode, categories, this.featureNames.length);
+        this.scoreForest = this.forest;
+    }
 
-            if ("lessOrEqual".equals(decisionType)) {
-                decisionTree.setDecisionType("<=");
-                decisionTree.setLeftChild(recursiveBuildTree(childNode));
-            } else if ("greaterThan".equals(decisionType)) {
-                decisionTree.setDecisionType("<=");
-                decisionTree.setRightChild(recursiveBuildTree(childNode));
+    /**
+     * 统计每棵树叶子取值的范围，供predictAbove估计剩余树的分数上下界
+     */
+    private void prepareBounds() {
+        int trees = this.treeCount;
+        double [] min = new double[trees];
+        double [] max = new double[trees];
+        double absSum = 0;
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int t = 0; t < trees; t++) {
+            min[t] = Double.POSITIVE_INFINITY;
+            max[t] = Double.NEGATIVE_INFINITY;
+            stack.push(scoreForest.roots[t]);
+            while (!stack.isEmpty()) {
+                int node = stack.pop();
+                if (scoreForest.feature[node] < 0) {
+                    min[t] = Math.min(min[t], scoreForest.leafValue[node]);
+                    max[t] = Math.max(max[t], scoreForest.leafValue[node]);
+                } else {
+                    stack.push(scoreForest.right[node]);
+                    stack.push(scoreForest.left[node]);
+                }
             }
+            absSum += Math.max(Math.abs(min[t]), Math.abs(max[t]));
+        }
+
+        Integer [] order = new Integer[trees];
+        for (int t = 0; t < trees; t++) {
+            order[t] = t;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(max[b] - min[b], max[a] - min[a]));
+        this.boundOrder = new int[trees];
+        this.suffixMin = new double[trees + 1];
+        this.suffixMax = new double[trees + 1];
+        for (int i = trees - 1; i >= 0; i--) {
+            this.boundOrder[i] = order[i];
+            this.suffixMin[i] = this.suffixMin[i + 1] + min[order[i]];
+            this.suffixMax[i] = this.suffixMax[i + 1] + max[order[i]];
+        }
+        // 部分和、后缀和与原顺序的和各自的舍入误差都不超过 n·ε·Σ|v|
+        this.sumError = 4.0 * (trees + 1) * Math.ulp(1.0) * absSum;
+    }
+
+    /**
+     * predictAbove的结果
+     */
+    public static final class Decision {
+        private final boolean above;
+        private final int treesEvaluated;
+        private final boolean exact;
+
+        Decision(boolean above, int treesEvaluated, boolean exact) {
+            this.above = above;
+            this.treesEvaluated = treesEvaluated;
+            this.exact = exact;
         }
 
-        return decisionTree;
+        public boolean isAbove() { return this.above; }
+        public int getTreesEvaluated() { return this.treesEvaluated; }
+        // 是否计算了全部的树并按完整分数判断
+        public boolean isExact() { return this.exact; }
+
+        @Override
+        public String toString() {
+            return (above ? "above" : "not above") + " after " + treesEvaluated + " trees" + (exact ? " (exact)" : "");
+        }
     }
 
-    private static List<Element> findTreeElement(Element segmentation) {
-        List<Element> elements = segmentation.elements("Segment");
-        Element treeSegment = null;
-        for (Element element : elements) {
-            if (element.element("MiningModel") != null
-                    && "regression".equals(element.element("MiningModel").attribute("functionName").getValue())) {
-                treeSegment = element.element("MiningModel").element("Segmentation");
+    /**
+     * optimize的结果，节点数包含叶子
+     */
+    public static final class OptimizationReport {
+        private final int nodes;
+        private final int leafForestNodes;
+        private final int scoreForestNodes;
+        private final int bypassedSplits;
+        private final int unreachableLeaves;
+        private final int collapsedSplits;
+        private final int reorderedSplits;
+        private final int samples;
+        private final long elapsedNanos;
+
+        OptimizationReport(int nodes, int leafForestNodes, int scoreForestNodes, int bypassedSplits,
+                           int unreachableLeaves, int collapsedSplits, int reorderedSplits, int samples,
+                           long elapsedNanos) {
+            this.nodes = nodes;
+            this.leafForestNodes = leafForestNodes;
+            this.scoreForestNodes = scoreForestNodes;
+            this.bypassedSplits = bypassedSplits;
+            this.unreachableLeaves = unreachableLeaves;
+            this.collapsedSplits = collapsedSplits;
+            this.reorderedSplits = reorderedSplits;
+            this.samples = samples;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        // 优化前的节点数
+        public int getNodes() { return this.nodes; }
+        // 去掉不可达分支后的节点数，predictLeaf和gbdtEncoding使用
+        public int getLeafForestNodes() { return this.leafForestNodes; }
+        // 再折叠、去重后的节点数，打分使用
+        public int getScoreForestNodes() { return this.scoreForestNodes; }
+        public int getRemovedNodes() { return this.nodes - this.scoreForestNodes; }
+        // 只有一侧可达而被跳过的分裂
+        public int getBypassedSplits() { return this.bypassedSplits; }
+        public int getUnreachableLeaves() { return this.unreachableLeaves; }
+        // 两侧子树相同而折叠的分裂
+        public int getCollapsedSplits() { return this.collapsedSplits; }
+        // 右孩子比左孩子更常走而调换了位置的分裂
+        public int getReorderedSplits() { return this.reorderedSplits; }
+        public int getSamples() { return this.samples; }
+        public long getElapsedNanos() { return this.elapsedNanos; }
+
+        @Override
+        public String toString() {
+            return String.format("nodes %d -> %d (leaf forest) -> %d (score forest), bypassed=%d unreachableLeaves=%d "
+                            + "collapsed=%d reordered=%d samples=%d elapsed=%.1fms", nodes, leafForestNodes,
+                    scoreForestNodes, bypassedSplits, unreachableLeaves, collapsedSplits, reorderedSplits, samples,
+                    elapsedNanos / 1e6);
+        }
+    }
+
+    /**
+     * 把行区间二分后并行计算，scores非空时打分，否则按mapping求叶子
+     */
+    private static class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FlatForest forest;
+        private final ForestScorer scorer;
+        private final double [][] rows;
+        private final int from;
+        private final int to;
+        private final double [] scores;
+        private final int [] mapping;
+        private final int [][] leaves;
+
+        BatchTask(FlatForest forest, ForestScorer scorer, double [][] rows, int from, int to,
+                  double [] scores, int [] mapping, int [][] leaves) {
+            this.forest = forest;
+            this.scorer = scorer;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.scores = scores;
+            this.mapping = mapping;
+            this.leaves = leaves;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BatchTask(forest, scorer, rows, from, mid, scores, mapping, leaves),
+                        new BatchTask(forest, scorer, rows, mid, to, scores, mapping, leaves));
+            } else if (scores != null) {
+                scorer.scoreBlock(rows, from, to, scores);
+            } else {
+                forest.leafBlock(rows, from, to, mapping, leaves);
             }
         }
-        return treeSegment.elements("Segment");
+    }
+
+    /**
+     * FeatureFrame的批量打分：每次把一块行展开成按槽位排列的数组，再按树优先的顺序计算
+     */
+    private static class FrameTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int BLOCK_ROWS = 256;
+
+        private final ForestScorer scorer;
+        private final FeatureFrame frame;
+        private final FeatureSchema.Binding binding;
+        private final int width;
+        private final int from;
+        private final int to;
+        private final double [] scores;
+
+        FrameTask(ForestScorer scorer, FeatureFrame frame, FeatureSchema.Binding binding, int width,
+                  int from, int to, double [] scores) {
+            this.scorer = scorer;
+            this.frame = frame;
+            this.binding = binding;
+            this.width = width;
+            this.from = from;
+            this.to = to;
+            this.scores = scores;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FrameTask(scorer, frame, binding, width, from, mid, scores),
+                        new FrameTask(scorer, frame, binding, width, mid, to, scores));
+                return;
+            }
+            int size = Math.min(BLOCK_ROWS, to - from);
+            double [][] block = new double[size][width];
+            double [] out = new double[size];
+            for (int begin = from; begin < to; begin += size) {
+                int count = Math.min(size, to - begin);
+                for (int i = 0; i < count; i++) {
+                    frame.fill(begin + i, binding, block[i]);
+                }
+                scorer.scoreBlock(block, 0, count, out);
+                System.arraycopy(out, 0, scores, begin, count);
+            }
+        }
+    }
+
+    public enum EvaluationMode {
+        // 按模型形状自动选择
+        AUTO,
+        // 每棵树从根节点走到叶子
+        TRAVERSAL,
+        // QuickScorer位向量算法，要求每棵树不超过64个叶子且只有数值分裂
+        QUICK_SCORER,
+        // 编译成字节码，每棵树生成的方法不能超过8000字节
+        COMPILED
     }
 
     @Data
@@ -276,22 +1093,30 @@ public class GBDTModel {
         private Boolean defaultLeft;
 
 
+        /**
+         * 解析本节点及其子孙节点的阈值，用显式栈遍历
+         */
         public void splitThrehold() {
-            if (StringUtils.isEmpty(this.threshold)) {
-                return;
-            }
-            String [] v = this.threshold.split("\\|\\|");
-            this.thresholdSet = new HashSet<>();
-            for (String a : v) {
-                this.thresholdSet.add(Double.valueOf(a));
-            }
+            Deque<DecisionTree> stack = new ArrayDeque<>();
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                DecisionTree node = stack.pop();
+                if (StringUtils.isEmpty(node.threshold)) {
+                    continue;
+                }
+                String [] v = node.threshold.split("\\|\\|");
+                node.thresholdSet = new HashSet<>();
+                for (String a : v) {
+                    node.thresholdSet.add(Double.valueOf(a));
+                }
 
-            if (this.leftChild != null) {
-                this.leftChild.splitThrehold();
-            }
+                if (node.rightChild != null) {
+                    stack.push(node.rightChild);
+                }
 
-            if (this.rightChild != null) {
-                this.rightChild.splitThrehold();
+                if (node.leftChild != null) {
+                    stack.push(node.leftChild);
+                }
             }
         }
 
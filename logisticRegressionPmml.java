@@ -1,16 +1,15 @@
 package com.ymkigeg.ml.pmml;
 
 
-import org.dom4j.Document;
 import org.dom4j.DocumentException;
-import org.dom4j.Element;
-import org.dom4j.io.SAXReader;
 
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.File;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.*;
-import org.apache.commons.math3.linear.ArrayRealVector;
 
 
 public class LogisticRegressionModel {
@@ -24,75 +23,449 @@ public class LogisticRegressionModel {
     private String targetCategory;
 
     private double intercept;
-    private double [] coefficients;
+    private CoefficientStore coefficients;
+    private Sigmoid sigmoid = Sigmoid.exact();
+    private ModelMetrics.Recorder metrics;
+    private volatile FeatureSchema.Binding binding;
+
+    // 多分类：每个RegressionTable的类别，系数矩阵在第一次使用时由classTables构造
+    private String [] classLabels = new String[0];
+    private ClassTable [] classTables;
+    private volatile ClassMatrix classMatrix;
 
 
     private LogisticRegressionModel() {}
 
     public static LogisticRegressionModel createByPmml(String modelFile) throws DocumentException{
-        SAXReader reader = new SAXReader();
-        Document document = reader.read(new File(modelFile));
-        return create(document);
+        return PmmlStreams.read(new File(modelFile), LogisticRegressionModel::create);
     }
 
     public static LogisticRegressionModel createByPmml(InputStream in) throws DocumentException{
-        SAXReader reader = new SAXReader();
-        Document document = reader.read(in);
-        return create(document);
+        return PmmlStreams.read(in, LogisticRegressionModel::create);
     }
 
     public static LogisticRegressionModel createByPmml(File file) throws DocumentException{
-        SAXReader reader = new SAXReader();
-        Document document = reader.read(file);
-        return create(document);
+        return PmmlStreams.read(file, LogisticRegressionModel::create);
     }
 
     public static LogisticRegressionModel createByPmml(URL url) throws DocumentException{
-        SAXReader reader = new SAXReader();
-        Document document = reader.read(url);
-        return create(document);
+        return PmmlStreams.read(url, LogisticRegressionModel::create);
+    }
+
+    /**
+     * 加载时直接构造指定布局的系数表，稀疏布局下PMML可以只列出非零系数，不分配numberOfFields长的数组
+     * @param offHeap 稀疏布局时系数是否放在堆外
+     */
+    public static LogisticRegressionModel createByPmml(File file, CoefficientStore.Layout layout, boolean offHeap)
+            throws DocumentException{
+        return PmmlStreams.read(file, reader -> create(reader, layout, offHeap));
+    }
+
+    public static LogisticRegressionModel createByPmml(InputStream in, CoefficientStore.Layout layout, boolean offHeap)
+            throws DocumentException{
+        return PmmlStreams.read(in, reader -> create(reader, layout, offHeap));
+    }
+
+    /**
+     * 换成另一种系数布局的模型，其余属性相同，原模型不变；
+     * 新模型的指标单独记在 <模型名>#<布局> 下，与原模型的计数分开
+     */
+    public LogisticRegressionModel compact(CoefficientStore.Layout layout, boolean offHeap) {
+        LogisticRegressionModel model = new LogisticRegressionModel();
+        model.modelName = this.modelName;
+        model.algorithmName = this.algorithmName;
+        model.functionName = this.functionName;
+        model.normalizationMethod = this.normalizationMethod;
+        model.numberOfFields = this.numberOfFields;
+        model.targetCategory = this.targetCategory;
+        model.intercept = this.intercept;
+        model.sigmoid = this.sigmoid;
+        model.metrics = ModelMetrics.recorder("LogisticRegressionModel",
+                (this.modelName == null || this.modelName.isEmpty() ? "default" : this.modelName)
+                        + "#" + layout.name().toLowerCase() + (offHeap ? "-offheap" : ""));
+        model.coefficients = this.coefficients == null ? null
+                : CoefficientStore.convert(this.coefficients, layout, offHeap);
+        model.classLabels = this.classLabels;
+        synchronized (this) {
+            model.classTables = this.classTables;
+            model.classMatrix = this.classMatrix;
+        }
+        return model;
     }
 
     public int getNumberOfFields() { return this.numberOfFields; }
 
     public double predict(double [] data){
-        // TODO 这里可以将sigmoid函数存成字典，这样就减少计算量
-        return 1 / (1 + Math.exp(-(vectorDot(coefficients, data) + intercept)));
+        requireBinary();
+        if (data.length != this.numberOfFields) {
+            throw new IllegalArgumentException("lr input length " + data.length + " must equals to " + this.numberOfFields);
+        }
+        long start = metrics.start();
+        double result = sigmoid.apply(coefficients.dot(data) + intercept);
+        metrics.record(ModelMetrics.Method.PREDICT, start, 1, data.length);
+        return result;
     }
 
-    private static LogisticRegressionModel create(Document document) {
-        LogisticRegressionModel lrModel = new LogisticRegressionModel();
-        Element root = document.getRootElement();
-        lrModel.numberOfFields = Integer.valueOf(root.element("DataDictionary").attribute("numberOfFields").getValue())-1;
-        lrModel.parseAttributes(root.element("RegressionModel"));
+    /**
+     * 稀疏输入的预测，只计算出现的特征，不分配内存
+     * @param index 特征编号，[0, getNumberOfFields())，重复出现时累加
+     * @param value index对应的取值
+     */
+    public double predict(int [] index, double [] value){
+        if (index.length != value.length) {
+            throw new IllegalArgumentException("lr input index's length must equals to value's length");
+        }
+        return predict(index, value, index.length);
+    }
 
-        Element modelElement = LogisticRegressionModel.findModelElement(root.element("RegressionModel"));
-        lrModel.intercept = Double.valueOf(modelElement.attribute("intercept").getValue());
-        lrModel.targetCategory="1";
-        List<Element> coefficientElements = modelElement.elements("NumericPredictor");
-        if (!lrModel.numberOfFields.equals(coefficientElements.size())) {
-            // TODO 抛出异常
-            return null;
+    /**
+     * 同上，只使用index/value的前length个，方便调用方复用数组
+     */
+    public double predict(int [] index, double [] value, int length){
+        requireBinary();
+        for (int i = 0; i < length; i++) {
+            if (index[i] < 0 || index[i] >= this.numberOfFields) {
+                throw new IllegalArgumentException("lr feature index " + index[i] + " out of " + this.numberOfFields);
+            }
         }
+        long start = metrics.start();
+        double result = sigmoid.apply(coefficients.dot(index, value, length) + intercept);
+        metrics.record(ModelMetrics.Method.PREDICT, start, 1, length);
+        return result;
+    }
 
-        lrModel.coefficients = new double[lrModel.numberOfFields];
-        for (Element element : coefficientElements) {
-            double coef = Double.valueOf(element.attributeValue("coefficient"));
-            int index = Integer.valueOf(element.attributeValue("name"));
-            lrModel.coefficients[index] = coef;
+    /**
+     * 对FeatureFrame批量预测，特征名为系数下标的十进制字符串，超出范围的特征忽略。
+     * 只累加frame中填写的特征，顺序见FeatureFrame
+     */
+    public double [] predict(FeatureFrame frame){
+        requireBinary();
+        long start = metrics.start();
+        FeatureSchema.Binding slots = binding(frame.getSchema());
+        int rows = frame.getRowCount();
+        double [] scores = new double[rows];
+        int [] sparseIds = frame.getSparseIds();
+        double [] sparseValues = frame.getSparseValues();
+        for (int row = 0; row < rows; row++) {
+            double dot = 0.0;
+            for (int i = 0; i < frame.getDenseCount(); i++) {
+                int id = frame.getDenseId(i);
+                int slot = slots.slot(id);
+                if (slot >= 0) {
+                    dot += coefficients.get(slot) * frame.getColumn(id)[row];
+                }
+            }
+            for (int i = frame.getSparseStart(row), end = frame.getSparseEnd(row); i < end; i++) {
+                int slot = slots.slot(sparseIds[i]);
+                if (slot >= 0) {
+                    dot += coefficients.get(slot) * sparseValues[i];
+                }
+            }
+            scores[row] = sigmoid.apply(dot + intercept);
         }
-        return lrModel;
+        metrics.record(ModelMetrics.Method.PREDICT_FRAME, start, rows, frame.getValueCount());
+        return scores;
     }
 
-    private double vectorDot(double [] a, double [] b) {
-        ArrayRealVector vectorA = new ArrayRealVector(a, false);
-        ArrayRealVector vectorB = new ArrayRealVector(b, false);
-        return vectorA.dotProduct(vectorB);
-//        double result = 0.0;
-//        for (int i=0; i<a.length; i++) {
-//            result += a[i] * b[i];
-//        }
-//        return result;
+    private FeatureSchema.Binding binding(FeatureSchema schema) {
+        FeatureSchema.Binding result = this.binding;
+        if (result == null || !result.isCurrent(schema)) {
+            int limit = this.numberOfFields;
+            result = schema.bind(name -> FeatureSchema.parseIndex(name, limit));
+            this.binding = result;
+        }
+        return result;
+    }
+
+    private void requireBinary() {
+        if (this.coefficients == null) {
+            throw new IllegalStateException("lr model has no RegressionTable with targetCategory 1, use predictProba");
+        }
+    }
+
+    /**
+     * 多分类预测：softmax后每个类别的概率，顺序与getClassLabels()相同；
+     * 要求模型有至少两个RegressionTable且为DENSE布局
+     */
+    public double [] predictProba(double [] data){
+        checkLength(data);
+        long start = metrics.start();
+        double [] result = new double[this.classLabels.length];
+        classMatrix().logits(data, result);
+        ClassMatrix.softmax(result, result.length);
+        metrics.record(ModelMetrics.Method.PREDICT_PROBA, start, 1, data.length);
+        return result;
+    }
+
+    /**
+     * 稀疏输入的多分类预测，重复出现的特征累加
+     */
+    public double [] predictProba(int [] index, double [] value){
+        if (index.length != value.length) {
+            throw new IllegalArgumentException("lr input index's length must equals to value's length");
+        }
+        for (int i : index) {
+            if (i < 0 || i >= this.numberOfFields) {
+                throw new IllegalArgumentException("lr feature index " + i + " out of " + this.numberOfFields);
+            }
+        }
+        long start = metrics.start();
+        double [] result = new double[this.classLabels.length];
+        classMatrix().logits(index, value, index.length, result);
+        ClassMatrix.softmax(result, result.length);
+        metrics.record(ModelMetrics.Method.PREDICT_PROBA, start, 1, index.length);
+        return result;
+    }
+
+    /**
+     * 批量多分类预测，按行块和特征块分块计算所有类别的logits，结果与逐行predictProba相同
+     */
+    public double [][] predictProbaBatch(double [][] rows){
+        for (double [] row : rows) {
+            checkLength(row);
+        }
+        long start = metrics.start();
+        double [][] result = new double[rows.length][this.classLabels.length];
+        classMatrix().logitsBatch(rows, 0, rows.length, result);
+        for (double [] probabilities : result) {
+            ClassMatrix.softmax(probabilities, probabilities.length);
+        }
+        metrics.record(ModelMetrics.Method.PREDICT_PROBA_BATCH, start, rows.length, (long) rows.length * this.numberOfFields);
+        return result;
+    }
+
+    /**
+     * 概率最高的n个类别
+     */
+    public TopClasses predictTopN(double [] data, int n){
+        return top(predictProba(data), n);
+    }
+
+    public TopClasses [] predictTopNBatch(double [][] rows, int n){
+        double [][] probabilities = predictProbaBatch(rows);
+        TopClasses [] result = new TopClasses[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            result[i] = top(probabilities[i], n);
+        }
+        return result;
+    }
+
+    private TopClasses top(double [] probabilities, int n) {
+        int size = Math.max(0, Math.min(n, probabilities.length));
+        int [] indexes = new int[size];
+        double [] top = new double[size];
+        ClassMatrix.top(probabilities, probabilities.length, indexes, top);
+        return new TopClasses(this.classLabels, indexes, top);
+    }
+
+    private void checkLength(double [] data) {
+        if (data.length != this.numberOfFields) {
+            throw new IllegalArgumentException("lr input length " + data.length + " must equals to " + this.numberOfFields);
+        }
+    }
+
+    /**
+     * 第一次多分类预测时把所有RegressionTable的系数排成矩阵，之后释放原始数据
+     */
+    private ClassMatrix classMatrix() {
+        ClassMatrix result = this.classMatrix;
+        if (result != null) {
+            return result;
+        }
+        synchronized (this) {
+            if (this.classMatrix != null) {
+                return this.classMatrix;
+            }
+            if (this.classTables == null) {
+                throw new IllegalStateException("multi-class scoring needs at least two RegressionTables and the DENSE layout");
+            }
+            int classes = this.classTables.length;
+            long size = (long) this.numberOfFields * classes;
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("class matrix too large: " + this.numberOfFields + " x " + classes);
+            }
+            double [] weights = new double[(int) size];
+            double [] intercepts = new double[classes];
+            for (int c = 0; c < classes; c++) {
+                ClassTable table = this.classTables[c];
+                intercepts[c] = table.intercept;
+                if (table.names == null) {
+                    // 二分类的表，系数已在coefficients中
+                    for (int f = 0; f < this.numberOfFields; f++) {
+                        weights[f * classes + c] = this.coefficients.get(f);
+                    }
+                    continue;
+                }
+                for (int i = 0; i < table.count; i++) {
+                    weights[table.names[i] * classes + c] = table.values[i];
+                }
+            }
+            result = new ClassMatrix(this.numberOfFields, intercepts, weights);
+            this.classMatrix = result;
+            this.classTables = null;
+            return result;
+        }
+    }
+
+    /**
+     * 用随机数据做预测，让JIT提前编译打分路径，模型上线前调用，不计入ModelMetrics
+     * @param rows 合成的行数
+     */
+    public void warmUp(int rows) {
+        Random random = new Random(rows);
+        if (coefficients == null) {
+            double [] data = new double[this.numberOfFields];
+            double [] logits = new double[this.classLabels.length];
+            for (int i = 0; i < rows; i++) {
+                for (int f = 0; f < data.length; f++) {
+                    data[f] = random.nextGaussian();
+                }
+                classMatrix().logits(data, logits);
+                ClassMatrix.softmax(logits, logits.length);
+            }
+            return;
+        }
+        if (coefficients.getLayout() != CoefficientStore.Layout.DENSE) {
+            // 稀疏布局的维度可能上亿，只用稀疏输入
+            int [] index = new int[32];
+            double [] value = new double[32];
+            for (int i = 0; i < rows; i++) {
+                for (int f = 0; f < index.length; f++) {
+                    index[f] = random.nextInt(this.numberOfFields);
+                    value[f] = random.nextBoolean() ? 1.0 : random.nextGaussian();
+                }
+                sigmoid.apply(coefficients.dot(index, value, index.length) + intercept);
+            }
+            return;
+        }
+        double [] data = new double[this.numberOfFields];
+        for (int i = 0; i < rows; i++) {
+            for (int f = 0; f < data.length; f++) {
+                data[f] = random.nextGaussian();
+            }
+            sigmoid.apply(coefficients.dot(data) + intercept);
+        }
+    }
+
+    /**
+     * 按StAX事件读取：DataDictionary的numberOfFields，第一个RegressionModel的属性，
+     * 以及其中第一个targetCategory为1的RegressionTable的截距和NumericPredictor
+     */
+    private static LogisticRegressionModel create(XMLStreamReader reader) throws XMLStreamException, DocumentException {
+        return create(reader, CoefficientStore.Layout.DENSE, false);
+    }
+
+    private static LogisticRegressionModel create(XMLStreamReader reader, CoefficientStore.Layout layout, boolean offHeap)
+            throws XMLStreamException, DocumentException {
+        long start = System.nanoTime();
+        LogisticRegressionModel lrModel = new LogisticRegressionModel();
+        List<ClassTable> tables = new ArrayList<>();
+        ClassTable table = null;
+        boolean seenDictionary = false;
+        boolean seenModel = false;
+        boolean inModel = false;
+        int depth = 0;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == 2) {
+                    inModel = false;
+                } else if (depth == 3) {
+                    table = null;
+                }
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            depth++;
+            String name = reader.getLocalName();
+            if (depth == 2 && "DataDictionary".equals(name) && !seenDictionary) {
+                seenDictionary = true;
+                lrModel.numberOfFields = Integer.valueOf(PmmlStreams.requireAttribute(reader, "numberOfFields")) - 1;
+            } else if (depth == 2 && "RegressionModel".equals(name) && !seenModel) {
+                seenModel = true;
+                inModel = true;
+                lrModel.parseAttributes(reader);
+            } else if (depth == 3 && inModel && "RegressionTable".equals(name)) {
+                table = new ClassTable(reader.getAttributeValue(null, "targetCategory"),
+                        Double.valueOf(PmmlStreams.requireAttribute(reader, "intercept")));
+                tables.add(table);
+            } else if (depth == 4 && table != null && "NumericPredictor".equals(name)) {
+                table.add(Integer.valueOf(reader.getAttributeValue(null, "name")),
+                        Double.valueOf(reader.getAttributeValue(null, "coefficient")));
+            }
+        }
+
+        if (!seenDictionary || !seenModel) {
+            throw new DocumentException("pmml has no DataDictionary or RegressionModel");
+        }
+        // 二分类取第一个targetCategory为1的表，没有时只能按多分类打分
+        ClassTable binary = null;
+        for (ClassTable candidate : tables) {
+            if ("1".equals(candidate.category)) {
+                binary = candidate;
+                break;
+            }
+        }
+        if (binary == null && tables.size() < 2) {
+            throw new DocumentException("pmml has no RegressionTable with targetCategory 1");
+        }
+        lrModel.classLabels = new String[tables.size()];
+        for (int i = 0; i < tables.size(); i++) {
+            lrModel.classLabels[i] = tables.get(i).category;
+        }
+        if (layout == CoefficientStore.Layout.DENSE && tables.size() >= 2) {
+            for (ClassTable candidate : tables) {
+                for (int i = 0; i < candidate.count; i++) {
+                    if (candidate.names[i] < 0 || candidate.names[i] >= lrModel.numberOfFields) {
+                        throw new DocumentException("NumericPredictor " + candidate.names[i] + " of targetCategory "
+                                + candidate.category + " out of numberOfFields " + lrModel.numberOfFields);
+                    }
+                }
+            }
+            lrModel.classTables = tables.toArray(new ClassTable[0]);
+        }
+        if (binary == null) {
+            lrModel.metrics = ModelMetrics.recorder("LogisticRegressionModel", lrModel.modelName);
+            lrModel.metrics.recordLoad(System.nanoTime() - start, 0);
+            return lrModel;
+        }
+
+        lrModel.targetCategory="1";
+        lrModel.intercept = binary.intercept;
+        int predictorCount = binary.count;
+        int [] names = binary.names;
+        double [] values = binary.values;
+        if (layout == CoefficientStore.Layout.DENSE) {
+            if (lrModel.numberOfFields != predictorCount) {
+                // TODO 抛出异常
+                return null;
+            }
+            double [] coefficients = new double[lrModel.numberOfFields];
+            for (int i = 0; i < predictorCount; i++) {
+                coefficients[names[i]] = values[i];
+            }
+            lrModel.coefficients = CoefficientStore.dense(coefficients);
+        } else {
+            long [] indexes = new long[predictorCount];
+            for (int i = 0; i < predictorCount; i++) {
+                indexes[i] = names[i];
+            }
+            try {
+                lrModel.coefficients = CoefficientStore.build(layout, lrModel.numberOfFields, indexes, values,
+                        predictorCount, offHeap);
+            } catch (IllegalArgumentException e) {
+                throw new DocumentException(e.getMessage());
+            }
+        }
+        // 构造矩阵时二分类的系数从coefficients读取，不再保留一份原始数据
+        binary.release();
+        lrModel.metrics = ModelMetrics.recorder("LogisticRegressionModel", lrModel.modelName);
+        lrModel.metrics.recordLoad(System.nanoTime() - start, 0);
+        return lrModel;
     }
 
     public String getModelName() { return this.modelName; }
@@ -100,22 +473,101 @@ public class LogisticRegressionModel {
     public String getFunctionName() { return this.functionName; }
     public String getNormalizationMethod() { return this.normalizationMethod; }
     public String getTargetCategory() { return this.targetCategory; }
+    public double getIntercept() { return this.intercept; }
+    public int getClassCount() { return this.classLabels.length; }
 
-    private void parseAttributes(Element rootModel) {
-        this.modelName = rootModel.attribute("modelName").getValue();
-        this.algorithmName = rootModel.attribute("algorithmName").getValue();
-        this.functionName = rootModel.attribute("functionName").getValue();
-        this.normalizationMethod = rootModel.attribute("normalizationMethod").getValue();
-    }
+    /**
+     * @return 每个RegressionTable的targetCategory，按PMML中的顺序
+     */
+    public String [] getClassLabels() { return this.classLabels.clone(); }
 
-    private static Element findModelElement(Element segmentation) {
-        List<Element> elements = segmentation.elements("RegressionTable");
-        for (Element element : elements) {
-            if ("1".equals(element.attributeValue("targetCategory"))) {
-                return element;
+    /**
+     * @return 系数的拷贝，下标为特征编号，长度为numberOfFields；稀疏布局的大模型用getCoefficientStore()
+     */
+    public double [] getCoefficients() {
+        requireBinary();
+        double [] result = new double[this.numberOfFields];
+        if (this.coefficients.getLayout() == CoefficientStore.Layout.DENSE) {
+            for (int i = 0; i < result.length; i++) {
+                result[i] = this.coefficients.get(i);
             }
+            return result;
+        }
+        int count = this.coefficients.nonZeroCount();
+        long [] indexes = new long[count];
+        double [] values = new double[count];
+        this.coefficients.copyNonZeros(indexes, values);
+        for (int i = 0; i < count; i++) {
+            result[(int) indexes[i]] = values[i];
+        }
+        return result;
+    }
+
+    public CoefficientStore getCoefficientStore() { return this.coefficients; }
+    public Sigmoid getSigmoid() { return this.sigmoid; }
+    public ModelMetrics.Recorder getMetrics() { return this.metrics; }
+
+    /**
+     * 设置sigmoid的计算方式，默认为精确计算
+     * @param sigmoid 见 Sigmoid.create(mode, maxAbsError)
+     */
+    public void setSigmoid(Sigmoid sigmoid) { this.sigmoid = sigmoid; }
+
+    private void parseAttributes(XMLStreamReader rootModel) throws DocumentException {
+        this.modelName = PmmlStreams.requireAttribute(rootModel, "modelName");
+        this.algorithmName = PmmlStreams.requireAttribute(rootModel, "algorithmName");
+        this.functionName = PmmlStreams.requireAttribute(rootModel, "functionName");
+        this.normalizationMethod = PmmlStreams.requireAttribute(rootModel, "normalizationMethod");
+    }
+
+    /**
+     * 概率最高的若干类别，按概率从高到低，概率相同时类别下标小的在前
+     */
+    public static final class TopClasses {
+        private final String [] labels;
+        private final int [] classIndexes;
+        private final double [] probabilities;
+
+        private TopClasses(String [] labels, int [] classIndexes, double [] probabilities) {
+            this.labels = labels;
+            this.classIndexes = classIndexes;
+            this.probabilities = probabilities;
         }
-        return null;
+
+        // 类别在getClassLabels()中的下标
+        public int [] getClassIndexes() { return this.classIndexes; }
+        public double [] getProbabilities() { return this.probabilities; }
+        public String getLabel(int i) { return this.labels[this.classIndexes[i]]; }
+        public int size() { return this.classIndexes.length; }
     }
 
+    /**
+     * 加载时的一个RegressionTable
+     */
+    private static final class ClassTable {
+        final String category;
+        final double intercept;
+        int [] names = new int[16];
+        double [] values = new double[16];
+        int count;
+
+        ClassTable(String category, double intercept) {
+            this.category = category;
+            this.intercept = intercept;
+        }
+
+        void add(int name, double value) {
+            if (this.count == this.names.length) {
+                this.names = Arrays.copyOf(this.names, this.count * 2);
+                this.values = Arrays.copyOf(this.values, this.count * 2);
+            }
+            this.names[this.count] = name;
+            this.values[this.count++] = value;
+        }
+
+        void release() {
+            this.names = null;
+            this.values = null;
+        }
+    }
 }